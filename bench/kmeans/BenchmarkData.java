@@ -0,0 +1,38 @@
+package kmeans;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The input of the benchmarks: n points in d dimensions around k centers,
+ * generated with a fixed seed so every run measures the same data.
+ */
+@State(Scope.Benchmark)
+public class BenchmarkData {
+
+    public static final long SEED = 42;
+
+    @Param({"10000", "100000"})
+    public int n;
+
+    @Param({"2", "20"})
+    public int d;
+
+    @Param({"10", "50"})
+    public int k;
+
+    protected PointMatrix points;
+    protected int[] labels;
+
+    @Setup(Level.Trial)
+    public void generate() throws KmeansException {
+        Generator generator = new Generator(this.k, this.n / this.k, this.d, SEED);
+        generator.generate();
+
+        this.points = generator.getPoints();
+        this.labels = generator.getLabels();
+    }
+}
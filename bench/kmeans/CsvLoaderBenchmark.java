@@ -0,0 +1,60 @@
+package kmeans;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Loading the generated points from a CSV file with a label column, written
+ * once per trial. After the first iteration the file is in the page cache, so
+ * this measures parsing rather than the disk.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class CsvLoaderBenchmark extends BenchmarkData {
+
+    @Param({"1"})
+    public int threads;
+
+    private File file;
+
+    @Setup(Level.Trial)
+    public void write() throws KmeansException, IOException {
+        this.file = File.createTempFile("kmeans-benchmark", ".csv");
+
+        try (BufferedWriter writer = Files.newBufferedWriter(this.file.toPath(), StandardCharsets.US_ASCII)) {
+            for(int row = 0; row < this.points.getRows(); row++) {
+                for(int dimension = 0; dimension < this.d; dimension++) {
+                    writer.write(Double.toString(this.points.get(row, dimension)));
+                    writer.write(',');
+                }
+                writer.write("cluster" + this.labels[row]);
+                writer.newLine();
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() {
+        this.file.delete();
+    }
+
+    @Benchmark
+    public PointMatrix load() throws KmeansException, IOException {
+        CsvLoader loader = new CsvLoader();
+        loader.setThreads(this.threads);
+        loader.load(this.file.getPath());
+        return loader.getPoints();
+    }
+}
@@ -0,0 +1,51 @@
+package kmeans;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Setup;
+
+/**
+ * Single distance computations and the search for the closest center of one
+ * point, the innermost operations of every round. The rows cycle so the
+ * accesses are not all served from one cache line.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DistanceBenchmark extends BenchmarkData {
+
+    private DataPoint[] dataPoints;
+    private KmeansClustering clustering;
+    private int row;
+
+    @Setup(Level.Trial)
+    public void prepare() throws KmeansException {
+        this.dataPoints = new DataPoint[this.points.getRows()];
+        for(int i = 0; i < this.dataPoints.length; i++)
+            this.dataPoints[i] = this.points.getPoint(i);
+
+        this.clustering = new KmeansClustering(this.points, this.k, (int) SEED,
+                KmeansClustering.InitializationStrategy.RANDOM_POINTS, KmeansClustering.Algorithm.LLOYD);
+        this.clustering.setUseHashing(false);
+        this.clustering.initializeClusters();
+    }
+
+    private int nextRow() {
+        this.row = this.row + 1 == this.dataPoints.length ? 0 : this.row + 1;
+        return this.row;
+    }
+
+    @Benchmark
+    public double getDistance() throws KmeansException {
+        int first = nextRow();
+        return this.dataPoints[first].getDistance(this.dataPoints[this.dataPoints.length - 1 - first]);
+    }
+
+    @Benchmark
+    public KmeansCluster findClosestCluster() {
+        return this.clustering.findClosestCluster(nextRow());
+    }
+}
@@ -0,0 +1,33 @@
+package kmeans;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+
+/**
+ * Hashing all points with numberOfHashes random projections.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class HasherBenchmark extends BenchmarkData {
+
+    @Param({"2", "8"})
+    public int numberOfHashes;
+
+    private Hasher hasher;
+
+    @Setup(Level.Trial)
+    public void prepare() throws KmeansException {
+        this.hasher = new Hasher(this.points, this.numberOfHashes, SEED);
+    }
+
+    @Benchmark
+    public PointMatrix getHashes() throws KmeansException {
+        return this.hasher.getHashes();
+    }
+}
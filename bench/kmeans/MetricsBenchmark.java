@@ -0,0 +1,36 @@
+package kmeans;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Setup;
+
+/**
+ * NMI of the generated labels against a clustering that got a tenth of the
+ * points wrong, close to what a real run compares.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MetricsBenchmark extends BenchmarkData {
+
+    private int[] predicted;
+
+    @Setup(Level.Trial)
+    public void prepare() {
+        Random random = new Random(SEED);
+        this.predicted = this.labels.clone();
+        for(int row = 0; row < this.predicted.length; row++) {
+            if(random.nextInt(10) == 0)
+                this.predicted[row] = random.nextInt(this.k);
+        }
+    }
+
+    @Benchmark
+    public double nmi() throws KmeansException {
+        return CalculateNMI.NMI(this.labels, this.predicted);
+    }
+}
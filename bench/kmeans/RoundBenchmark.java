@@ -0,0 +1,52 @@
+package kmeans;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * One full round over all points. Every iteration starts from the same
+ * random partition, so the iterations measure the same rounds.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class RoundBenchmark extends BenchmarkData {
+
+    @Param({"LLOYD", "MACQUEEN"})
+    public KmeansClustering.Algorithm algorithm;
+
+    @Param({"false", "true"})
+    public boolean hashing;
+
+    @Param({"1"})
+    public int threads;
+
+    private KmeansClustering clustering;
+
+    @Setup(Level.Iteration)
+    public void initialize() throws KmeansException {
+        this.clustering = new KmeansClustering(this.points, this.k, (int) SEED,
+                KmeansClustering.InitializationStrategy.RANDOM_PARTITION, this.algorithm);
+        this.clustering.setUseHashing(this.hashing);
+        this.clustering.setThreads(this.threads);
+        this.clustering.initializeClusters();
+    }
+
+    @TearDown(Level.Iteration)
+    public void close() throws KmeansException {
+        // stops the worker threads of the iteration
+        this.clustering.setThreads(1);
+    }
+
+    @Benchmark
+    public KmeansClustering runRound() throws KmeansException {
+        this.clustering.runRound();
+        return this.clustering;
+    }
+}
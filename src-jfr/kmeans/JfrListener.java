@@ -0,0 +1,82 @@
+package kmeans;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Commits a kmeans.Round JFR event per round while a flight recording has
+ * the event enabled, e.g. with -XX:StartFlightRecording. KmeansClustering
+ * loads it by name and registers it where the JVM supports JFR.
+ *
+ * Kept out of src so the rest compiles for Java 8 without jdk.jfr; build.xml
+ * compiles it into the same classes when the JDK has the JFR API.
+ */
+final class JfrListener implements ClusteringListener {
+
+    @Name("kmeans.Round")
+    @Label("K-means Round")
+    @Category("K-means")
+    @Description("One round of a k-means clustering")
+    static final class RoundEvent extends Event {
+        @Label("Round")
+        int round;
+
+        @Label("Clusters")
+        int k;
+
+        @Label("Wall Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long wallTime;
+
+        @Label("Reassigned Points")
+        long reassignedPoints;
+
+        @Label("SSE")
+        double sse;
+
+        @Label("Max Center Shift")
+        double maxCenterShift;
+
+        @Label("Distance Computations")
+        long distanceComputations;
+
+        @Label("Skipped Distance Computations")
+        long skippedDistanceComputations;
+
+        @Label("LSH Bucket Hits")
+        long bucketHits;
+
+        @Label("Allocated")
+        @DataAmount
+        long allocatedBytes;
+    }
+
+    private final EventType eventType = EventType.getEventType(RoundEvent.class);
+
+    @Override
+    public boolean isEnabled() {
+        return this.eventType.isEnabled();
+    }
+
+    @Override
+    public void roundFinished(KmeansClustering clustering, RoundStatistics statistics) {
+        RoundEvent event = new RoundEvent();
+        event.round = statistics.getRound();
+        event.k = clustering.getK();
+        event.wallTime = statistics.getWallNanos();
+        event.reassignedPoints = statistics.getReassignedPoints();
+        event.sse = statistics.getSse();
+        event.maxCenterShift = statistics.getMaxCenterShift();
+        event.distanceComputations = statistics.getDistanceComputations();
+        event.skippedDistanceComputations = statistics.getSkippedDistanceComputations();
+        event.bucketHits = statistics.getBucketHits();
+        event.allocatedBytes = statistics.getAllocatedBytes();
+        event.commit();
+    }
+}
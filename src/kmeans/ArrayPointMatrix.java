@@ -0,0 +1,102 @@
+package kmeans;
+
+/**
+ * A PointMatrix in a single double[] on the heap.
+ *
+ * Row i occupies values[i * dimensions .. (i + 1) * dimensions - 1]; the row
+ * operations run the distance kernels directly on that array.
+ */
+public class ArrayPointMatrix extends PointMatrix {
+
+    private final double[] values;
+
+    public ArrayPointMatrix(int rows, int dimensions) throws KmeansException {
+        super(rows, dimensions);
+
+        if((long) rows * dimensions > Integer.MAX_VALUE - 8)
+            throw new KmeansException("too many values for a single point matrix: " + rows + "x" + dimensions);
+
+        this.values = new double[rows * dimensions];
+    }
+
+    /**
+     * Wraps values without copying them, used by the loaders. values may be
+     * longer, e.g. a reused block buffer that isn't full.
+     */
+    ArrayPointMatrix(int rows, int dimensions, double[] values) throws KmeansException {
+        super(rows, dimensions);
+
+        if(values.length < rows * dimensions)
+            throw new KmeansException("expected " + rows * dimensions + " values but got " + values.length);
+
+        this.values = values;
+    }
+
+    @Override
+    public double get(int row, int dimension) {
+        return this.values[row * getDimensions() + dimension];
+    }
+
+    @Override
+    public void set(int row, int dimension, double value) {
+        this.values[row * getDimensions() + dimension] = value;
+    }
+
+    @Override
+    public void setRow(int row, double[] coordinates) {
+        System.arraycopy(coordinates, 0, this.values, row * getDimensions(), getDimensions());
+    }
+
+    @Override
+    public void copyRow(int row, double[] target, int targetOffset) {
+        System.arraycopy(this.values, row * getDimensions(), target, targetOffset, getDimensions());
+    }
+
+    @Override
+    public void addRowTo(int row, double[] target, int targetOffset) {
+        int dimensions = getDimensions();
+        int offset = row * dimensions;
+        for(int dimension = 0; dimension < dimensions; dimension++)
+            target[targetOffset + dimension] += this.values[offset + dimension];
+    }
+
+    @Override
+    public void subtractRowFrom(int row, double[] target, int targetOffset) {
+        int dimensions = getDimensions();
+        int offset = row * dimensions;
+        for(int dimension = 0; dimension < dimensions; dimension++)
+            target[targetOffset + dimension] -= this.values[offset + dimension];
+    }
+
+    @Override
+    public double getDistance(int row, PointMatrix other, int otherRow) {
+        if(!(other instanceof ArrayPointMatrix))
+            return super.getDistance(row, other, otherRow);
+
+        return Math.sqrt(DistanceKernel.squaredEuclidean(this.values, row * getDimensions(), ((ArrayPointMatrix) other).values, otherRow * other.getDimensions(), getDimensions()));
+    }
+
+    @Override
+    public double getComparableDistance(int row, double[] other, int otherOffset, DistanceMetric metric) {
+        return metric.comparableDistance(this.values, row * getDimensions(), other, otherOffset, getDimensions());
+    }
+
+    @Override
+    public double getDistance(int row, double[] other, int otherOffset, DistanceMetric metric) {
+        return metric.distance(this.values, row * getDimensions(), other, otherOffset, getDimensions());
+    }
+
+    @Override
+    public double getSquaredDistance(int row, double[] other, int otherOffset, DistanceMetric metric) {
+        return metric.squaredDistance(this.values, row * getDimensions(), other, otherOffset, getDimensions());
+    }
+
+    @Override
+    public double dot(int row, double[] other, int otherOffset) {
+        return DistanceKernel.dot(this.values, row * getDimensions(), other, otherOffset, getDimensions());
+    }
+
+    double[] getValues() {
+        return this.values;
+    }
+}
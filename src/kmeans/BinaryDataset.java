@@ -0,0 +1,302 @@
+package kmeans;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A binary data set file that is mapped instead of parsed.
+ *
+ * Layout, all little-endian:
+ * <pre>
+ *  0  4 bytes  magic "KMDS"
+ *  4  int      format version (1)
+ *  8  long     rows
+ * 16  int      dimensions
+ * 20  int      bytes per value, 8 for doubles or 4 for floats
+ * 24  int      flags, bit 0: the file has labels
+ * 28  int      reserved (0)
+ * 32           rows x dimensions values, row-major
+ *              rows ints with the label of every row, if present
+ * </pre>
+ * The values are the point storage of the MappedPointMatrix returned by
+ * load, nothing is copied onto the heap except the labels.
+ */
+public class BinaryDataset {
+
+    public static final int VERSION = 1;
+
+    private static final byte[] MAGIC = "KMDS".getBytes(StandardCharsets.US_ASCII);
+    private static final int HEADER_SIZE = 32;
+    private static final int FLAG_LABELS = 1;
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private int shard = 0;
+    private int shards = 1;
+
+    private PointMatrix points;
+    private int[] labels;
+    private long loadNanos;
+
+    /**
+     * Whether the file starts with the magic bytes of the format.
+     */
+    public static boolean isBinary(String path) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(path, "r")) {
+            if(file.length() < HEADER_SIZE)
+                return false;
+
+            byte[] magic = new byte[MAGIC.length];
+            file.readFully(magic);
+            return Arrays.equals(magic, MAGIC);
+        }
+    }
+
+    /**
+     * Writes the points and, if not null, their labels; floats halves the
+     * size at the cost of precision.
+     */
+    public static void write(String path, PointMatrix points, int[] labels, boolean floats) throws KmeansException, IOException {
+        if(labels != null && labels.length != points.getRows())
+            throw new KmeansException("expected " + points.getRows() + " labels but got " + labels.length);
+
+        int dimensions = points.getDimensions();
+        int valueBytes = floats ? Float.BYTES : Double.BYTES;
+
+        try (RandomAccessFile file = new RandomAccessFile(path, "rw"); FileChannel channel = file.getChannel()) {
+            channel.truncate(0);
+
+            ByteBuffer buffer = ByteBuffer.allocateDirect(Math.max(BUFFER_SIZE, dimensions * valueBytes)).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.put(MAGIC);
+            buffer.putInt(VERSION);
+            buffer.putLong(points.getRows());
+            buffer.putInt(dimensions);
+            buffer.putInt(valueBytes);
+            buffer.putInt(labels != null ? FLAG_LABELS : 0);
+            buffer.putInt(0);
+
+            double[] row = new double[dimensions];
+            for(int r = 0; r < points.getRows(); r++) {
+                if(buffer.remaining() < dimensions * valueBytes)
+                    flush(channel, buffer);
+
+                points.copyRow(r, row, 0);
+                for(int dimension = 0; dimension < dimensions; dimension++) {
+                    if(floats)
+                        buffer.putFloat((float) row[dimension]);
+                    else
+                        buffer.putDouble(row[dimension]);
+                }
+            }
+
+            if(labels != null) {
+                for(int label : labels) {
+                    if(buffer.remaining() < Integer.BYTES)
+                        flush(channel, buffer);
+
+                    buffer.putInt(label);
+                }
+            }
+
+            flush(channel, buffer);
+        }
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while(buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+
+    /**
+     * Only maps the rows [shard * rows / shards, (shard + 1) * rows / shards)
+     * of the file, the same rows KmeansWorker.forShard picks from the whole file.
+     */
+    public void setShard(int shard, int shards) throws KmeansException {
+        if(shards < 1)
+            throw new KmeansException("shard count must be greater then 0");
+
+        if(shard < 0 || shard >= shards)
+            throw new KmeansException("shard must be between 0 and " + (shards - 1));
+
+        this.shard = shard;
+        this.shards = shards;
+    }
+
+    public void load(String path) throws KmeansException, IOException {
+        long start = System.nanoTime();
+
+        try (RandomAccessFile file = new RandomAccessFile(path, "r"); FileChannel channel = file.getChannel()) {
+            Header header = readHeader(channel, path);
+
+            long fromRow = header.rows * this.shard / this.shards;
+            long rows = header.rows * (this.shard + 1) / this.shards - fromRow;
+            if(rows == 0 && this.shards > 1)
+                throw new KmeansException("shard " + this.shard + "/" + this.shards + " has no rows, the file has " + header.rows);
+
+            if(rows > Integer.MAX_VALUE)
+                throw new KmeansException(path + " has too many rows to be loaded at once, use the out-of-core mode: " + rows);
+
+            long rowBytes = (long) header.dimensions * header.valueBytes;
+            this.points = new MappedPointMatrix(channel, HEADER_SIZE + fromRow * rowBytes, (int) rows, header.dimensions, header.valueBytes == Float.BYTES);
+
+            this.labels = null;
+            if(header.hasLabels) {
+                this.labels = new int[(int) rows];
+                ByteBuffer labelBuffer = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + header.getValuesSize() + fromRow * Integer.BYTES, rows * Integer.BYTES);
+                labelBuffer.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(this.labels);
+            }
+        }
+
+        this.loadNanos = System.nanoTime() - start;
+    }
+
+    /**
+     * Opens the file for reading in blocks; the row count may exceed what fits into a PointMatrix.
+     */
+    public static BlockSource openBlocks(String path) throws KmeansException, IOException {
+        RandomAccessFile file = new RandomAccessFile(path, "r");
+        try {
+            return new FileBlockSource(file, readHeader(file.getChannel(), path));
+        } catch (KmeansException | IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    private static Header readHeader(FileChannel channel, String path) throws KmeansException, IOException {
+        if(channel.size() < HEADER_SIZE)
+            throw new KmeansException(path + " is too short for a binary data set");
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        while(buffer.hasRemaining())
+            channel.read(buffer, buffer.position());
+        buffer.flip();
+
+        byte[] magic = new byte[MAGIC.length];
+        buffer.get(magic);
+        if(!Arrays.equals(magic, MAGIC))
+            throw new KmeansException(path + " is not a binary data set");
+
+        int version = buffer.getInt();
+        if(version != VERSION)
+            throw new KmeansException(path + " has the unsupported format version " + version);
+
+        Header header = new Header();
+        header.rows = buffer.getLong();
+        header.dimensions = buffer.getInt();
+        header.valueBytes = buffer.getInt();
+        header.hasLabels = (buffer.getInt() & FLAG_LABELS) != 0;
+
+        if(header.rows < 0)
+            throw new KmeansException(path + " has an invalid row count: " + header.rows);
+
+        if(header.dimensions < 1)
+            throw new KmeansException(path + " has an invalid dimensionality: " + header.dimensions);
+
+        if(header.valueBytes != Double.BYTES && header.valueBytes != Float.BYTES)
+            throw new KmeansException(path + " has an invalid value size: " + header.valueBytes);
+
+        long expectedSize = HEADER_SIZE + header.getValuesSize() + (header.hasLabels ? header.rows * Integer.BYTES : 0);
+        if(channel.size() < expectedSize)
+            throw new KmeansException(path + " is truncated: expected " + expectedSize + " bytes but found " + channel.size());
+
+        return header;
+    }
+
+    public PointMatrix getPoints() {
+        return this.points;
+    }
+
+    /**
+     * The label of every row, null if the file has none.
+     */
+    public int[] getLabels() {
+        return this.labels;
+    }
+
+    public long getLoadNanos() {
+        return this.loadNanos;
+    }
+
+    private static class Header {
+        long rows;
+        int dimensions;
+        int valueBytes;
+        boolean hasLabels;
+
+        long getValuesSize() {
+            return this.rows * this.dimensions * this.valueBytes;
+        }
+    }
+
+    /**
+     * Reads the values with plain positional reads, the OS read-ahead and
+     * OutOfCoreKmeans' prefetching keep the disk busy.
+     */
+    private static class FileBlockSource implements BlockSource {
+        private final RandomAccessFile file;
+        private final FileChannel channel;
+        private final Header header;
+        private final int rowBytes;
+        private ByteBuffer buffer;
+        private long nextRow;
+
+        FileBlockSource(RandomAccessFile file, Header header) {
+            this.file = file;
+            this.channel = file.getChannel();
+            this.header = header;
+            this.rowBytes = header.dimensions * header.valueBytes;
+        }
+
+        @Override
+        public int getDimensions() {
+            return this.header.dimensions;
+        }
+
+        @Override
+        public int read(double[] values, int maxRows) throws KmeansException, IOException {
+            int rows = (int) Math.min(maxRows, this.header.rows - this.nextRow);
+            if(rows <= 0)
+                return 0;
+
+            int bytes = rows * this.rowBytes;
+            if(this.buffer == null || this.buffer.capacity() < bytes)
+                this.buffer = ByteBuffer.allocateDirect(bytes).order(ByteOrder.LITTLE_ENDIAN);
+
+            this.buffer.clear().limit(bytes);
+            long position = HEADER_SIZE + this.nextRow * this.rowBytes;
+            while(this.buffer.hasRemaining()) {
+                if(this.channel.read(this.buffer, position + this.buffer.position()) < 0)
+                    throw new KmeansException("unexpected end of the binary data set at row " + this.nextRow);
+            }
+            this.buffer.flip();
+
+            int count = rows * this.header.dimensions;
+            if(this.header.valueBytes == Float.BYTES) {
+                for(int i = 0; i < count; i++)
+                    values[i] = this.buffer.getFloat();
+            } else {
+                this.buffer.asDoubleBuffer().get(values, 0, count);
+            }
+
+            this.nextRow += rows;
+            return rows;
+        }
+
+        @Override
+        public void rewind() {
+            this.nextRow = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.file.close();
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package kmeans;
+
+import java.io.IOException;
+
+/**
+ * Reads a data set sequentially in blocks of rows, for data that doesn't fit
+ * into memory as a whole, see OutOfCoreKmeans.
+ */
+public interface BlockSource extends AutoCloseable {
+
+    int getDimensions();
+
+    /**
+     * Fills values with up to maxRows rows, row-major.
+     *
+     * @return the number of rows read, 0 at the end of the data
+     */
+    int read(double[] values, int maxRows) throws KmeansException, IOException;
+
+    /**
+     * Starts again at the first row.
+     */
+    void rewind() throws KmeansException, IOException;
+
+    @Override
+    void close() throws IOException;
+}
@@ -0,0 +1,250 @@
+package kmeans;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Internal quality measures of a clustering, for data without true clusters.
+ *
+ * Everything but the silhouette follows from per cluster statistics: the
+ * size, the sum of the squared distances (SSE) and of the distances of the
+ * members to their center. Lloyd and mini-batch collect them while they
+ * assign the points anyway; compute gathers them in one parallel pass.
+ * <ul>
+ * <li>SSE (inertia): the summed squared distances, lower is better</li>
+ * <li>Davies-Bouldin: the mean over the clusters of the worst ratio of the
+ *     summed mean distances to their centers and the distance between the
+ *     centers of two clusters, lower is better</li>
+ * <li>Calinski-Harabasz: the spread of the centers around the overall mean
+ *     against the SSE, each per degree of freedom, higher is better</li>
+ * </ul>
+ * The centers are taken as the means of their clusters, which holds for
+ * converged Lloyd rounds.
+ */
+public class ClusterEvaluation {
+
+    private final int k;
+    private final int dimensions;
+    private final double[] centers;
+    private final long[] sizes;
+    private final double[] squaredErrors;
+    private final double[] distanceSums;
+    private final DistanceMetric metric;
+
+    /**
+     * centers holds k rows; squaredErrors and distanceSums the per cluster
+     * sums over the members. The arrays are not copied.
+     */
+    ClusterEvaluation(double[] centers, int dimensions, long[] sizes, double[] squaredErrors, double[] distanceSums, DistanceMetric metric) {
+        this.k = sizes.length;
+        this.dimensions = dimensions;
+        this.centers = centers;
+        this.sizes = sizes;
+        this.squaredErrors = squaredErrors;
+        this.distanceSums = distanceSums;
+        this.metric = metric;
+    }
+
+    /**
+     * Gathers the statistics of the assignment in one pass over the points.
+     */
+    public static ClusterEvaluation compute(PointMatrix points, int[] assignment, PointMatrix centers, DistanceMetric metric, WorkerPool pool) throws KmeansException {
+        int k = centers.getRows();
+        int dimensions = centers.getDimensions();
+        double[] centerValues = new double[k * dimensions];
+        for(int cluster = 0; cluster < k; cluster++)
+            centers.copyRow(cluster, centerValues, cluster * dimensions);
+
+        List<double[]> partials = pool.run(points.getRows(), (chunk, fromRow, toRow) -> {
+            // sizes, squared errors and distance sums of the chunk
+            double[] partial = new double[3 * k];
+            for(int row = fromRow; row < toRow; row++) {
+                int cluster = assignment[row];
+                double distance = points.getDistance(row, centerValues, cluster * dimensions, metric);
+                partial[cluster]++;
+                partial[k + cluster] += distance * distance;
+                partial[2 * k + cluster] += distance;
+            }
+            return partial;
+        });
+
+        long[] sizes = new long[k];
+        double[] squaredErrors = new double[k];
+        double[] distanceSums = new double[k];
+        for(double[] partial : partials) {
+            for(int cluster = 0; cluster < k; cluster++) {
+                sizes[cluster] += (long) partial[cluster];
+                squaredErrors[cluster] += partial[k + cluster];
+                distanceSums[cluster] += partial[2 * k + cluster];
+            }
+        }
+
+        return new ClusterEvaluation(centerValues, dimensions, sizes, squaredErrors, distanceSums, metric);
+    }
+
+    public double getSse() {
+        double sse = 0;
+        for(double error : this.squaredErrors)
+            sse += error;
+
+        return sse;
+    }
+
+    public double getClusterSse(int cluster) {
+        return this.squaredErrors[cluster];
+    }
+
+    /**
+     * Empty clusters are left out; NaN with fewer than two non-empty clusters.
+     */
+    public double getDaviesBouldin() {
+        double sum = 0;
+        int clusters = 0;
+
+        for(int a = 0; a < this.k; a++) {
+            if(this.sizes[a] == 0)
+                continue;
+
+            double scatterA = this.distanceSums[a] / this.sizes[a];
+            double worst = 0;
+            for(int b = 0; b < this.k; b++) {
+                if(b == a || this.sizes[b] == 0)
+                    continue;
+
+                double separation = this.metric.distance(this.centers, a * this.dimensions, this.centers, b * this.dimensions, this.dimensions);
+                double scatterB = this.distanceSums[b] / this.sizes[b];
+                worst = Math.max(worst, separation == 0 ? Double.POSITIVE_INFINITY : (scatterA + scatterB) / separation);
+            }
+
+            sum += worst;
+            clusters++;
+        }
+
+        return clusters < 2 ? Double.NaN : sum / clusters;
+    }
+
+    /**
+     * NaN with fewer than two non-empty clusters or as many clusters as points.
+     */
+    public double getCalinskiHarabasz() {
+        long rows = 0;
+        int clusters = 0;
+        double[] mean = new double[this.dimensions];
+
+        for(int cluster = 0; cluster < this.k; cluster++) {
+            if(this.sizes[cluster] == 0)
+                continue;
+
+            rows += this.sizes[cluster];
+            clusters++;
+            for(int dimension = 0; dimension < this.dimensions; dimension++)
+                mean[dimension] += this.sizes[cluster] * this.centers[cluster * this.dimensions + dimension];
+        }
+
+        if(clusters < 2 || rows <= clusters)
+            return Double.NaN;
+
+        for(int dimension = 0; dimension < this.dimensions; dimension++)
+            mean[dimension] /= rows;
+
+        double between = 0;
+        for(int cluster = 0; cluster < this.k; cluster++) {
+            if(this.sizes[cluster] > 0)
+                between += this.sizes[cluster] * this.metric.squaredDistance(this.centers, cluster * this.dimensions, mean, 0, this.dimensions);
+        }
+
+        double within = getSse();
+        return within == 0 ? Double.POSITIVE_INFINITY : (between / (clusters - 1)) / (within / (rows - clusters));
+    }
+
+    /**
+     * The mean silhouette of sampleSize uniformly drawn points, measured
+     * against the other points of the sample only; exact if sampleSize
+     * covers all points. The sample is copied, so memory stays at
+     * O(sampleSize * (dimensions + k)) however many points there are, and
+     * the time is O(sampleSize^2 * dimensions) spread over the pool. Points
+     * without another sampled point in their cluster count as 0.
+     */
+    public static double silhouette(PointMatrix points, int[] assignment, int k, DistanceMetric metric, int sampleSize, Random random, WorkerPool pool) throws KmeansException {
+        if(sampleSize < 2)
+            throw new KmeansException("silhouette sample size must be greater then 1");
+
+        int[] rows = sampleRows(points.getRows(), sampleSize, random);
+        int samples = rows.length;
+        int dimensions = points.getDimensions();
+
+        ArrayPointMatrix sample = new ArrayPointMatrix(samples, dimensions);
+        double[] sampleValues = sample.getValues();
+        int[] clusters = new int[samples];
+        long[] clusterSizes = new long[k];
+        for(int i = 0; i < samples; i++) {
+            points.copyRow(rows[i], sampleValues, i * dimensions);
+            clusters[i] = assignment[rows[i]];
+            clusterSizes[clusters[i]]++;
+        }
+
+        List<double[]> partials = pool.run(samples, 64, (chunk, from, to) -> {
+            double[] distanceSums = new double[k];
+            double sum = 0;
+
+            for(int i = from; i < to; i++) {
+                Arrays.fill(distanceSums, 0);
+                for(int j = 0; j < samples; j++)
+                    distanceSums[clusters[j]] += sample.getDistance(i, sampleValues, j * dimensions, metric);
+
+                int own = clusters[i];
+                if(clusterSizes[own] < 2)
+                    continue;
+
+                double cohesion = distanceSums[own] / (clusterSizes[own] - 1);
+                double separation = Double.POSITIVE_INFINITY;
+                for(int cluster = 0; cluster < k; cluster++) {
+                    if(cluster != own && clusterSizes[cluster] > 0)
+                        separation = Math.min(separation, distanceSums[cluster] / clusterSizes[cluster]);
+                }
+
+                if(separation != Double.POSITIVE_INFINITY && Math.max(cohesion, separation) > 0)
+                    sum += (separation - cohesion) / Math.max(cohesion, separation);
+            }
+
+            return new double[] { sum };
+        });
+
+        double sum = 0;
+        for(double[] partial : partials)
+            sum += partial[0];
+
+        return sum / samples;
+    }
+
+    /**
+     * count distinct rows drawn uniformly (Floyd's algorithm) in ascending
+     * order, all rows if there are not more.
+     */
+    private static int[] sampleRows(int rows, int count, Random random) {
+        if(count >= rows) {
+            int[] all = new int[rows];
+            for(int row = 0; row < rows; row++)
+                all[row] = row;
+            return all;
+        }
+
+        Set<Integer> sampled = new HashSet<>();
+        for(int candidate = rows - count; candidate < rows; candidate++) {
+            int row = random.nextInt(candidate + 1);
+            sampled.add(sampled.contains(row) ? candidate : row);
+        }
+
+        int[] sample = sampled.stream().mapToInt(Integer::intValue).toArray();
+        Arrays.sort(sample);
+        return sample;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("SSE %.6g, Davies-Bouldin %.6f, Calinski-Harabasz %.6g", getSse(), getDaviesBouldin(), getCalinskiHarabasz());
+    }
+}
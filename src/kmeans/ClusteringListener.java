@@ -0,0 +1,28 @@
+package kmeans;
+
+/**
+ * Receives the statistics of every round of a KmeansClustering or an
+ * OutOfCoreKmeans run. The statistics are only gathered while a listener is
+ * registered and enabled, so unobserved runs don't pay for them.
+ */
+public interface ClusteringListener {
+
+    /**
+     * Called on the thread that runs the clustering after every round.
+     */
+    void roundFinished(KmeansClustering clustering, RoundStatistics statistics);
+
+    /**
+     * Called on the thread that runs the clustering after every round of an
+     * out-of-core run; ignored unless overridden.
+     */
+    default void roundFinished(OutOfCoreKmeans clustering, RoundStatistics statistics) {
+    }
+
+    /**
+     * Checked before every round; a disabled listener is skipped for that round.
+     */
+    default boolean isEnabled() {
+        return true;
+    }
+}
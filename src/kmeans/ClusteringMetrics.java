@@ -0,0 +1,321 @@
+package kmeans;
+
+import java.util.List;
+
+/**
+ * External measures of a clustering against the true clusters.
+ *
+ * The contingency table only holds the label pairs that occur; it is counted
+ * in parallel chunks on a WorkerPool and merged, so any int labels work, no
+ * matter how large or sparse. All measures are then derived from the table
+ * and its marginals in one pass:
+ * <ul>
+ * <li>NMI: mutual information divided by the larger of both entropies</li>
+ * <li>AMI: NMI corrected for chance with the expected mutual information
+ *     under the hypergeometric model, normalized the same way</li>
+ * <li>ARI: the adjusted Rand index (Hubert and Arabie)</li>
+ * <li>purity: the fraction of points in the majority true cluster of their cluster</li>
+ * <li>homogeneity, completeness and their harmonic mean, the V-measure</li>
+ * </ul>
+ */
+public final class ClusteringMetrics {
+
+    private static final int COUNT_CHUNK_SIZE = 16 * WorkerPool.CHUNK_SIZE;
+    private static final int LOG_FACTORIAL_TABLE_SIZE = 256;
+    private static final double[] LOG_FACTORIALS = new double[LOG_FACTORIAL_TABLE_SIZE];
+
+    // hypergeometric terms below this fraction of the largest one are left out of the expected mutual information
+    private static final double NEGLIGIBLE_PROBABILITY = 1e-17;
+
+    static {
+        for(int n = 1; n < LOG_FACTORIAL_TABLE_SIZE; n++)
+            LOG_FACTORIALS[n] = LOG_FACTORIALS[n - 1] + Math.log(n);
+    }
+
+    private final long rows;
+    private final int truthClusters;
+    private final int predictedClusters;
+    private final int cells;
+    private final double nmi;
+    private final double ami;
+    private final double ari;
+    private final double purity;
+    private final double homogeneity;
+    private final double completeness;
+
+    private ClusteringMetrics(long rows, int truthClusters, int predictedClusters, int cells, double nmi, double ami, double ari, double purity, double homogeneity, double completeness) {
+        this.rows = rows;
+        this.truthClusters = truthClusters;
+        this.predictedClusters = predictedClusters;
+        this.cells = cells;
+        this.nmi = nmi;
+        this.ami = ami;
+        this.ari = ari;
+        this.purity = purity;
+        this.homogeneity = homogeneity;
+        this.completeness = completeness;
+    }
+
+    public static ClusteringMetrics compare(int[] truth, int[] predicted) throws KmeansException {
+        try (WorkerPool pool = new WorkerPool(1)) {
+            return compare(truth, predicted, pool);
+        }
+    }
+
+    public static ClusteringMetrics compare(int[] truth, int[] predicted, WorkerPool pool) throws KmeansException {
+        if(truth.length != predicted.length)
+            throw new KmeansException("expected " + truth.length + " predicted labels but got " + predicted.length);
+
+        if(truth.length == 0)
+            throw new KmeansException("cannot compare empty clusterings");
+
+        int rows = truth.length;
+
+        // the pair (truth, predicted) packed into one key; fixed chunks merged in order fill the
+        // table in the same order for any thread count, so the sums over it don't change either
+        List<LongCountMap> partials = pool.run(rows, COUNT_CHUNK_SIZE, (chunk, fromRow, toRow) -> {
+            LongCountMap partial = new LongCountMap(64);
+
+            // rows of the same pair often follow each other, count runs before touching the map
+            long runKey = 0;
+            long runLength = 0;
+            for(int row = fromRow; row < toRow; row++) {
+                long key = ((long) truth[row] << 32) | (predicted[row] & 0xFFFFFFFFL);
+                if(key != runKey && runLength > 0) {
+                    partial.add(runKey, runLength);
+                    runLength = 0;
+                }
+                runKey = key;
+                runLength++;
+            }
+            partial.add(runKey, runLength);
+
+            return partial;
+        });
+
+        LongCountMap table = partials.get(0);
+        for(int index = 1; index < partials.size(); index++)
+            table.addAll(partials.get(index));
+
+        return fromTable(table, rows, pool);
+    }
+
+    private static ClusteringMetrics fromTable(LongCountMap table, long rows, WorkerPool pool) throws KmeansException {
+        LongCountMap truthSizes = new LongCountMap(64);
+        LongCountMap predictedSizes = new LongCountMap(64);
+        LongCountMap majorities = new LongCountMap(64);
+        double n = rows;
+
+        double pairsInCells = 0;
+        for(int slot = 0; slot < table.getCapacity(); slot++) {
+            long count = table.getCount(slot);
+            if(count == 0)
+                continue;
+
+            long key = table.getKey(slot);
+            truthSizes.add(key >> 32, count);
+            predictedSizes.add((int) key, count);
+            majorities.max((int) key, count);
+            pairsInCells += pairs(count);
+        }
+
+        long[] a = counts(truthSizes);
+        long[] b = counts(predictedSizes);
+        double truthEntropy = entropy(a, n);
+        double predictedEntropy = entropy(b, n);
+
+        double mutualInformation = 0;
+        for(int slot = 0; slot < table.getCapacity(); slot++) {
+            long count = table.getCount(slot);
+            if(count == 0)
+                continue;
+
+            long key = table.getKey(slot);
+            long truthSize = truthSizes.get(key >> 32);
+            long predictedSize = predictedSizes.get((int) key);
+            mutualInformation += count / n * Math.log(n * count / ((double) truthSize * predictedSize));
+        }
+        // rounding can leave a tiny negative value for independent clusterings
+        mutualInformation = Math.max(mutualInformation, 0);
+
+        double maxEntropy = Math.max(truthEntropy, predictedEntropy);
+        double nmi = maxEntropy == 0 ? 1 : mutualInformation / maxEntropy;
+
+        double ami;
+        if(maxEntropy == 0) {
+            ami = 1;
+        } else {
+            double expected = expectedMutualInformation(a, b, rows, pool);
+            ami = (mutualInformation - expected) / (maxEntropy - expected);
+        }
+
+        double pairsInTruth = 0;
+        for(long count : a)
+            pairsInTruth += pairs(count);
+
+        double pairsInPredicted = 0;
+        for(long count : b)
+            pairsInPredicted += pairs(count);
+
+        double expectedIndex = pairsInTruth * pairsInPredicted / pairs(rows);
+        double maxIndex = (pairsInTruth + pairsInPredicted) / 2;
+        double ari = maxIndex == expectedIndex ? 1 : (pairsInCells - expectedIndex) / (maxIndex - expectedIndex);
+
+        long majority = 0;
+        for(long count : counts(majorities))
+            majority += count;
+
+        double homogeneity = truthEntropy == 0 ? 1 : mutualInformation / truthEntropy;
+        double completeness = predictedEntropy == 0 ? 1 : mutualInformation / predictedEntropy;
+
+        return new ClusteringMetrics(rows, a.length, b.length, table.size(), nmi, ami, ari, majority / n, homogeneity, completeness);
+    }
+
+    /**
+     * E[MI] over all clusterings with the given cluster sizes (Vinh et al.).
+     * For every pair of clusters the hypergeometric distribution of their
+     * overlap is summed from its mode outwards until the terms get negligible,
+     * so large clusters don't cost a term per possible overlap.
+     */
+    private static double expectedMutualInformation(long[] a, long[] b, long rows, WorkerPool pool) throws KmeansException {
+        double n = rows;
+        double logFactorialN = logFactorial(rows);
+
+        List<double[]> partials = pool.run(a.length, 1, (chunk, from, to) -> {
+            double sum = 0;
+            for(int i = from; i < to; i++) {
+                for(long bj : b) {
+                    long ai = a[i];
+                    long lowest = Math.max(1, ai + bj - rows);
+                    long highest = Math.min(ai, bj);
+                    if(lowest > highest)
+                        continue;
+
+                    // log(ai! bj! (n - ai)! (n - bj)! / n!), shared by all terms of the pair
+                    double logShared = logFactorial(ai) + logFactorial(bj) + logFactorial(rows - ai) + logFactorial(rows - bj) - logFactorialN;
+                    long mode = Math.min(highest, Math.max(lowest, (long) ((ai + 1.0) * (bj + 1.0) / (n + 2))));
+                    double modeProbability = hypergeometric(logShared, mode, ai, bj, rows);
+                    double logRatio = Math.log(n / ((double) ai * bj));
+                    long rest = rows - ai - bj;
+
+                    // neighbouring terms follow from each other by the ratio of the factorials
+                    double probability = modeProbability;
+                    for(long nij = mode; nij <= highest && probability >= NEGLIGIBLE_PROBABILITY * modeProbability; nij++) {
+                        sum += probability * nij / n * (logRatio + Math.log(nij));
+                        probability *= (double) (ai - nij) * (bj - nij) / ((nij + 1.0) * (rest + nij + 1));
+                    }
+
+                    probability = modeProbability;
+                    for(long nij = mode - 1; nij >= lowest; nij--) {
+                        probability *= (nij + 1.0) * (rest + nij + 1) / ((double) (ai - nij) * (bj - nij));
+                        if(probability < NEGLIGIBLE_PROBABILITY * modeProbability)
+                            break;
+                        sum += probability * nij / n * (logRatio + Math.log(nij));
+                    }
+                }
+            }
+            return new double[] { sum };
+        });
+
+        double expected = 0;
+        for(double[] partial : partials)
+            expected += partial[0];
+
+        return expected;
+    }
+
+    private static double hypergeometric(double logShared, long nij, long ai, long bj, long rows) {
+        return Math.exp(logShared - logFactorial(nij) - logFactorial(ai - nij) - logFactorial(bj - nij) - logFactorial(rows - ai - bj + nij));
+    }
+
+    /**
+     * log(n!), from the table for small n and from Stirling's series beyond,
+     * where its error is far below the precision of a double.
+     */
+    static double logFactorial(long n) {
+        if(n < LOG_FACTORIAL_TABLE_SIZE)
+            return LOG_FACTORIALS[(int) n];
+
+        double x = n;
+        double inverse = 1 / x;
+        double inverseSquared = inverse * inverse;
+        return x * Math.log(x) - x + 0.5 * Math.log(2 * Math.PI * x)
+                + inverse * (1.0 / 12 - inverseSquared * (1.0 / 360 - inverseSquared * (1.0 / 1260)));
+    }
+
+    private static double pairs(long count) {
+        return count * (count - 1.0) / 2;
+    }
+
+    private static double entropy(long[] counts, double n) {
+        double entropy = 0;
+        for(long count : counts)
+            entropy -= count / n * Math.log(count / n);
+
+        return entropy;
+    }
+
+    private static long[] counts(LongCountMap map) {
+        long[] counts = new long[map.size()];
+        int index = 0;
+        for(int slot = 0; slot < map.getCapacity(); slot++) {
+            if(map.getCount(slot) != 0)
+                counts[index++] = map.getCount(slot);
+        }
+
+        return counts;
+    }
+
+    public long getRows() {
+        return this.rows;
+    }
+
+    public int getTruthClusterCount() {
+        return this.truthClusters;
+    }
+
+    public int getPredictedClusterCount() {
+        return this.predictedClusters;
+    }
+
+    /**
+     * The number of non-empty cells of the contingency table.
+     */
+    public int getContingencyCellCount() {
+        return this.cells;
+    }
+
+    public double getNmi() {
+        return this.nmi;
+    }
+
+    public double getAmi() {
+        return this.ami;
+    }
+
+    public double getAri() {
+        return this.ari;
+    }
+
+    public double getPurity() {
+        return this.purity;
+    }
+
+    public double getHomogeneity() {
+        return this.homogeneity;
+    }
+
+    public double getCompleteness() {
+        return this.completeness;
+    }
+
+    public double getVMeasure() {
+        return this.homogeneity + this.completeness == 0 ? 0 : 2 * this.homogeneity * this.completeness / (this.homogeneity + this.completeness);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("NMI %.6f, AMI %.6f, ARI %.6f, purity %.6f, homogeneity %.6f, completeness %.6f, V-measure %.6f (%d true and %d found clusters)",
+                this.nmi, this.ami, this.ari, this.purity, this.homogeneity, this.completeness, getVMeasure(), this.truthClusters, this.predictedClusters);
+    }
+}
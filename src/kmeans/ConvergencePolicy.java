@@ -0,0 +1,122 @@
+package kmeans;
+
+/**
+ * Decides after every round whether a KmeansClustering run stops.
+ *
+ * A run always stops once a round reassigns no point. The tolerances let it
+ * stop earlier, as soon as any of them is met; a tolerance of 0 is off:
+ * <ul>
+ * <li>center shift: no center moved farther than this distance</li>
+ * <li>SSE improvement: the SSE fell by no more than this fraction of the
+ *     SSE of the round before (rounds that compute the SSE, see
+ *     RoundStatistics.getSse)</li>
+ * <li>reassigned fraction: at most this fraction of the points changed
+ *     their cluster, e.g. a few flip-flopping points</li>
+ * </ul>
+ * After maxRounds rounds the run stops in any case. A run that stops without
+ * converging keeps the round with the lowest SSE instead of failing.
+ * MINI_BATCH has its own tolerance and only uses maxRounds.
+ */
+public class ConvergencePolicy {
+
+    public enum StopReason {
+        // no point changed its cluster
+        CONVERGED,
+        CENTER_SHIFT,
+        SSE_IMPROVEMENT,
+        REASSIGNED_FRACTION,
+        MAX_ROUNDS,
+        // the abandon check of KmeansRestarts stopped the run
+        ABANDONED
+    }
+
+    private int maxRounds = 200;
+    private double centerShiftTolerance = 0;
+    private double sseTolerance = 0;
+    private double reassignedFraction = 0;
+
+    public void setMaxRounds(int maxRounds) throws KmeansException {
+        if(maxRounds < 1)
+            throw new KmeansException("max rounds must be greater then 0");
+
+        this.maxRounds = maxRounds;
+    }
+
+    public void setCenterShiftTolerance(double centerShiftTolerance) throws KmeansException {
+        if(centerShiftTolerance < 0)
+            throw new KmeansException("center shift tolerance must not be negative");
+
+        this.centerShiftTolerance = centerShiftTolerance;
+    }
+
+    public void setSseTolerance(double sseTolerance) throws KmeansException {
+        if(sseTolerance < 0)
+            throw new KmeansException("SSE tolerance must not be negative");
+
+        this.sseTolerance = sseTolerance;
+    }
+
+    public void setReassignedFraction(double reassignedFraction) throws KmeansException {
+        if(reassignedFraction < 0 || reassignedFraction >= 1)
+            throw new KmeansException("reassigned fraction must be in [0, 1)");
+
+        this.reassignedFraction = reassignedFraction;
+    }
+
+    public int getMaxRounds() {
+        return this.maxRounds;
+    }
+
+    public double getCenterShiftTolerance() {
+        return this.centerShiftTolerance;
+    }
+
+    public double getSseTolerance() {
+        return this.sseTolerance;
+    }
+
+    public double getReassignedFraction() {
+        return this.reassignedFraction;
+    }
+
+    /**
+     * Whether check needs the largest center shift of the round.
+     */
+    boolean needsCenterShift() {
+        return this.centerShiftTolerance > 0;
+    }
+
+    ConvergencePolicy copy() {
+        ConvergencePolicy copy = new ConvergencePolicy();
+        copy.maxRounds = this.maxRounds;
+        copy.centerShiftTolerance = this.centerShiftTolerance;
+        copy.sseTolerance = this.sseTolerance;
+        copy.reassignedFraction = this.reassignedFraction;
+        return copy;
+    }
+
+    /**
+     * @param tolerancesApply false for rounds that don't assign all points
+     * @param maxCenterShift only computed if needsCenterShift()
+     * @param sse NaN if the round didn't compute it, as previousSse for the round before
+     * @return null to run another round
+     */
+    StopReason check(int round, boolean changed, boolean tolerancesApply, long reassigned, long rows,
+            double maxCenterShift, double sse, double previousSse) {
+        if(!changed)
+            return StopReason.CONVERGED;
+
+        if(tolerancesApply) {
+            if(this.reassignedFraction > 0 && reassigned <= this.reassignedFraction * rows)
+                return StopReason.REASSIGNED_FRACTION;
+
+            if(this.centerShiftTolerance > 0 && maxCenterShift <= this.centerShiftTolerance)
+                return StopReason.CENTER_SHIFT;
+
+            if(this.sseTolerance > 0 && !Double.isNaN(sse) && !Double.isNaN(previousSse) && previousSse - sse <= this.sseTolerance * previousSse)
+                return StopReason.SSE_IMPROVEMENT;
+        }
+
+        return round >= this.maxRounds ? StopReason.MAX_ROUNDS : null;
+    }
+}
@@ -0,0 +1,705 @@
+package kmeans;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads a delimited text file of numbers into a PointMatrix.
+ *
+ * Every line is tokenized in place on the raw bytes, numbers go through
+ * FastDoubleParser straight into a double[], so no String or boxed value is
+ * created per field. One column may hold the true cluster of the row; its
+ * last run of digits is used as label (e.g. 3 for "cluster3").
+ *
+ * Files are memory mapped and split at line boundaries into segments. A first
+ * parallel pass counts the rows of every segment, then the matrix is allocated
+ * once and every segment parses its lines into its own slice of it. With a
+ * shard set, only the segments holding rows of the shard are parsed and only
+ * those rows are kept.
+ */
+public class CsvLoader {
+
+    public static final int LAST_COLUMN = -1;
+    public static final int NO_LABEL = -2;
+
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final int MAP_WINDOW = 1 << 30;
+    private static final int SEGMENTS_PER_THREAD = 4;
+
+    private char delimiter = ',';
+    private int labelColumn = LAST_COLUMN;
+    private boolean header = false;
+    private int threads = 1;
+    private PointStorage storage = PointStorage.DOUBLE;
+    private int shard = 0;
+    private int shards = 1;
+
+    private PointMatrix points;
+    private int[] labels;
+    private long bytesRead;
+    private long loadNanos;
+
+    // fixed by the first data row of the current load
+    private int dimensions;
+    private int resolvedLabelColumn;
+
+    public void setDelimiter(char delimiter) {
+        this.delimiter = delimiter;
+    }
+
+    /**
+     * The zero based column holding the true cluster, LAST_COLUMN or NO_LABEL.
+     */
+    public void setLabelColumn(int labelColumn) {
+        this.labelColumn = labelColumn;
+    }
+
+    /**
+     * Skips the first line.
+     */
+    public void setHeader(boolean header) {
+        this.header = header;
+    }
+
+    /**
+     * The number of segments parsed at the same time by load(String).
+     */
+    public void setThreads(int threads) throws KmeansException {
+        if(threads < 1)
+            throw new KmeansException("thread count must be greater then 0");
+
+        this.threads = threads;
+    }
+
+    /**
+     * FLOAT parses straight into a float[], INT8 quantizes the float values
+     * once the whole file is read.
+     */
+    public void setStorage(PointStorage storage) {
+        this.storage = storage;
+    }
+
+    /**
+     * Only keeps the rows [shard * rows / shards, (shard + 1) * rows / shards)
+     * of the file, the same rows KmeansWorker.forShard picks from the whole
+     * file. Only load(String) supports shards.
+     */
+    public void setShard(int shard, int shards) throws KmeansException {
+        if(shards < 1)
+            throw new KmeansException("shard count must be greater then 0");
+
+        if(shard < 0 || shard >= shards)
+            throw new KmeansException("shard must be between 0 and " + (shards - 1));
+
+        this.shard = shard;
+        this.shards = shards;
+    }
+
+    public void load(String path) throws KmeansException, IOException {
+        long start = System.nanoTime();
+        this.dimensions = -1;
+
+        MappedByteBuffer[] windows;
+        long size;
+        try (RandomAccessFile file = new RandomAccessFile(path, "r"); FileChannel channel = file.getChannel()) {
+            size = channel.size();
+            windows = new MappedByteBuffer[(int) ((size + MAP_WINDOW - 1) / MAP_WINDOW)];
+            for(int window = 0; window < windows.length; window++) {
+                long offset = (long) window * MAP_WINDOW;
+                windows[window] = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(MAP_WINDOW, size - offset));
+            }
+        }
+
+        long dataStart = this.header ? skipLine(windows, 0, size) : 0;
+        startFirstRow(windows, dataStart, size);
+
+        long[] boundaries = splitSegments(windows, dataStart, size);
+        int segments = boundaries.length - 1;
+
+        try (WorkerPool pool = new WorkerPool(this.threads)) {
+            List<long[]> counts = pool.run(segments, 1, (segment, from, to) -> countLines(new MappedSegmentStream(windows, boundaries[segment], boundaries[segment + 1])));
+
+            long fileRows = 0;
+            long lines = this.header ? 1 : 0;
+            long[] firstRows = new long[segments + 1];
+            long[] firstLines = new long[segments];
+            for(int segment = 0; segment < segments; segment++) {
+                firstRows[segment] = fileRows;
+                firstLines[segment] = lines;
+                lines += counts.get(segment)[0];
+                fileRows += counts.get(segment)[1];
+            }
+            firstRows[segments] = fileRows;
+
+            if(fileRows == 0)
+                throw new KmeansException("no data rows found");
+
+            long keepFrom = fileRows * this.shard / this.shards;
+            long rows = fileRows * (this.shard + 1) / this.shards - keepFrom;
+            if(rows == 0)
+                throw new KmeansException("shard " + this.shard + "/" + this.shards + " has no rows, the file has " + fileRows);
+
+            if(rows * this.dimensions > Integer.MAX_VALUE - 8)
+                throw new KmeansException("too many values for a single point matrix: " + rows + "x" + this.dimensions);
+
+            boolean floats = this.storage != PointStorage.DOUBLE;
+            double[] values = floats ? null : new double[(int) rows * this.dimensions];
+            float[] floatValues = floats ? new float[(int) rows * this.dimensions] : null;
+            int[] rowLabels = this.resolvedLabelColumn >= 0 ? new int[(int) rows] : null;
+
+            pool.run(segments, 1, (segment, from, to) -> {
+                if(firstRows[segment + 1] <= keepFrom || firstRows[segment] >= keepFrom + rows)
+                    return null;
+
+                LineParser parser = new LineParser(values, floatValues, rowLabels, (int) Math.max(0, firstRows[segment] - keepFrom), firstLines[segment], false);
+                parser.skipRows = Math.max(0, keepFrom - firstRows[segment]);
+                parser.endRow = (int) rows;
+                try {
+                    parse(new MappedSegmentStream(windows, boundaries[segment], boundaries[segment + 1]), parser, false);
+                } catch (IOException e) {
+                    throw new KmeansException("reading the input failed: " + e.getMessage());
+                }
+                return null;
+            });
+
+            this.points = floats
+                    ? this.storage.convert(new FloatPointMatrix((int) rows, this.dimensions, floatValues))
+                    : new ArrayPointMatrix((int) rows, this.dimensions, values);
+            this.labels = rowLabels;
+        }
+
+        this.bytesRead = size;
+        this.loadNanos = System.nanoTime() - start;
+    }
+
+    /**
+     * Reads the stream sequentially, for input that can't be mapped. The
+     * matrix wraps the grown parse buffer as it is, so the values aren't
+     * copied once more; its unused tail stays allocated.
+     */
+    public void load(InputStream in) throws KmeansException, IOException {
+        if(this.shards > 1)
+            throw new KmeansException("a shard can only be loaded from a file");
+
+        long start = System.nanoTime();
+        this.dimensions = -1;
+
+        boolean floats = this.storage != PointStorage.DOUBLE;
+        LineParser parser = new LineParser(floats ? null : new double[1024], floats ? new float[1024] : null, this.labelColumn == NO_LABEL ? null : new int[64], 0, 0, true);
+        this.bytesRead = parse(in, parser, this.header);
+
+        if(parser.row == 0)
+            throw new KmeansException("no data rows found");
+
+        this.points = floats
+                ? this.storage.convert(new FloatPointMatrix(parser.row, this.dimensions, parser.floatValues))
+                : new ArrayPointMatrix(parser.row, this.dimensions, parser.values);
+
+        // the labels must match the rows exactly, they are a small copy
+        if(parser.labels == null || this.resolvedLabelColumn < 0)
+            this.labels = null;
+        else
+            this.labels = parser.labels.length == parser.row ? parser.labels : Arrays.copyOf(parser.labels, parser.row);
+
+        this.loadNanos = System.nanoTime() - start;
+    }
+
+    /**
+     * Opens the file for reading in blocks of rows, for files that don't fit
+     * into memory. Labels are skipped; the loader can't be used for another
+     * load while the source is open.
+     */
+    public BlockSource openBlocks(String path) throws KmeansException, IOException {
+        this.dimensions = -1;
+        CsvBlockSource source = new CsvBlockSource(path);
+        try {
+            source.readDimensions();
+        } catch (KmeansException | IOException e) {
+            source.close();
+            throw e;
+        }
+        return source;
+    }
+
+    /**
+     * Feeds the lines of the stream to the parser, block by block.
+     *
+     * @return the number of bytes read
+     */
+    private long parse(InputStream in, LineParser parser, boolean skipFirstLine) throws KmeansException, IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int filled = 0;
+        long total = 0;
+        boolean skipLine = skipFirstLine;
+
+        while(true) {
+            int read = in.read(buffer, filled, buffer.length - filled);
+            if(read > 0) {
+                filled += read;
+                total += read;
+            }
+
+            int lineStart = 0;
+            for(int position = 0; position < filled; position++) {
+                if(buffer[position] != '\n')
+                    continue;
+
+                if(skipLine)
+                    skipLine = false;
+                else
+                    parser.parseLine(buffer, lineStart, position);
+
+                parser.lineNumber++;
+                lineStart = position + 1;
+            }
+
+            if(read < 0) {
+                if(lineStart < filled && !skipLine)
+                    parser.parseLine(buffer, lineStart, filled);
+                return total;
+            }
+
+            // keep the incomplete last line, grow the buffer if a single line doesn't fit
+            int rest = filled - lineStart;
+            if(lineStart == 0 && rest == buffer.length)
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            else
+                System.arraycopy(buffer, lineStart, buffer, 0, rest);
+            filled = rest;
+        }
+    }
+
+    /**
+     * @return the number of lines and of data rows, lines that aren't blank
+     */
+    private static long[] countLines(InputStream in) throws KmeansException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long lines = 0;
+        long rows = 0;
+        boolean content = false;
+
+        try {
+            int read;
+            while((read = in.read(buffer, 0, buffer.length)) > 0) {
+                for(int position = 0; position < read; position++) {
+                    byte b = buffer[position];
+                    if(b == '\n') {
+                        lines++;
+                        if(content)
+                            rows++;
+                        content = false;
+                    } else if(!content && !isPadding(b)) {
+                        content = true;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new KmeansException("reading the input failed: " + e.getMessage());
+        }
+
+        if(content)
+            rows++;
+
+        return new long[] { lines, rows };
+    }
+
+    /**
+     * Splits [from, to) into about SEGMENTS_PER_THREAD segments per thread of at
+     * least BUFFER_SIZE bytes; every segment but the first starts at a line start.
+     */
+    private long[] splitSegments(MappedByteBuffer[] windows, long from, long to) {
+        long length = to - from;
+        int segments = (int) Math.max(1, Math.min((long) this.threads * SEGMENTS_PER_THREAD, length / BUFFER_SIZE));
+        if(this.threads == 1)
+            segments = 1;
+
+        long[] boundaries = new long[segments + 1];
+        boundaries[0] = from;
+        for(int segment = 1; segment < segments; segment++) {
+            long boundary = Math.max(boundaries[segment - 1], from + length * segment / segments);
+            boundaries[segment] = boundary == from ? from : skipLine(windows, boundary - 1, to);
+        }
+        boundaries[segments] = to;
+
+        return boundaries;
+    }
+
+    /**
+     * @return the offset after the next newline at or behind offset
+     */
+    private static long skipLine(MappedByteBuffer[] windows, long offset, long size) {
+        while(offset < size && byteAt(windows, offset) != '\n')
+            offset++;
+
+        return Math.min(offset + 1, size);
+    }
+
+    private static byte byteAt(MappedByteBuffer[] windows, long offset) {
+        return windows[(int) (offset / MAP_WINDOW)].get((int) (offset % MAP_WINDOW));
+    }
+
+    /**
+     * The first data row fixes the number of columns and with it the dimensionality.
+     */
+    private void startFirstRow(MappedByteBuffer[] windows, long offset, long size) throws KmeansException {
+        while(offset < size) {
+            long end = skipLine(windows, offset, size);
+            byte[] line = new byte[(int) Math.min(end - offset, Integer.MAX_VALUE - 8)];
+            for(int i = 0; i < line.length; i++)
+                line[i] = byteAt(windows, offset + i);
+
+            if(!isBlank(line, 0, line.length)) {
+                startFirstRow(line, 0, line.length);
+                return;
+            }
+            offset = end;
+        }
+
+        throw new KmeansException("no data rows found");
+    }
+
+    private void startFirstRow(byte[] buffer, int from, int to) throws KmeansException {
+        int columns = 1;
+        for(int position = from; position < to; position++) {
+            if(buffer[position] == this.delimiter)
+                columns++;
+        }
+
+        if(this.labelColumn == NO_LABEL)
+            this.resolvedLabelColumn = -1;
+        else if(this.labelColumn == LAST_COLUMN)
+            this.resolvedLabelColumn = columns - 1;
+        else if(this.labelColumn >= 0 && this.labelColumn < columns)
+            this.resolvedLabelColumn = this.labelColumn;
+        else
+            throw new KmeansException("label column " + this.labelColumn + " doesn't exist, the file has " + columns + " columns");
+
+        this.dimensions = this.resolvedLabelColumn >= 0 ? columns - 1 : columns;
+        if(this.dimensions < 1)
+            throw new KmeansException("the file has no data columns");
+    }
+
+    private static boolean isPadding(byte b) {
+        return b == ' ' || b == '\t' || b == '"' || b == '\r';
+    }
+
+    private static boolean isBlank(byte[] buffer, int from, int to) {
+        for(int position = from; position < to; position++) {
+            if(!isPadding(buffer[position]))
+                return false;
+        }
+        return true;
+    }
+
+    private static String text(byte[] buffer, int from, int to) {
+        return new String(buffer, from, to - from, StandardCharsets.US_ASCII);
+    }
+
+    public PointMatrix getPoints() {
+        return this.points;
+    }
+
+    /**
+     * The label of every row, null if the file has no label column.
+     */
+    public int[] getLabels() {
+        return this.labels;
+    }
+
+    public long getBytesRead() {
+        return this.bytesRead;
+    }
+
+    public long getLoadNanos() {
+        return this.loadNanos;
+    }
+
+    public double getRowsPerSecond() {
+        return this.points == null || this.loadNanos == 0 ? 0 : this.points.getRows() * 1e9 / this.loadNanos;
+    }
+
+    /**
+     * Parses lines into values (or floatValues) and labels starting at a given
+     * row. Only the sequential load may grow the arrays, segments write into a
+     * fixed slice. The first skipRows data rows and all rows from endRow on
+     * belong to another shard and are passed over.
+     */
+    private class LineParser {
+        double[] values;
+        float[] floatValues;
+        int[] labels;
+        int row;
+        long lineNumber;
+        long skipRows;
+        int endRow = Integer.MAX_VALUE;
+        private final boolean growable;
+
+        LineParser(double[] values, float[] floatValues, int[] labels, int row, long lineNumber, boolean growable) {
+            this.values = values;
+            this.floatValues = floatValues;
+            this.labels = labels;
+            this.row = row;
+            this.lineNumber = lineNumber;
+            this.growable = growable;
+        }
+
+        void parseLine(byte[] buffer, int from, int to) throws KmeansException {
+            if(isBlank(buffer, from, to) || this.row >= this.endRow)
+                return;
+
+            if(this.skipRows > 0) {
+                this.skipRows--;
+                return;
+            }
+
+            if(dimensions == -1)
+                startFirstRow(buffer, from, to);
+
+            int valueOffset = this.row * dimensions;
+            if(this.growable && this.values != null && valueOffset + dimensions > this.values.length)
+                this.values = Arrays.copyOf(this.values, Math.max(valueOffset + dimensions, this.values.length * 2));
+            if(this.growable && this.floatValues != null && valueOffset + dimensions > this.floatValues.length)
+                this.floatValues = Arrays.copyOf(this.floatValues, Math.max(valueOffset + dimensions, this.floatValues.length * 2));
+
+            int column = 0;
+            int dimension = 0;
+            int fieldStart = from;
+            for(int position = from; position <= to; position++) {
+                if(position < to && buffer[position] != delimiter)
+                    continue;
+
+                int fieldEnd = position;
+                while(fieldStart < fieldEnd && isPadding(buffer[fieldStart]))
+                    fieldStart++;
+                while(fieldEnd > fieldStart && isPadding(buffer[fieldEnd - 1]))
+                    fieldEnd--;
+
+                if(column == resolvedLabelColumn) {
+                    int label;
+                    try {
+                        label = FastDoubleParser.parseTrailingInt(buffer, fieldStart, fieldEnd);
+                    } catch (NumberFormatException e) {
+                        throw new KmeansException("line " + (this.lineNumber + 1) + ", column " + (column + 1) + ": label out of range: " + text(buffer, fieldStart, fieldEnd));
+                    }
+                    setLabel(label, buffer, fieldStart, fieldEnd);
+                } else if(dimension < dimensions) {
+                    try {
+                        double value = FastDoubleParser.parse(buffer, fieldStart, fieldEnd);
+                        if(this.values != null)
+                            this.values[valueOffset + dimension] = value;
+                        else
+                            this.floatValues[valueOffset + dimension] = (float) value;
+                    } catch (NumberFormatException e) {
+                        throw new KmeansException("line " + (this.lineNumber + 1) + ", column " + (column + 1) + ": not a number: " + text(buffer, fieldStart, fieldEnd));
+                    }
+                    dimension++;
+                } else {
+                    dimension++;
+                }
+
+                column++;
+                fieldStart = position + 1;
+            }
+
+            int expectedColumns = dimensions + (resolvedLabelColumn >= 0 ? 1 : 0);
+            if(column != expectedColumns)
+                throw new KmeansException("line " + (this.lineNumber + 1) + " has " + column + " columns, expected " + expectedColumns);
+
+            this.row++;
+        }
+
+        private void setLabel(int label, byte[] buffer, int from, int to) throws KmeansException {
+            if(label < 0)
+                throw new KmeansException("line " + (this.lineNumber + 1) + ": label without a number: " + text(buffer, from, to));
+
+            if(this.growable && this.row == this.labels.length)
+                this.labels = Arrays.copyOf(this.labels, this.labels.length * 2);
+
+            this.labels[this.row] = label;
+        }
+    }
+
+    /**
+     * Reads the bytes [from, to) of the mapped file. Every stream works on its
+     * own duplicates of the windows, so segments can be read concurrently.
+     */
+    private static class MappedSegmentStream extends InputStream {
+        private final MappedByteBuffer[] windows;
+        private final ByteBuffer[] duplicates;
+        private final long to;
+        private long position;
+
+        MappedSegmentStream(MappedByteBuffer[] windows, long from, long to) {
+            this.windows = windows;
+            this.duplicates = new ByteBuffer[windows.length];
+            this.position = from;
+            this.to = to;
+        }
+
+        @Override
+        public int read(byte[] target, int offset, int length) {
+            if(this.position >= this.to)
+                return -1;
+
+            int window = (int) (this.position / MAP_WINDOW);
+            int windowOffset = (int) (this.position % MAP_WINDOW);
+            int count = (int) Math.min(Math.min(length, this.to - this.position), this.windows[window].capacity() - windowOffset);
+
+            if(this.duplicates[window] == null)
+                this.duplicates[window] = this.windows[window].duplicate();
+
+            ByteBuffer buffer = this.duplicates[window];
+            buffer.position(windowOffset);
+            buffer.get(target, offset, count);
+
+            this.position += count;
+            return count;
+        }
+
+        @Override
+        public int read() {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) == 1 ? single[0] & 0xFF : -1;
+        }
+    }
+
+    /**
+     * Reads the file sequentially and stops after the line that fills the
+     * block; the remaining bytes stay in the buffer for the next read.
+     */
+    private class CsvBlockSource implements BlockSource {
+        private final String path;
+        private InputStream in;
+        private byte[] buffer = new byte[BUFFER_SIZE];
+        private int start;
+        private int filled;
+        private boolean endOfInput;
+        private boolean skipLine;
+        private long lineNumber;
+        private int[] rowLabels;
+
+        CsvBlockSource(String path) throws IOException {
+            this.path = path;
+            rewind();
+        }
+
+        /**
+         * Looks at the first data line without consuming it.
+         */
+        void readDimensions() throws KmeansException, IOException {
+            int offset = 0;
+            boolean skip = this.skipLine;
+
+            while(dimensions == -1) {
+                int end = indexOfNewline(this.start + offset);
+                if(end < 0 && !this.endOfInput) {
+                    fill();
+                    continue;
+                }
+
+                int lineEnd = end < 0 ? this.filled : end;
+                if(!skip && !isBlank(this.buffer, this.start + offset, lineEnd))
+                    startFirstRow(this.buffer, this.start + offset, lineEnd);
+                else if(end < 0)
+                    throw new KmeansException("no data rows found");
+
+                skip = false;
+                offset = lineEnd + 1 - this.start;
+            }
+        }
+
+        @Override
+        public int getDimensions() {
+            return dimensions;
+        }
+
+        @Override
+        public int read(double[] values, int maxRows) throws KmeansException, IOException {
+            if(resolvedLabelColumn >= 0 && (this.rowLabels == null || this.rowLabels.length < maxRows))
+                this.rowLabels = new int[maxRows];
+
+            LineParser parser = new LineParser(values, null, this.rowLabels, 0, this.lineNumber, false);
+
+            while(parser.row < maxRows) {
+                int end = indexOfNewline(this.start);
+                if(end < 0) {
+                    if(!this.endOfInput) {
+                        fill();
+                        continue;
+                    }
+
+                    if(this.start < this.filled && !this.skipLine)
+                        parser.parseLine(this.buffer, this.start, this.filled);
+                    this.start = this.filled;
+                    break;
+                }
+
+                if(this.skipLine)
+                    this.skipLine = false;
+                else
+                    parser.parseLine(this.buffer, this.start, end);
+
+                parser.lineNumber++;
+                this.start = end + 1;
+            }
+
+            this.lineNumber = parser.lineNumber;
+            return parser.row;
+        }
+
+        private int indexOfNewline(int from) {
+            for(int position = from; position < this.filled; position++) {
+                if(this.buffer[position] == '\n')
+                    return position;
+            }
+            return -1;
+        }
+
+        /**
+         * Moves the unparsed bytes to the front and reads more, growing the
+         * buffer if a single line doesn't fit.
+         */
+        private void fill() throws IOException {
+            if(this.start > 0) {
+                System.arraycopy(this.buffer, this.start, this.buffer, 0, this.filled - this.start);
+                this.filled -= this.start;
+                this.start = 0;
+            } else if(this.filled == this.buffer.length) {
+                this.buffer = Arrays.copyOf(this.buffer, this.buffer.length * 2);
+            }
+
+            int read = this.in.read(this.buffer, this.filled, this.buffer.length - this.filled);
+            if(read < 0)
+                this.endOfInput = true;
+            else
+                this.filled += read;
+        }
+
+        @Override
+        public void rewind() throws IOException {
+            close();
+            this.in = new FileInputStream(this.path);
+            this.start = 0;
+            this.filled = 0;
+            this.endOfInput = false;
+            this.skipLine = header;
+            this.lineNumber = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if(this.in != null) {
+                this.in.close();
+                this.in = null;
+            }
+        }
+    }
+}
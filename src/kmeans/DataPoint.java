@@ -1,103 +1,112 @@
 package kmeans;
 
-import java.util.Arrays;
-import java.util.stream.Collectors;
+import java.util.StringJoiner;
 
+/**
+ * A single point of a PointMatrix. Standalone points get their own one-row matrix.
+ */
 public class DataPoint {
 
-    private final int dimensions;
-    private final Double[] coordinates;
+    private final PointMatrix matrix;
+    private final int row;
     private DataCluster cluster;
-    
+
     public DataPoint(int dimensions) throws KmeansException {
         if(dimensions <= 0)
             throw new KmeansException("dimensionality must be greater then 0");
-        
-        this.dimensions = dimensions;
 
-        this.coordinates = new Double[this.dimensions];
-        
-        for(int i = 0; i < dimensions; i++)
-            set(i, 0d);
+        this.matrix = new ArrayPointMatrix(1, dimensions);
+        this.row = 0;
     }
-    
+
     public DataPoint(double[] coordinates) throws KmeansException {
-        
+
         if(coordinates == null || coordinates.length < 1)
             throw new KmeansException("coordinates must not be null or of dimensionality 0");
 
-        this.dimensions = coordinates.length;
+        this.matrix = new ArrayPointMatrix(1, coordinates.length);
+        this.row = 0;
 
-        this.coordinates = new Double[this.dimensions];
-        
-        for(int i = 0; i < this.dimensions; i++)
-            this.set(i, coordinates[i]);
+        for(int i = 0; i < coordinates.length; i++)
+            this.matrix.set(0, i, coordinates[i]);
     }
-        
+
+    DataPoint(PointMatrix matrix, int row) {
+        this.matrix = matrix;
+        this.row = row;
+    }
+
     public void set(int dimension, double value) throws KmeansException {
-        if(dimension > this.dimensions || dimension < 0)
+        if(dimension >= getDimensions() || dimension < 0)
             throw new KmeansException("invalid dimension passed");
-        
-        this.coordinates[dimension] = value;
+
+        if(this.matrix.isReadOnly())
+            throw new KmeansException("the point is part of a read only point matrix and can't be changed");
+
+        this.matrix.set(this.row, dimension, value);
     }
-    
+
     public double get(int dimension) throws KmeansException {
-        if(dimension > this.dimensions || dimension < 0)
+        if(dimension >= getDimensions() || dimension < 0)
             throw new KmeansException("invalid dimension passed");
-        
-        return this.coordinates[dimension];
+
+        return this.matrix.get(this.row, dimension);
     }
-    
+
     public double getSafe(int dimension) {
-        return this.coordinates[dimension];
+        return this.matrix.get(this.row, dimension);
     }
-            
+
     public int getDimensions() {
-        return this.dimensions;
+        return this.matrix.getDimensions();
+    }
+
+    public PointMatrix getMatrix() {
+        return this.matrix;
     }
-    
+
+    public int getRow() {
+        return this.row;
+    }
+
     public DataPoint add(DataPoint other) throws KmeansException {
-        if(other.dimensions != this.dimensions)
+        if(other.getDimensions() != this.getDimensions())
             throw new KmeansException("cannot add two points with different dimensions");
-        
-        DataPoint dp = new DataPoint(this.dimensions);
-        
-        for (int dimension = 0; dimension < this.dimensions; dimension++) {
-            dp.set(dimension, this.get(dimension) + other.get(dimension));
+
+        DataPoint dp = new DataPoint(this.getDimensions());
+
+        for (int dimension = 0; dimension < this.getDimensions(); dimension++) {
+            dp.set(dimension, this.getSafe(dimension) + other.getSafe(dimension));
         }
-        
+
         return dp;
     }
 
     @Override
     public String toString() {
-        String result = Arrays.stream(this.coordinates).map(c -> c.toString()).collect(Collectors.joining("|"));
-        return result;
+        StringJoiner result = new StringJoiner("|");
+        for(int dimension = 0; dimension < getDimensions(); dimension++)
+            result.add(Double.toString(getSafe(dimension)));
+
+        return result.toString();
     }
-    
+
     public void setCluster(DataCluster cluster) throws KmeansException {
         if(this.cluster != null && this.cluster != cluster)
             throw new KmeansException("Connot set cluster because it is already set");
-        
+
         this.cluster = cluster;
     }
-    
+
     public DataCluster getCluster() {
         return this.cluster;
     }
-    
+
     public double getDistance(DataPoint other) throws KmeansException {
-        if(other.dimensions != this.dimensions)
+        if(other.getDimensions() != this.getDimensions())
             throw new KmeansException("cannot add two points with different dimensions");
-        
-        double sumSquaredDistances = 0;
-        for(int dimension = 0; dimension < getDimensions(); dimension++) {
-            double distance = this.get(dimension) - other.get(dimension);
-            sumSquaredDistances += Math.pow(distance, 2d);
-        }
-        
-        double result = Math.sqrt(sumSquaredDistances);
-        return result;
+
+        return this.matrix.getDistance(this.row, other.matrix, other.row);
     }
-    
+
 }
@@ -0,0 +1,167 @@
+package kmeans;
+
+/**
+ * Allocation free distance loops on primitive arrays.
+ *
+ * Each vector is given as array, offset of its first coordinate and length.
+ * The loops are unrolled by four with independent accumulators, which lets
+ * the JIT keep the partial sums in registers and vectorize the subtraction.
+ */
+public final class DistanceKernel {
+
+    private DistanceKernel() {
+    }
+
+    public static double squaredEuclidean(double[] a, int aOffset, double[] b, int bOffset, int length) {
+        double sum0 = 0, sum1 = 0, sum2 = 0, sum3 = 0;
+        int i = 0;
+
+        for(; i + 3 < length; i += 4) {
+            double d0 = a[aOffset + i] - b[bOffset + i];
+            double d1 = a[aOffset + i + 1] - b[bOffset + i + 1];
+            double d2 = a[aOffset + i + 2] - b[bOffset + i + 2];
+            double d3 = a[aOffset + i + 3] - b[bOffset + i + 3];
+            sum0 += d0 * d0;
+            sum1 += d1 * d1;
+            sum2 += d2 * d2;
+            sum3 += d3 * d3;
+        }
+
+        for(; i < length; i++) {
+            double d = a[aOffset + i] - b[bOffset + i];
+            sum0 += d * d;
+        }
+
+        return (sum0 + sum1) + (sum2 + sum3);
+    }
+
+    public static double manhattan(double[] a, int aOffset, double[] b, int bOffset, int length) {
+        double sum0 = 0, sum1 = 0, sum2 = 0, sum3 = 0;
+        int i = 0;
+
+        for(; i + 3 < length; i += 4) {
+            sum0 += Math.abs(a[aOffset + i] - b[bOffset + i]);
+            sum1 += Math.abs(a[aOffset + i + 1] - b[bOffset + i + 1]);
+            sum2 += Math.abs(a[aOffset + i + 2] - b[bOffset + i + 2]);
+            sum3 += Math.abs(a[aOffset + i + 3] - b[bOffset + i + 3]);
+        }
+
+        for(; i < length; i++)
+            sum0 += Math.abs(a[aOffset + i] - b[bOffset + i]);
+
+        return (sum0 + sum1) + (sum2 + sum3);
+    }
+
+    public static double dot(double[] a, int aOffset, double[] b, int bOffset, int length) {
+        double sum0 = 0, sum1 = 0, sum2 = 0, sum3 = 0;
+        int i = 0;
+
+        for(; i + 3 < length; i += 4) {
+            sum0 += a[aOffset + i] * b[bOffset + i];
+            sum1 += a[aOffset + i + 1] * b[bOffset + i + 1];
+            sum2 += a[aOffset + i + 2] * b[bOffset + i + 2];
+            sum3 += a[aOffset + i + 3] * b[bOffset + i + 3];
+        }
+
+        for(; i < length; i++)
+            sum0 += a[aOffset + i] * b[bOffset + i];
+
+        return (sum0 + sum1) + (sum2 + sum3);
+    }
+
+    /**
+     * 1 - cos(a, b); a zero vector has distance 1 to everything.
+     */
+    public static double cosine(double[] a, int aOffset, double[] b, int bOffset, int length) {
+        double dot = 0, normA = 0, normB = 0;
+
+        for(int i = 0; i < length; i++) {
+            double x = a[aOffset + i];
+            double y = b[bOffset + i];
+            dot += x * y;
+            normA += x * x;
+            normB += y * y;
+        }
+
+        if(normA == 0 || normB == 0)
+            return 1;
+
+        return 1 - dot / Math.sqrt(normA * normB);
+    }
+
+    // float32 points against double centers, accumulated in double
+
+    public static double squaredEuclidean(float[] a, int aOffset, double[] b, int bOffset, int length) {
+        double sum0 = 0, sum1 = 0, sum2 = 0, sum3 = 0;
+        int i = 0;
+
+        for(; i + 3 < length; i += 4) {
+            double d0 = a[aOffset + i] - b[bOffset + i];
+            double d1 = a[aOffset + i + 1] - b[bOffset + i + 1];
+            double d2 = a[aOffset + i + 2] - b[bOffset + i + 2];
+            double d3 = a[aOffset + i + 3] - b[bOffset + i + 3];
+            sum0 += d0 * d0;
+            sum1 += d1 * d1;
+            sum2 += d2 * d2;
+            sum3 += d3 * d3;
+        }
+
+        for(; i < length; i++) {
+            double d = a[aOffset + i] - b[bOffset + i];
+            sum0 += d * d;
+        }
+
+        return (sum0 + sum1) + (sum2 + sum3);
+    }
+
+    public static double manhattan(float[] a, int aOffset, double[] b, int bOffset, int length) {
+        double sum0 = 0, sum1 = 0, sum2 = 0, sum3 = 0;
+        int i = 0;
+
+        for(; i + 3 < length; i += 4) {
+            sum0 += Math.abs(a[aOffset + i] - b[bOffset + i]);
+            sum1 += Math.abs(a[aOffset + i + 1] - b[bOffset + i + 1]);
+            sum2 += Math.abs(a[aOffset + i + 2] - b[bOffset + i + 2]);
+            sum3 += Math.abs(a[aOffset + i + 3] - b[bOffset + i + 3]);
+        }
+
+        for(; i < length; i++)
+            sum0 += Math.abs(a[aOffset + i] - b[bOffset + i]);
+
+        return (sum0 + sum1) + (sum2 + sum3);
+    }
+
+    public static double dot(float[] a, int aOffset, double[] b, int bOffset, int length) {
+        double sum0 = 0, sum1 = 0, sum2 = 0, sum3 = 0;
+        int i = 0;
+
+        for(; i + 3 < length; i += 4) {
+            sum0 += a[aOffset + i] * b[bOffset + i];
+            sum1 += a[aOffset + i + 1] * b[bOffset + i + 1];
+            sum2 += a[aOffset + i + 2] * b[bOffset + i + 2];
+            sum3 += a[aOffset + i + 3] * b[bOffset + i + 3];
+        }
+
+        for(; i < length; i++)
+            sum0 += a[aOffset + i] * b[bOffset + i];
+
+        return (sum0 + sum1) + (sum2 + sum3);
+    }
+
+    public static double cosine(float[] a, int aOffset, double[] b, int bOffset, int length) {
+        double dot = 0, normA = 0, normB = 0;
+
+        for(int i = 0; i < length; i++) {
+            double x = a[aOffset + i];
+            double y = b[bOffset + i];
+            dot += x * y;
+            normA += x * x;
+            normB += y * y;
+        }
+
+        if(normA == 0 || normB == 0)
+            return 1;
+
+        return 1 - dot / Math.sqrt(normA * normB);
+    }
+}
@@ -0,0 +1,103 @@
+package kmeans;
+
+/**
+ * The metrics a clustering can assign points with.
+ *
+ * Searching the closest center only needs a value that orders the same way as
+ * the distance, so EUCLIDEAN compares squared distances and only takes the
+ * square root where a real distance is needed.
+ */
+public enum DistanceMetric {
+    EUCLIDEAN {
+        @Override
+        public double comparableDistance(double[] a, int aOffset, double[] b, int bOffset, int length) {
+            return DistanceKernel.squaredEuclidean(a, aOffset, b, bOffset, length);
+        }
+
+        @Override
+        public double comparableDistance(float[] a, int aOffset, double[] b, int bOffset, int length) {
+            return DistanceKernel.squaredEuclidean(a, aOffset, b, bOffset, length);
+        }
+
+        @Override
+        public double toDistance(double comparableDistance) {
+            return Math.sqrt(comparableDistance);
+        }
+
+        @Override
+        public double squaredDistance(double[] a, int aOffset, double[] b, int bOffset, int length) {
+            return DistanceKernel.squaredEuclidean(a, aOffset, b, bOffset, length);
+        }
+
+        @Override
+        public double squaredDistance(float[] a, int aOffset, double[] b, int bOffset, int length) {
+            return DistanceKernel.squaredEuclidean(a, aOffset, b, bOffset, length);
+        }
+    },
+    MANHATTAN {
+        @Override
+        public double comparableDistance(double[] a, int aOffset, double[] b, int bOffset, int length) {
+            return DistanceKernel.manhattan(a, aOffset, b, bOffset, length);
+        }
+
+        @Override
+        public double comparableDistance(float[] a, int aOffset, double[] b, int bOffset, int length) {
+            return DistanceKernel.manhattan(a, aOffset, b, bOffset, length);
+        }
+    },
+    COSINE {
+        @Override
+        public double comparableDistance(double[] a, int aOffset, double[] b, int bOffset, int length) {
+            return DistanceKernel.cosine(a, aOffset, b, bOffset, length);
+        }
+
+        @Override
+        public double comparableDistance(float[] a, int aOffset, double[] b, int bOffset, int length) {
+            return DistanceKernel.cosine(a, aOffset, b, bOffset, length);
+        }
+
+        @Override
+        public boolean isTriangleInequalityValid() {
+            return false;
+        }
+    };
+
+    public abstract double comparableDistance(double[] a, int aOffset, double[] b, int bOffset, int length);
+
+    /**
+     * The same for float32 points, see FloatPointMatrix.
+     */
+    public abstract double comparableDistance(float[] a, int aOffset, double[] b, int bOffset, int length);
+
+    public double toDistance(double comparableDistance) {
+        return comparableDistance;
+    }
+
+    public double distance(double[] a, int aOffset, double[] b, int bOffset, int length) {
+        return toDistance(comparableDistance(a, aOffset, b, bOffset, length));
+    }
+
+    public double distance(float[] a, int aOffset, double[] b, int bOffset, int length) {
+        return toDistance(comparableDistance(a, aOffset, b, bOffset, length));
+    }
+
+    /**
+     * The squared distance, the weight of D^2 sampling.
+     */
+    public double squaredDistance(double[] a, int aOffset, double[] b, int bOffset, int length) {
+        double distance = distance(a, aOffset, b, bOffset, length);
+        return distance * distance;
+    }
+
+    public double squaredDistance(float[] a, int aOffset, double[] b, int bOffset, int length) {
+        double distance = distance(a, aOffset, b, bOffset, length);
+        return distance * distance;
+    }
+
+    /**
+     * Whether bounds based on the triangle inequality (HAMERLY) may be used with this metric.
+     */
+    public boolean isTriangleInequalityValid() {
+        return true;
+    }
+}
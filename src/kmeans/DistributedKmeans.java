@@ -0,0 +1,311 @@
+package kmeans;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * The coordinator of a Lloyd k-means run over workers that each hold a shard
+ * of the data set, see KmeansWorker.
+ *
+ * Every round the centers are broadcast and every worker answers with the
+ * per cluster sums and counts of its shard, so only k x d values travel per
+ * worker and round. The partials are reduced in shard order, which makes the
+ * result independent of the order the workers connected in. Unless initial
+ * centers are given, the workers send one small uniform sample at the start
+ * and the centers are seeded with k-means++ on it.
+ *
+ * The run stops like a KmeansClustering run, see ConvergencePolicy; the
+ * workers also report how many of their rows changed the cluster and the
+ * SSE of their rows, and the centers of the last round are kept.
+ */
+public class DistributedKmeans {
+
+    // message types, the first byte of every message
+    static final byte INFO = 1;
+    static final byte SAMPLE = 2;
+    static final byte SAMPLE_ROWS = 3;
+    static final byte ROUND = 4;
+    static final byte PARTIAL = 5;
+    static final byte STOP = 6;
+    // a worker failed to answer, followed by the message as UTF-8
+    static final byte ERROR = 7;
+
+    private static final int SAMPLE_ROWS_PER_CLUSTER = 256;
+
+    private final Transport transport;
+    private final int k;
+    private final Random random;
+    private ConvergencePolicy convergencePolicy = new ConvergencePolicy();
+    private DistanceMetric metric = DistanceMetric.EUCLIDEAN;
+
+    // peers sorted by shard and the rows of each of them
+    private int[] peers;
+    private long[] peerRows;
+    private long rows;
+    private int dimensions;
+
+    private double[] centers;
+    private long[] clusterSizes;
+    private int roundCount;
+    private ConvergencePolicy.StopReason stopReason;
+
+    // of the last round, summed over all workers
+    private long reassignedRows;
+    private double roundSse;
+
+    public DistributedKmeans(Transport transport, int k, int seed) throws KmeansException {
+        if(k < 1)
+            throw new KmeansException("k must be greater then 0");
+
+        this.transport = transport;
+        this.k = k;
+        this.random = seed == -1 ? new Random() : new Random(seed);
+    }
+
+    /**
+     * Same as setMaxRounds on the convergence policy.
+     */
+    public void setMaxRounds(int maxRounds) throws KmeansException {
+        this.convergencePolicy.setMaxRounds(maxRounds);
+    }
+
+    /**
+     * Decides when run stops, the policy is copied.
+     */
+    public void setConvergencePolicy(ConvergencePolicy convergencePolicy) {
+        this.convergencePolicy = convergencePolicy.copy();
+    }
+
+    public void setMetric(DistanceMetric metric) {
+        this.metric = metric;
+    }
+
+    /**
+     * Starts from the given k centers, row-major, instead of sampling. Their
+     * dimensionality is checked against the workers before the first round.
+     */
+    public void setInitialCenters(double[] centers) throws KmeansException {
+        if(centers.length == 0 || centers.length % this.k != 0)
+            throw new KmeansException("expected " + this.k + " centers of the same dimensionality but got " + centers.length + " values");
+
+        this.centers = centers.clone();
+    }
+
+    public void run() throws KmeansException {
+        try {
+            try {
+                connectWorkers();
+
+                if(this.centers == null)
+                    this.centers = sampleCenters();
+
+                this.stopReason = null;
+                double sse = Double.NaN;
+                do {
+                    double[] previousCenters = this.centers.clone();
+                    double previousSse = sse;
+
+                    runRound();
+                    this.roundCount++;
+                    sse = this.roundSse;
+
+                    double maxCenterShift = this.convergencePolicy.needsCenterShift() ? getMaxCenterShift(previousCenters) : Double.NaN;
+                    this.stopReason = this.convergencePolicy.check(this.roundCount, this.reassignedRows > 0, true,
+                            this.reassignedRows, this.rows, maxCenterShift, sse, previousSse);
+                } while(this.stopReason == null);
+            } finally {
+                stopWorkers();
+            }
+        } catch (IOException e) {
+            throw new KmeansException("communication with the workers failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Every worker introduces itself with its shard index, shard count, row
+     * count and dimensionality. The shards must be exactly 0 to n - 1 of n,
+     * n being the number of workers, or rows would be missing or counted twice.
+     */
+    private void connectWorkers() throws KmeansException, IOException {
+        int peerCount = this.transport.getPeerCount();
+        long[][] infos = new long[peerCount][];
+
+        for(int peer = 0; peer < peerCount; peer++) {
+            ByteBuffer message = receive(peer, INFO);
+            infos[peer] = new long[] { message.getInt(), message.getInt(), message.getLong(), message.getInt(), peer };
+
+            if(infos[peer][1] != peerCount)
+                throw new KmeansException("worker " + peer + " holds shard " + infos[peer][0] + "/" + infos[peer][1] + " but there are " + peerCount + " workers");
+        }
+
+        Arrays.sort(infos, (a, b) -> Long.compare(a[0], b[0]));
+
+        this.peers = new int[peerCount];
+        this.peerRows = new long[peerCount];
+        this.dimensions = (int) infos[0][3];
+        this.rows = 0;
+        for(int index = 0; index < peerCount; index++) {
+            if(index > 0 && infos[index][0] == infos[index - 1][0])
+                throw new KmeansException("two workers hold shard " + infos[index][0]);
+
+            if(infos[index][0] != index)
+                throw new KmeansException("no worker holds shard " + index + "/" + peerCount);
+
+            if(infos[index][3] != this.dimensions)
+                throw new KmeansException("shard " + infos[index][0] + " has " + infos[index][3] + " dimensions, expected " + this.dimensions);
+
+            this.peers[index] = (int) infos[index][4];
+            this.peerRows[index] = infos[index][2];
+            this.rows += infos[index][2];
+        }
+
+        if(this.rows < this.k)
+            throw new KmeansException("the data set has fewer rows (" + this.rows + ") than clusters (" + this.k + ")");
+
+        if(this.centers != null && this.centers.length != this.k * this.dimensions)
+            throw new KmeansException("the initial centers have " + this.centers.length / this.k + " dimensions but the workers " + this.dimensions);
+    }
+
+    /**
+     * Asks every worker for its share of k * SAMPLE_ROWS_PER_CLUSTER rows and
+     * runs k-means++ on them.
+     */
+    private double[] sampleCenters() throws KmeansException, IOException {
+        long sampleRows = Math.min(this.rows, (long) this.k * SAMPLE_ROWS_PER_CLUSTER);
+
+        for(int index = 0; index < this.peers.length; index++) {
+            int count = (int) Math.min(this.peerRows[index], (sampleRows * this.peerRows[index] + this.rows - 1) / this.rows);
+            ByteBuffer message = ByteBuffer.allocate(1 + Integer.BYTES + Long.BYTES);
+            message.put(SAMPLE).putInt(count).putLong(this.random.nextLong());
+            this.transport.send(this.peers[index], message.array());
+        }
+
+        double[] sample = new double[0];
+        int filled = 0;
+        for(int index = 0; index < this.peers.length; index++) {
+            ByteBuffer message = receive(this.peers[index], SAMPLE_ROWS);
+            int count = message.getInt();
+
+            sample = Arrays.copyOf(sample, (filled + count) * this.dimensions);
+            message.asDoubleBuffer().get(sample, filled * this.dimensions, count * this.dimensions);
+            filled += count;
+        }
+
+        try (WorkerPool pool = new WorkerPool(1)) {
+            return KmeansSeeding.kmeansPlusPlus(new ArrayPointMatrix(filled, this.dimensions, sample), this.k, this.metric, this.random, pool);
+        }
+    }
+
+    private double getMaxCenterShift(double[] previousCenters) {
+        double maxCenterShift = 0;
+        for(int cluster = 0; cluster < this.k; cluster++) {
+            double shift = this.metric.distance(previousCenters, cluster * this.dimensions, this.centers, cluster * this.dimensions, this.dimensions);
+            maxCenterShift = Math.max(maxCenterShift, shift);
+        }
+
+        return maxCenterShift;
+    }
+
+    /**
+     * Sums the partials of all workers into reassignedRows, roundSse and the new centers.
+     */
+    private void runRound() throws KmeansException, IOException {
+        ByteBuffer round = ByteBuffer.allocate(1 + 3 * Integer.BYTES + this.centers.length * Double.BYTES);
+        round.put(ROUND).putInt(this.metric.ordinal()).putInt(this.k).putInt(this.dimensions);
+        round.asDoubleBuffer().put(this.centers);
+
+        for(int peer : this.peers)
+            this.transport.send(peer, round.array());
+
+        double[] sums = new double[this.k * this.dimensions];
+        double[] partialSums = new double[sums.length];
+        long[] counts = new long[this.k];
+        this.reassignedRows = 0;
+        this.roundSse = 0;
+
+        for(int peer : this.peers) {
+            ByteBuffer message = receive(peer, PARTIAL);
+            this.reassignedRows += message.getLong();
+            this.roundSse += message.getDouble();
+
+            for(int cluster = 0; cluster < this.k; cluster++)
+                counts[cluster] += message.getLong();
+
+            message.asDoubleBuffer().get(partialSums);
+            for(int i = 0; i < sums.length; i++)
+                sums[i] += partialSums[i];
+        }
+
+        // an empty cluster keeps its center, like KmeansCluster.updateClusterCenter
+        for(int cluster = 0; cluster < this.k; cluster++) {
+            if(counts[cluster] == 0)
+                continue;
+
+            for(int dimension = 0; dimension < this.dimensions; dimension++)
+                this.centers[cluster * this.dimensions + dimension] = sums[cluster * this.dimensions + dimension] / counts[cluster];
+        }
+
+        this.clusterSizes = counts;
+    }
+
+    /**
+     * The next message of the peer, which must be of the given type; an
+     * ERROR of the worker is rethrown.
+     */
+    private ByteBuffer receive(int peer, byte type) throws KmeansException, IOException {
+        ByteBuffer message = ByteBuffer.wrap(this.transport.receive(peer));
+        if(message.hasRemaining() && message.get(0) == ERROR)
+            throw new KmeansException("worker " + peer + " failed: " + new String(message.array(), 1, message.remaining() - 1, StandardCharsets.UTF_8));
+
+        if(!message.hasRemaining() || message.get() != type)
+            throw new KmeansException("unexpected message from worker " + peer + ", expected type " + type);
+
+        return message;
+    }
+
+    /**
+     * Tells every worker to finish, also after a failure, so no worker waits forever.
+     */
+    private void stopWorkers() throws IOException {
+        IOException failure = null;
+        for(int peer = 0; peer < this.transport.getPeerCount(); peer++) {
+            try {
+                this.transport.send(peer, new byte[] { STOP });
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+
+        if(failure != null)
+            throw failure;
+    }
+
+    /**
+     * The centers after the last round, one row per cluster.
+     */
+    public PointMatrix getCenters() throws KmeansException {
+        return new ArrayPointMatrix(this.k, this.dimensions, this.centers.clone());
+    }
+
+    public long[] getClusterSizes() {
+        return this.clusterSizes.clone();
+    }
+
+    public long getRows() {
+        return this.rows;
+    }
+
+    public int getRoundCount() {
+        return this.roundCount;
+    }
+
+    /**
+     * Why the last run stopped, null before a run.
+     */
+    public ConvergencePolicy.StopReason getStopReason() {
+        return this.stopReason;
+    }
+}
@@ -0,0 +1,249 @@
+package kmeans;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Parses decimal numbers straight from ASCII bytes.
+ *
+ * Numbers with at most 15 significant digits and a decimal exponent within
+ * +-22 are exact as mantissa * 10^exponent or mantissa / 10^-exponent, since
+ * both factors are exactly representable doubles (Clinger's fast path).
+ * Numbers with up to 19 digits, like the 17 digits Double.toString writes,
+ * are multiplied with a 128 bit approximation of the power of ten instead
+ * (Eisel-Lemire). The few inputs where that product can't decide the rounding,
+ * and everything else, go through Double.parseDouble, so the result is always
+ * correctly rounded.
+ */
+final class FastDoubleParser {
+
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+        1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    private static final int MAX_FAST_DIGITS = 15;
+    private static final int MAX_EXACT_DIGITS = 19;
+
+    // 5^q for q in [MIN_POWER, MAX_POWER], normalized to 128 bits and split into high and low half
+    private static final int MIN_POWER = -342;
+    private static final int MAX_POWER = 308;
+    private static final long[] POWERS_OF_FIVE_HIGH = new long[MAX_POWER - MIN_POWER + 1];
+    private static final long[] POWERS_OF_FIVE_LOW = new long[MAX_POWER - MIN_POWER + 1];
+
+    static {
+        BigInteger mask = BigInteger.ONE.shiftLeft(64).subtract(BigInteger.ONE);
+
+        for(int q = MIN_POWER; q <= MAX_POWER; q++) {
+            BigInteger value;
+
+            if(q < 0) {
+                BigInteger power = BigInteger.valueOf(5).pow(-q);
+                int bits = power.bitLength();
+                // reciprocal rounded up, as in the reference tables of the algorithm
+                value = BigInteger.ONE.shiftLeft(q >= -27 ? bits + 127 : 2 * bits + 128).divide(power).add(BigInteger.ONE);
+            } else {
+                value = BigInteger.valueOf(5).pow(q);
+            }
+
+            int shift = value.bitLength() - 128;
+            value = shift > 0 ? value.shiftRight(shift) : value.shiftLeft(-shift);
+
+            POWERS_OF_FIVE_HIGH[q - MIN_POWER] = value.shiftRight(64).longValue();
+            POWERS_OF_FIVE_LOW[q - MIN_POWER] = value.and(mask).longValue();
+        }
+    }
+
+    private FastDoubleParser() {
+    }
+
+    /**
+     * @throws NumberFormatException if bytes[from .. to) isn't a number
+     */
+    static double parse(byte[] bytes, int from, int to) {
+        int position = from;
+        boolean negative = false;
+
+        if(position < to && (bytes[position] == '-' || bytes[position] == '+'))
+            negative = bytes[position++] == '-';
+
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean anyDigit = false;
+
+        // leading zeros don't count as significant digits
+        while(position < to && bytes[position] == '0') {
+            position++;
+            anyDigit = true;
+        }
+
+        for(; position < to && isDigit(bytes[position]); position++) {
+            anyDigit = true;
+            if(digits < 19) {
+                mantissa = mantissa * 10 + (bytes[position] - '0');
+            } else {
+                exponent++;
+            }
+            digits++;
+        }
+
+        if(position < to && bytes[position] == '.') {
+            position++;
+
+            if(digits == 0) {
+                while(position < to && bytes[position] == '0') {
+                    position++;
+                    exponent--;
+                    anyDigit = true;
+                }
+            }
+
+            for(; position < to && isDigit(bytes[position]); position++) {
+                anyDigit = true;
+                if(digits < 19) {
+                    mantissa = mantissa * 10 + (bytes[position] - '0');
+                    exponent--;
+                }
+                digits++;
+            }
+        }
+
+        if(!anyDigit)
+            return parseSlow(bytes, from, to);
+
+        if(position < to && (bytes[position] == 'e' || bytes[position] == 'E')) {
+            position++;
+            boolean negativeExponent = false;
+            if(position < to && (bytes[position] == '-' || bytes[position] == '+'))
+                negativeExponent = bytes[position++] == '-';
+
+            if(position == to || !isDigit(bytes[position]))
+                return parseSlow(bytes, from, to);
+
+            int explicitExponent = 0;
+            for(; position < to && isDigit(bytes[position]); position++) {
+                if(explicitExponent < 100000)
+                    explicitExponent = explicitExponent * 10 + (bytes[position] - '0');
+            }
+            exponent += negativeExponent ? -explicitExponent : explicitExponent;
+        }
+
+        if(position != to)
+            return parseSlow(bytes, from, to);
+
+        double value;
+        if(digits <= MAX_FAST_DIGITS && exponent >= -22 && exponent <= 22) {
+            value = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent] : mantissa * POWERS_OF_TEN[exponent];
+        } else if(mantissa == 0) {
+            value = 0;
+        } else if(digits <= MAX_EXACT_DIGITS && exponent >= MIN_POWER && exponent <= MAX_POWER) {
+            value = eiselLemire(mantissa, exponent);
+            if(Double.isNaN(value))
+                return parseSlow(bytes, from, to);
+        } else {
+            return parseSlow(bytes, from, to);
+        }
+
+        return negative ? -value : value;
+    }
+
+    /**
+     * mantissa * 10^exponent correctly rounded, NaN if the 128 bit product
+     * isn't precise enough to tell or the result is subnormal or infinite.
+     */
+    private static double eiselLemire(long mantissa, int exponent) {
+        int leadingZeros = Long.numberOfLeadingZeros(mantissa);
+        long normalized = mantissa << leadingZeros;
+
+        int index = exponent - MIN_POWER;
+        long high = multiplyHigh(normalized, POWERS_OF_FIVE_HIGH[index]);
+        long low = normalized * POWERS_OF_FIVE_HIGH[index];
+
+        // the 9 bits below the result are all ones: a carry from the lower half could still change it
+        if((high & 0x1FF) == 0x1FF) {
+            long secondHigh = multiplyHigh(normalized, POWERS_OF_FIVE_LOW[index]);
+            long sum = low + secondHigh;
+            if(Long.compareUnsigned(sum, low) < 0)
+                high++;
+            low = sum;
+
+            if((high & 0x1FF) == 0x1FF && low == -1L)
+                return Double.NaN;
+        }
+
+        int upperBit = (int) (high >>> 63);
+        long significand = high >>> (upperBit + 9);
+        // floor(log2(10^exponent)) + 63 + bias
+        int binaryExponent = (int) ((((152170L + 65536L) * exponent) >> 16) + 63) + upperBit - leadingZeros + 1023;
+
+        if(binaryExponent <= 0)
+            return Double.NaN;
+
+        // exactly halfway between two doubles: round to even
+        if((low == 0 || low == 1) && exponent >= -4 && exponent <= 23 && (significand & 3) == 1 && significand << (upperBit + 9) == high)
+            significand &= ~1L;
+
+        significand += significand & 1;
+        significand >>>= 1;
+        if(significand >= (1L << 53)) {
+            significand = 1L << 52;
+            binaryExponent++;
+        }
+
+        if(binaryExponent >= 0x7FF)
+            return Double.NaN;
+
+        return Double.longBitsToDouble((significand & ~(1L << 52)) | ((long) binaryExponent << 52));
+    }
+
+    /**
+     * The upper 64 bits of the unsigned 128 bit product.
+     */
+    private static long multiplyHigh(long a, long b) {
+        long aHigh = a >>> 32;
+        long aLow = a & 0xFFFFFFFFL;
+        long bHigh = b >>> 32;
+        long bLow = b & 0xFFFFFFFFL;
+
+        long lowLow = aLow * bLow;
+        long highLow = aHigh * bLow;
+        long cross = (lowLow >>> 32) + (highLow & 0xFFFFFFFFL) + aLow * bHigh;
+
+        return aHigh * bHigh + (highLow >>> 32) + (cross >>> 32);
+    }
+
+    /**
+     * The last run of digits in bytes[from .. to), e.g. 12 for "cluster12".
+     *
+     * @return -1 if there are no digits
+     */
+    static int parseTrailingInt(byte[] bytes, int from, int to) {
+        int end = to;
+        while(end > from && !isDigit(bytes[end - 1]))
+            end--;
+
+        if(end == from)
+            return -1;
+
+        int start = end;
+        while(start > from && isDigit(bytes[start - 1]))
+            start--;
+
+        long value = 0;
+        for(int position = start; position < end; position++) {
+            value = value * 10 + (bytes[position] - '0');
+            if(value > Integer.MAX_VALUE)
+                throw new NumberFormatException("label out of range: " + new String(bytes, from, to - from, StandardCharsets.US_ASCII));
+        }
+
+        return (int) value;
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    private static double parseSlow(byte[] bytes, int from, int to) {
+        return Double.parseDouble(new String(bytes, from, to - from, StandardCharsets.US_ASCII));
+    }
+}
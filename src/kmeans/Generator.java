@@ -10,6 +10,8 @@ public class Generator {
     private final int dimensionality;
     private final Random random;
     private DataCluster[] clusters;
+    private PointMatrix points;
+    private int[] labels;
     
     private final double deviation = 0.5;
     
@@ -27,16 +29,23 @@ public class Generator {
     }
     
     public void generate() throws KmeansException {
+        this.points = new ArrayPointMatrix(this.clusterCount * this.dataPointsCount, this.dimensionality);
+        this.labels = new int[this.points.getRows()];
+        int row = 0;
+        
         for(int clusterIndex = 0; clusterIndex < this.clusterCount; clusterIndex++) {
             DataPoint clusterCenter = generateSinglePoint(() -> this.random.nextDouble() * this.clusterCount);
             DataCluster cluster = new DataCluster(clusterIndex, clusterCenter);
             
-            for(int dataPoint = 0; dataPoint < this.dataPointsCount; dataPoint++) {
-                DataPoint dp = generateSinglePoint(() -> this.random.nextGaussian() * this.deviation);
+            for(int dataPoint = 0; dataPoint < this.dataPointsCount; dataPoint++, row++) {
+                for(int dimension = 0; dimension < this.dimensionality; dimension++) {
+                    // move point towards its cluster center
+                    double value = this.random.nextGaussian() * this.deviation;
+                    this.points.set(row, dimension, value + clusterCenter.getSafe(dimension));
+                }
                 
-                // move point towards its cluster center
-                dp = dp.add(clusterCenter);
-                cluster.add(dp);
+                this.labels[row] = clusterIndex;
+                cluster.add(this.points.getPoint(row));
             }
             
             clusters[clusterIndex] = cluster;
@@ -57,4 +66,15 @@ public class Generator {
     public DataCluster[] getClusters() {
         return this.clusters;
     }
+    
+    public PointMatrix getPoints() {
+        return this.points;
+    }
+    
+    /**
+     * The index of the generation cluster of every row in getPoints().
+     */
+    public int[] getLabels() {
+        return this.labels;
+    }
 }
@@ -12,33 +12,33 @@ import java.util.Random;
  */
 public class Hasher {
     
-    private DataPoint[] dataPoints;
-    private DataPoint[] hashes;
+    private PointMatrix dataPoints;
+    private PointMatrix hashes;
     private double[][] hashFunctions;
     private int numberOfHashes;
     private int dimensionOfPoints;
     
-    public Hasher(DataPoint[] dataPoints, int numberOfHashes) throws KmeansException {
-        this.dataPoints = dataPoints;
-        this.hashes = new DataPoint[this.dataPoints.length];
-        for (int i = 0; i < this.dataPoints.length; i++){
-            this.hashes[i] = new DataPoint(numberOfHashes);
-        }
+    public Hasher(PointMatrix dataPoints, int numberOfHashes) throws KmeansException {
+        this(dataPoints, numberOfHashes, -1);
+    }
+    
+    public Hasher(PointMatrix dataPoints, int numberOfHashes, long seed) throws KmeansException {
         if (numberOfHashes < 1) {
             throw new KmeansException("Number of hashes must be greater then 0.");
         }
+        this.dataPoints = dataPoints;
         this.numberOfHashes = numberOfHashes;// how many hash functions I will use
-        this.dimensionOfPoints = dataPoints.length > 0 ? dataPoints[0].getDimensions() : 0;
+        this.dimensionOfPoints = dataPoints.getDimensions();
         this.hashFunctions = new double[this.numberOfHashes][this.dimensionOfPoints];
-        generateHashFunction();
+        generateHashFunction(seed == -1 ? new Random() : new Random(seed));
     }
     
-    private double getHashOfPoint(DataPoint point, double[] hashFunction) throws KmeansException {
-        double hashValue = 0;
-        for (int i = 0; i < this.dimensionOfPoints; i++){
-            hashValue += point.get(i)*hashFunction[i];
-        }
-        return hashValue;
+    private double getHashOfPoint(DataPoint point, double[] hashFunction) {
+        return point.getMatrix().dot(point.getRow(), hashFunction, 0);
+    }
+    
+    private double getHashOfRow(int row, double[] hashFunction) {
+        return this.dataPoints.dot(row, hashFunction, 0);
     }
     
     public DataPoint getAllHashesOfPoint(DataPoint point) throws KmeansException { //vector of hashes
@@ -49,8 +49,7 @@ public class Hasher {
         return hash;
     }
     
-    private void generateHashFunction(){//hash function is vector of coeficients from N(0,1)
-        Random random = new Random();
+    private void generateHashFunction(Random random){//hash function is vector of coeficients from N(0,1)
         for (int j = 0; j < this.numberOfHashes; j++){
             for (int i = 0; i < this.dimensionOfPoints; i++){
                 this.hashFunctions[j][i] = random.nextGaussian();
@@ -58,14 +57,43 @@ public class Hasher {
         }
     }
     
-    public DataPoint[] getHashes() throws KmeansException {
-        for (int j = 0; j < this.dataPoints.length; j++){
-            DataPoint hash = getAllHashesOfPoint(this.dataPoints[j]);
-            this.hashes[j] = hash;
+    /**
+     * Hashes all data points; row i of the result holds the hashes of row i of the data.
+     */
+    public PointMatrix getHashes() throws KmeansException {
+        if (this.hashes == null) {
+            this.hashes = new ArrayPointMatrix(this.dataPoints.getRows(), this.numberOfHashes);
+        }
+        for (int row = 0; row < this.dataPoints.getRows(); row++){
+            for (int j = 0; j < this.numberOfHashes; j++){
+                this.hashes.set(row, j, getHashOfRow(row, hashFunctions[j]));
+            }
         }
         return this.hashes;
     }
     
+    /**
+     * Writes all hashes of a row of the data points to target[0 .. numberOfHashes - 1].
+     */
+    public void getHashesOfRow(int row, double[] target) {
+        for (int j = 0; j < this.numberOfHashes; j++){
+            target[j] = getHashOfRow(row, hashFunctions[j]);
+        }
+    }
+    
+    /**
+     * Writes all hashes of point[offset ..] to target[0 .. numberOfHashes - 1].
+     */
+    public void getHashesOfPoint(double[] point, int offset, double[] target) {
+        for (int j = 0; j < this.numberOfHashes; j++){
+            target[j] = DistanceKernel.dot(point, offset, hashFunctions[j], 0, this.dimensionOfPoints);
+        }
+    }
+    
+    public int getNumberOfHashes(){
+        return this.numberOfHashes;
+    }
+    
     public double[] getHashFunction(int n){
         return this.hashFunctions[n];
     }
@@ -1,19 +1,17 @@
 package kmeans;
 
 import java.awt.Rectangle;
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
-import java.util.List;
-import java.util.Scanner;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import org.jfree.chart.ChartFactory;
 import org.jfree.chart.ChartFrame;
@@ -34,11 +32,50 @@ public class KmeansApplication {
     private int seed;
     
     private int clusterCountKmeans;
+    private int threads;
     
     private KmeansClustering.Algorithm algorithm;
+    private boolean useHashing;
+    private DistanceMetric metric;
+    private int lshTables;
+    private int lshHashesPerTable;
+    private double lshBucketWidth;
     private KmeansClustering.InitializationStrategy initializationStrategy;
+    private int batchSize;
+    private double batchTolerance;
     
     private String outputFilename;
+    private String inputFilename;
+    private int labelColumn;
+    private char delimiter;
+    private boolean header;
+    private String binaryFilename;
+    private boolean binaryFloats;
+    private PointStorage storage;
+    private boolean compareDouble;
+    private boolean outOfCore;
+    private long memoryBudget;
+    private int prefetchBlocks;
+    private String assignmentFilename;
+    private String modelFilename;
+    private String saveModelFilename;
+    private boolean modelAssignments;
+    private String warmStartFilename;
+    private KmeansModel warmStart;
+    private int coordinatorPort;
+    private int workerCount;
+    private String workerAddress;
+    private int shard;
+    private int shards;
+    private int silhouetteSample;
+    private int sweepMinK;
+    private int sweepMaxK;
+    private int sweepSeeds;
+    private int gapReferences;
+    private KmeansSweep.Criterion sweepCriterion;
+    private int restarts;
+    private ConvergencePolicy convergencePolicy;
+    private double abandonMargin;
     
     public static void main(String[] args) throws IOException {
         try {
@@ -80,14 +117,178 @@ public class KmeansApplication {
         opt_macqueen.setRequired(false);
         options.addOption(opt_macqueen);
         
+        Option opt_algorithm = new Option("a", "algorithm", true, "lloyd, macqueen, hamerly or mini_batch (default=lloyd)");
+        opt_algorithm.setRequired(false);
+        options.addOption(opt_algorithm);
+        
+        Option opt_batch_size = new Option(null, "batch-size", true, "points per mini_batch round (default=1024)");
+        opt_batch_size.setRequired(false);
+        options.addOption(opt_batch_size);
+        
+        Option opt_batch_tolerance = new Option(null, "batch-tolerance", true, "mini_batch stops when the centers move less than this times the spread of the data (default=0.001)");
+        opt_batch_tolerance.setRequired(false);
+        options.addOption(opt_batch_tolerance);
+        
+        Option opt_metric = new Option(null, "metric", true, "euclidean, manhattan or cosine (default=euclidean)");
+        opt_metric.setRequired(false);
+        options.addOption(opt_metric);
+        
+        Option opt_no_lsh = new Option(null, "no-lsh", false, "compare every point with every center instead of using LSH buckets");
+        opt_no_lsh.setRequired(false);
+        options.addOption(opt_no_lsh);
+        
+        Option opt_lsh_tables = new Option(null, "lsh-tables", true, "number of LSH hash tables (default=2)");
+        opt_lsh_tables.setRequired(false);
+        options.addOption(opt_lsh_tables);
+        
+        Option opt_lsh_hashes = new Option(null, "lsh-hashes", true, "number of hashes per LSH table (default=2)");
+        opt_lsh_hashes.setRequired(false);
+        options.addOption(opt_lsh_hashes);
+        
+        Option opt_lsh_width = new Option(null, "lsh-width", true, "width of the LSH buckets (default=10)");
+        opt_lsh_width.setRequired(false);
+        options.addOption(opt_lsh_width);
+        
         Option opt_r = new Option("r", "random-points", false, "use initialization strategy 'random points as initial centroids'");
         opt_r.setRequired(false);
         options.addOption(opt_r);
         
+        Option opt_init = new Option("i", "initialization", true, "random-partition, random-points, kmeans++ or kmeans-parallel (default=random-partition)");
+        opt_init.setRequired(false);
+        options.addOption(opt_init);
+        
+        Option opt_input = new Option("f", "input-filename", true, "csv or binary data set file with the data points (default=data/LSH-nmi.csv)");
+        opt_input.setRequired(false);
+        options.addOption(opt_input);
+        
+        Option opt_label_column = new Option(null, "label-column", true, "zero based column with the true cluster, last or none (default=last)");
+        opt_label_column.setRequired(false);
+        options.addOption(opt_label_column);
+        
+        Option opt_delimiter = new Option(null, "delimiter", true, "column delimiter of the input file (default=,)");
+        opt_delimiter.setRequired(false);
+        options.addOption(opt_delimiter);
+        
+        Option opt_header = new Option(null, "header", false, "skip the first line of the input file");
+        opt_header.setRequired(false);
+        options.addOption(opt_header);
+        
+        Option opt_write_binary = new Option(null, "write-binary", true, "convert the input into a binary data set file and exit");
+        opt_write_binary.setRequired(false);
+        options.addOption(opt_write_binary);
+        
+        Option opt_binary_floats = new Option(null, "binary-floats", false, "store floats instead of doubles in the binary data set file");
+        opt_binary_floats.setRequired(false);
+        options.addOption(opt_binary_floats);
+        
+        Option opt_storage = new Option(null, "storage", true, "double, float or int8 storage of the data points (default=double)");
+        opt_storage.setRequired(false);
+        options.addOption(opt_storage);
+        
+        Option opt_compare_double = new Option(null, "compare-double", false, "also cluster with double storage and print the NMI between both results");
+        opt_compare_double.setRequired(false);
+        options.addOption(opt_compare_double);
+        
+        Option opt_out_of_core = new Option(null, "out-of-core", false, "stream the input from disk every round instead of loading it (lloyd with kmeans++ seeding)");
+        opt_out_of_core.setRequired(false);
+        options.addOption(opt_out_of_core);
+        
+        Option opt_memory_budget = new Option(null, "memory-budget", true, "megabytes of data blocks and round buffers kept in memory by --out-of-core (default=256)");
+        opt_memory_budget.setRequired(false);
+        options.addOption(opt_memory_budget);
+        
+        Option opt_prefetch = new Option(null, "prefetch", true, "blocks read ahead by --out-of-core (default=1)");
+        opt_prefetch.setRequired(false);
+        options.addOption(opt_prefetch);
+        
+        Option opt_assignment_file = new Option(null, "assignment-file", true, "keep the cluster of every row of --out-of-core or --model as little-endian ints in this file");
+        opt_assignment_file.setRequired(false);
+        options.addOption(opt_assignment_file);
+        
+        Option opt_save_model = new Option(null, "save-model", true, "write the centers, metric and metadata of the result into this model file");
+        opt_save_model.setRequired(false);
+        options.addOption(opt_save_model);
+        
+        Option opt_model_assignments = new Option(null, "model-assignments", false, "also keep the cluster and boundary margin of every row in the --save-model file");
+        opt_model_assignments.setRequired(false);
+        options.addOption(opt_model_assignments);
+        
+        Option opt_warm_start = new Option(null, "warm-start", true, "start a single lloyd run from a model saved with --model-assignments, rows after the ones it knows are new");
+        opt_warm_start.setRequired(false);
+        options.addOption(opt_warm_start);
+        
+        Option opt_model = new Option(null, "model", true, "assign the input to the clusters of this model file instead of clustering it");
+        opt_model.setRequired(false);
+        options.addOption(opt_model);
+        
+        Option opt_coordinator = new Option(null, "coordinator", true, "coordinate a distributed run on this port, the workers hold the data");
+        opt_coordinator.setRequired(false);
+        options.addOption(opt_coordinator);
+        
+        Option opt_workers = new Option(null, "workers", true, "number of workers the coordinator waits for (default=2)");
+        opt_workers.setRequired(false);
+        options.addOption(opt_workers);
+        
+        Option opt_worker = new Option(null, "worker", true, "work for the coordinator at host:port on the input file");
+        opt_worker.setRequired(false);
+        options.addOption(opt_worker);
+        
+        Option opt_shard = new Option(null, "shard", true, "index/count: the worker only loads this part of the input file (default=0/1)");
+        opt_shard.setRequired(false);
+        options.addOption(opt_shard);
+        
+        Option opt_silhouette = new Option(null, "silhouette-sample", true, "points sampled for the silhouette score, 0 skips it (default=2000)");
+        opt_silhouette.setRequired(false);
+        options.addOption(opt_silhouette);
+        
+        Option opt_sweep = new Option(null, "sweep", true, "min:max, cluster with every k of the range and keep the best one");
+        opt_sweep.setRequired(false);
+        options.addOption(opt_sweep);
+        
+        Option opt_sweep_seeds = new Option(null, "sweep-seeds", true, "kmeans++ seeds tried per k by --sweep (default=3)");
+        opt_sweep_seeds.setRequired(false);
+        options.addOption(opt_sweep_seeds);
+        
+        Option opt_sweep_criterion = new Option(null, "sweep-criterion", true, "silhouette, gap or elbow, how --sweep picks k (default=silhouette)");
+        opt_sweep_criterion.setRequired(false);
+        options.addOption(opt_sweep_criterion);
+        
+        Option opt_gap_references = new Option(null, "gap-references", true, "uniform reference sets for the gap statistic of --sweep, 0 skips it (default=5)");
+        opt_gap_references.setRequired(false);
+        options.addOption(opt_gap_references);
+        
+        Option opt_restarts = new Option(null, "restarts", true, "independent runs from different seeds in parallel, the lowest SSE is kept (default=1)");
+        opt_restarts.setRequired(false);
+        options.addOption(opt_restarts);
+        
+        Option opt_abandon_margin = new Option(null, "abandon-margin", true, "lloyd restarts projected to end this fraction above the best SSE are stopped, negative never stops (default=0.01)");
+        opt_abandon_margin.setRequired(false);
+        options.addOption(opt_abandon_margin);
+        
+        Option opt_max_rounds = new Option(null, "max-rounds", true, "rounds after which the best round so far is kept (default=200)");
+        opt_max_rounds.setRequired(false);
+        options.addOption(opt_max_rounds);
+        
+        Option opt_shift_tolerance = new Option(null, "shift-tolerance", true, "stop once no center moves farther than this, 0 is off (default=0)");
+        opt_shift_tolerance.setRequired(false);
+        options.addOption(opt_shift_tolerance);
+        
+        Option opt_sse_tolerance = new Option(null, "sse-tolerance", true, "stop once a lloyd round improves the SSE by at most this fraction, 0 is off (default=0)");
+        opt_sse_tolerance.setRequired(false);
+        options.addOption(opt_sse_tolerance);
+        
+        Option opt_reassign_tolerance = new Option(null, "reassign-tolerance", true, "stop once at most this fraction of the points changes its cluster, 0 is off (default=0)");
+        opt_reassign_tolerance.setRequired(false);
+        options.addOption(opt_reassign_tolerance);
+        
         Option opt_output = new Option("o", "output-filename", true, "print datapoints and classification into csv file");
         opt_output.setRequired(false);
         options.addOption(opt_output);
         
+        Option opt_threads = new Option("t", "threads", true, "number of threads used by Lloyd (default=number of cores)");
+        opt_threads.setRequired(false);
+        options.addOption(opt_threads);
+        
         
         CommandLineParser parser = new DefaultParser();
         HelpFormatter formatter = new HelpFormatter();
@@ -108,14 +309,229 @@ public class KmeansApplication {
         this.dimensions = Integer.parseInt(cmd.getOptionValue("dimensions", "10"));
         this.dataPointsCountPerCluster = Integer.parseInt(cmd.getOptionValue("datapoints-count", "100"));
         this.seed = Integer.parseInt(cmd.getOptionValue("seed", "-1"));
+        this.threads = Integer.parseInt(cmd.getOptionValue("threads", String.valueOf(Runtime.getRuntime().availableProcessors())));
         
         this.initializationStrategy = cmd.hasOption("random-points") ? initializationStrategy.RANDOM_POINTS : initializationStrategy.RANDOM_PARTITION;
+        if(cmd.hasOption("initialization")) {
+            switch(cmd.getOptionValue("initialization").toLowerCase()) {
+                case "random-partition": this.initializationStrategy = KmeansClustering.InitializationStrategy.RANDOM_PARTITION; break;
+                case "random-points": this.initializationStrategy = KmeansClustering.InitializationStrategy.RANDOM_POINTS; break;
+                case "kmeans++": this.initializationStrategy = KmeansClustering.InitializationStrategy.KMEANS_PLUS_PLUS; break;
+                case "kmeans-parallel": this.initializationStrategy = KmeansClustering.InitializationStrategy.KMEANS_PARALLEL; break;
+                default:
+                    System.out.println("unknown initialization: " + cmd.getOptionValue("initialization"));
+                    formatter.printHelp("utility-name", options);
+
+                    System.exit(1);
+                    return;
+            }
+        }
         this.algorithm = cmd.hasOption("macqueen") ? algorithm.MACQUEEN : algorithm.LLOYD;
+        if(cmd.hasOption("algorithm")) {
+            try {
+                this.algorithm = KmeansClustering.Algorithm.valueOf(cmd.getOptionValue("algorithm").toUpperCase());
+            } catch (IllegalArgumentException e) {
+                System.out.println("unknown algorithm: " + cmd.getOptionValue("algorithm"));
+                formatter.printHelp("utility-name", options);
+
+                System.exit(1);
+                return;
+            }
+        }
+        this.batchSize = Integer.parseInt(cmd.getOptionValue("batch-size", "1024"));
+        this.batchTolerance = Double.parseDouble(cmd.getOptionValue("batch-tolerance", "0.001"));
+        this.useHashing = !cmd.hasOption("no-lsh");
+        this.lshTables = Integer.parseInt(cmd.getOptionValue("lsh-tables", "2"));
+        this.lshHashesPerTable = Integer.parseInt(cmd.getOptionValue("lsh-hashes", "2"));
+        this.lshBucketWidth = Double.parseDouble(cmd.getOptionValue("lsh-width", "10"));
+        try {
+            this.metric = DistanceMetric.valueOf(cmd.getOptionValue("metric", "euclidean").toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.out.println("unknown metric: " + cmd.getOptionValue("metric"));
+            formatter.printHelp("utility-name", options);
+
+            System.exit(1);
+            return;
+        }
+        
+        try {
+            this.storage = PointStorage.valueOf(cmd.getOptionValue("storage", "double").toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.out.println("unknown storage: " + cmd.getOptionValue("storage"));
+            formatter.printHelp("utility-name", options);
+
+            System.exit(1);
+            return;
+        }
+        this.compareDouble = cmd.hasOption("compare-double");
+        if(this.compareDouble && this.storage == PointStorage.DOUBLE) {
+            System.out.println("--compare-double needs --storage float or int8, there is nothing to compare with double storage");
+            formatter.printHelp("utility-name", options);
+
+            System.exit(1);
+            return;
+        }
+        this.outOfCore = cmd.hasOption("out-of-core");
+        this.memoryBudget = Long.parseLong(cmd.getOptionValue("memory-budget", "256")) << 20;
+        this.prefetchBlocks = Integer.parseInt(cmd.getOptionValue("prefetch", "1"));
+        this.assignmentFilename = cmd.getOptionValue("assignment-file");
+        this.modelFilename = cmd.getOptionValue("model");
+        this.saveModelFilename = cmd.getOptionValue("save-model");
+        this.modelAssignments = cmd.hasOption("model-assignments");
+        this.warmStartFilename = cmd.getOptionValue("warm-start");
+        this.coordinatorPort = Integer.parseInt(cmd.getOptionValue("coordinator", "-1"));
+        this.workerCount = Integer.parseInt(cmd.getOptionValue("workers", "2"));
+        this.workerAddress = cmd.getOptionValue("worker");
+        this.silhouetteSample = Integer.parseInt(cmd.getOptionValue("silhouette-sample", "2000"));
+        this.sweepSeeds = Integer.parseInt(cmd.getOptionValue("sweep-seeds", "3"));
+        this.gapReferences = Integer.parseInt(cmd.getOptionValue("gap-references", "5"));
+        this.restarts = Integer.parseInt(cmd.getOptionValue("restarts", "1"));
+        
+        this.convergencePolicy = new ConvergencePolicy();
+        try {
+            this.convergencePolicy.setMaxRounds(Integer.parseInt(cmd.getOptionValue("max-rounds", "200")));
+            this.convergencePolicy.setCenterShiftTolerance(Double.parseDouble(cmd.getOptionValue("shift-tolerance", "0")));
+            this.convergencePolicy.setSseTolerance(Double.parseDouble(cmd.getOptionValue("sse-tolerance", "0")));
+            this.convergencePolicy.setReassignedFraction(Double.parseDouble(cmd.getOptionValue("reassign-tolerance", "0")));
+        } catch (KmeansException e) {
+            System.out.println(e.getMessage());
+            formatter.printHelp("utility-name", options);
+
+            System.exit(1);
+            return;
+        }
+        this.abandonMargin = Double.parseDouble(cmd.getOptionValue("abandon-margin", "0.01"));
+        
+        if(cmd.hasOption("sweep")) {
+            String[] sweepValue = cmd.getOptionValue("sweep").split(":");
+            if(sweepValue.length != 2) {
+                System.out.println("sweep must be given as min:max: " + cmd.getOptionValue("sweep"));
+                formatter.printHelp("utility-name", options);
+
+                System.exit(1);
+                return;
+            }
+            this.sweepMinK = Integer.parseInt(sweepValue[0]);
+            this.sweepMaxK = Integer.parseInt(sweepValue[1]);
+        }
+        
+        try {
+            this.sweepCriterion = KmeansSweep.Criterion.valueOf(cmd.getOptionValue("sweep-criterion", "silhouette").toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.out.println("unknown sweep criterion: " + cmd.getOptionValue("sweep-criterion"));
+            formatter.printHelp("utility-name", options);
+
+            System.exit(1);
+            return;
+        }
+        
+        // only a single in-memory run continues from the model
+        if(this.warmStartFilename != null && (cmd.hasOption("sweep") || this.restarts > 1 || this.outOfCore || this.coordinatorPort >= 0 || this.workerAddress != null)) {
+            System.out.println("--warm-start can't be combined with --sweep, --restarts, --out-of-core, --coordinator or --worker");
+            formatter.printHelp("utility-name", options);
+
+            System.exit(1);
+            return;
+        }
+        
+        String[] shardValue = cmd.getOptionValue("shard", "0/1").split("/");
+        if(shardValue.length != 2) {
+            System.out.println("shard must be given as index/count: " + cmd.getOptionValue("shard"));
+            formatter.printHelp("utility-name", options);
+
+            System.exit(1);
+            return;
+        }
+        this.shard = Integer.parseInt(shardValue[0]);
+        this.shards = Integer.parseInt(shardValue[1]);
         
         this.outputFilename = cmd.getOptionValue("output-filename");
+        this.inputFilename = cmd.getOptionValue("input-filename", "data" + File.separator + "LSH-nmi.csv");
+        this.header = cmd.hasOption("header");
+        this.binaryFilename = cmd.getOptionValue("write-binary");
+        this.binaryFloats = cmd.hasOption("binary-floats");
+        
+        String delimiterValue = cmd.getOptionValue("delimiter", ",");
+        this.delimiter = delimiterValue.equals("\\t") ? '\t' : delimiterValue.charAt(0);
+        
+        String labelColumnValue = cmd.getOptionValue("label-column", "last");
+        if(labelColumnValue.equals("last"))
+            this.labelColumn = CsvLoader.LAST_COLUMN;
+        else if(labelColumnValue.equals("none"))
+            this.labelColumn = CsvLoader.NO_LABEL;
+        else
+            this.labelColumn = Integer.parseInt(labelColumnValue);
     }
     
     public void run() throws KmeansException, IOException {
+        if(this.modelFilename != null) {
+            runPredict();
+            return;
+        }
+        
+        if(this.outOfCore) {
+            runOutOfCore();
+            return;
+        }
+        
+        if(this.coordinatorPort >= 0) {
+            runCoordinator();
+            return;
+        }
+        
+        PointMatrix dataPoints;
+        int[] labels;
+        // comparing needs the full precision points, they are converted below
+        boolean convertAfterLoading = this.compareDouble && this.storage != PointStorage.DOUBLE;
+        
+        if(BinaryDataset.isBinary(this.inputFilename)) {
+            BinaryDataset dataset = new BinaryDataset();
+            // a worker only maps its own shard
+            if(this.workerAddress != null)
+                dataset.setShard(this.shard, this.shards);
+            dataset.load(this.inputFilename);
+            
+            dataPoints = dataset.getPoints();
+            labels = dataset.getLabels();
+            System.out.println(String.format("Mapped %d rows with %d dimensions in %.1f ms",
+                    dataPoints.getRows(), dataPoints.getDimensions(), dataset.getLoadNanos() / 1e6));
+        } else {
+            CsvLoader loader = new CsvLoader();
+            loader.setDelimiter(this.delimiter);
+            loader.setLabelColumn(this.labelColumn);
+            loader.setHeader(this.header);
+            loader.setThreads(this.threads);
+            loader.setStorage(convertAfterLoading ? PointStorage.DOUBLE : this.storage);
+            // a worker only keeps its own shard
+            if(this.workerAddress != null)
+                loader.setShard(this.shard, this.shards);
+            loader.load(this.inputFilename);
+            
+            dataPoints = loader.getPoints();
+            labels = loader.getLabels();
+            System.out.println(String.format("Loaded %d rows with %d dimensions in %.1f ms (%.0f rows/s, %.1f MB/s)",
+                    dataPoints.getRows(), dataPoints.getDimensions(), loader.getLoadNanos() / 1e6,
+                    loader.getRowsPerSecond(), loader.getBytesRead() / 1e6 / (loader.getLoadNanos() / 1e9)));
+        }
+        this.dimensions = dataPoints.getDimensions();
+        
+        // a binary file keeps the precision it was written with unless a lower one is asked for
+        boolean mappedDoubles = dataPoints instanceof MappedPointMatrix && !((MappedPointMatrix) dataPoints).isFloat();
+        PointMatrix doublePoints = dataPoints;
+        if(this.storage == PointStorage.INT8 || convertAfterLoading || (this.storage == PointStorage.FLOAT && mappedDoubles))
+            dataPoints = this.storage.convert(dataPoints);
+        
+        if(this.binaryFilename != null) {
+            BinaryDataset.write(this.binaryFilename, dataPoints, labels, this.binaryFloats);
+            System.out.println("Wrote " + dataPoints.getRows() + " rows to " + this.binaryFilename);
+            return;
+        }
+        
+        if(this.workerAddress != null) {
+            runWorker(dataPoints);
+            return;
+        }
+        
         Generator gen = new Generator(
             this.clusterCountGeneration,
             this.dataPointsCountPerCluster,
@@ -125,54 +541,65 @@ public class KmeansApplication {
             
         gen.generate();
 
-        //DataPoint[] dataPoints = Arrays.stream(gen.getClusters()).flatMap(c -> Arrays.stream(c.getDataPoints())).toArray(DataPoint[]::new);
-        String filePath = new File("").getAbsolutePath();
-        BufferedReader reader = new BufferedReader(new FileReader(filePath + "\\data\\LSH-nmi.csv"));
-        String line = null;
-        Scanner scanner = null;
-        int points = 0;
-        List<DataPoint> dataPointList = new ArrayList<>();
-        
-        List<Integer> reality = new ArrayList<>();
-        String pattern = "(\\w*)(\\d+).*";
-        Pattern patt = Pattern.compile(pattern);
-        Matcher m;
-
-        while ((line = reader.readLine()) != null) {
-                DataPoint p = new DataPoint(this.dimensions);
-                scanner = new Scanner(line);
-                scanner.useDelimiter(",");
-                for (int i = 0; i < this.dimensions+1; i++) {
-                        if (i < this.dimensions){
-                            double value = Double.parseDouble(scanner.next());
-                            p.set(i, value);
-                        } else { //last column with info about right cluster
-                            m = patt.matcher(scanner.next());
-                            if (m.find()){
-                                reality.add(Integer.valueOf(m.group(2)));
-                            } else {
-                                throw new RuntimeException("Pattern dont match. Cluster id "+i+" parsed!");
-                            }
-                        }
-                }
-                dataPointList.add(p);
-                points++;
+        if(this.warmStartFilename != null) {
+            this.warmStart = KmeansModel.load(this.warmStartFilename);
+            this.clusterCountKmeans = this.warmStart.getK();
+            System.out.println("Warm start from " + this.warmStart + ", " + (dataPoints.getRows() - this.warmStart.getTrainingRows()) + " new rows");
         }
-        reader.close();
-        DataPoint[] dataPoints = dataPointList.toArray(new DataPoint[points]);
         
-        KmeansClustering clustering = new KmeansClustering(
-                dataPoints,
-                this.dimensions, 
-                this.clusterCountKmeans, 
-                this.seed,
-                this.initializationStrategy,
-                this.algorithm          
-        );
-        clustering.run();
+        KmeansClustering clustering;
+        if(this.sweepMaxK > 0) {
+            clustering = runSweep(dataPoints, labels);
+        } else if(this.restarts > 1) {
+            clustering = runRestarts(dataPoints);
+        } else {
+            clustering = createClustering(dataPoints);
+            clustering.run();
+            if(clustering.getStopReason() == ConvergencePolicy.StopReason.CONVERGED)
+                System.out.println("=== Converged after " + clustering.getRoundCount() + " rounds ===");
+            else
+                System.out.println("=== Stopped after " + clustering.getRoundCount() + " rounds: " + clustering.getStopReason() + " ===");
+        }
+        System.out.println("Distance computations: " + clustering.getDistanceComputations() + ", skipped: " + clustering.getSkippedDistanceComputations());
+        if(clustering.isUsingHashing()) {
+            System.out.println("Center hashes computed: " + clustering.getCenterHashCount());
+            System.out.println("LSH bucket hits: " + clustering.getBucketHits());
+            System.out.println(clustering.getLshStatistics(10000));
+        }
         
-        double err = clustering.getClusteringError(reality);
-        System.out.println("Algorithm error: "+err*100+"%.");
+        System.out.println(clustering.getEvaluation());
+        if(this.silhouetteSample > 0) {
+            long silhouetteStart = System.nanoTime();
+            double silhouette = clustering.getSilhouette(this.silhouetteSample);
+            System.out.println(String.format("Silhouette %.6f on %d points in %.1f ms", silhouette,
+                    Math.min(this.silhouetteSample, dataPoints.getRows()), (System.nanoTime() - silhouetteStart) / 1e6));
+        }
+        
+        if(labels != null) {
+            double err = clustering.getClusteringError(labels);
+            System.out.println("Algorithm error: "+err*100+"%.");
+            System.out.println(clustering.getMetrics(labels));
+        }
+        
+        if(this.saveModelFilename != null) {
+            KmeansModel model = KmeansModel.of(clustering);
+            if(this.modelAssignments) {
+                model.setThreads(this.threads);
+                model.setAssignments(clustering.getPoints(), clustering.getAssignments());
+                model.close();
+            }
+            model.write(this.saveModelFilename);
+            System.out.println("Wrote " + model + " to " + this.saveModelFilename);
+        }
+        
+        if(convertAfterLoading) {
+            KmeansClustering doubleClustering = createClustering(doublePoints);
+            doubleClustering.run();
+            
+            System.out.println("NMI " + this.storage + " vs DOUBLE: " + CalculateNMI.NMI(doubleClustering.getAssignments(), clustering.getAssignments()));
+            if(labels != null)
+                System.out.println("NMI of DOUBLE: " + CalculateNMI.NMI(labels, doubleClustering.getAssignments()));
+        }
         
         if (this.dimensions == 2){
             plot2d(gen.getClusters(), true, "Generated");
@@ -187,6 +614,193 @@ public class KmeansApplication {
         }
     }
     
+    private void runOutOfCore() throws KmeansException, IOException {
+        BlockSource source;
+        if(BinaryDataset.isBinary(this.inputFilename)) {
+            source = BinaryDataset.openBlocks(this.inputFilename);
+        } else {
+            CsvLoader loader = new CsvLoader();
+            loader.setDelimiter(this.delimiter);
+            loader.setLabelColumn(this.labelColumn);
+            loader.setHeader(this.header);
+            source = loader.openBlocks(this.inputFilename);
+        }
+        
+        try {
+            OutOfCoreKmeans clustering = new OutOfCoreKmeans(source, this.clusterCountKmeans, this.seed);
+            clustering.setThreads(this.threads);
+            clustering.setMetric(this.metric);
+            clustering.setMemoryBudget(this.memoryBudget);
+            clustering.setPrefetchBlocks(this.prefetchBlocks);
+            clustering.setAssignmentFile(this.assignmentFilename);
+            clustering.setConvergencePolicy(this.convergencePolicy);
+            clustering.addListener(new ClusteringListener() {
+                @Override
+                public void roundFinished(KmeansClustering source, RoundStatistics statistics) {
+                }
+                
+                @Override
+                public void roundFinished(OutOfCoreKmeans source, RoundStatistics statistics) {
+                    System.out.println(statistics);
+                }
+            });
+            clustering.run();
+            
+            if(clustering.getStopReason() == ConvergencePolicy.StopReason.CONVERGED)
+                System.out.println("=== Converged after " + clustering.getRoundCount() + " rounds ===");
+            else
+                System.out.println("=== Stopped after " + clustering.getRoundCount() + " rounds: " + clustering.getStopReason() + " ===");
+            System.out.println(String.format("Clustered %d rows in blocks of %d rows, %d rows read, %.1f ms waiting for input",
+                    clustering.getRows(), clustering.getBlockRows(), clustering.getRowsRead(), clustering.getIoWaitNanos() / 1e6));
+            System.out.println("Cluster sizes: " + Arrays.toString(clustering.getClusterSizes()));
+        } finally {
+            source.close();
+        }
+    }
+    
+    private void runPredict() throws KmeansException, IOException {
+        long loadStart = System.nanoTime();
+        KmeansModel model = KmeansModel.load(this.modelFilename);
+        System.out.println(String.format("Loaded %s in %.1f ms", model, (System.nanoTime() - loadStart) / 1e6));
+        
+        BlockSource source;
+        if(BinaryDataset.isBinary(this.inputFilename)) {
+            source = BinaryDataset.openBlocks(this.inputFilename);
+        } else {
+            CsvLoader loader = new CsvLoader();
+            loader.setDelimiter(this.delimiter);
+            loader.setLabelColumn(this.labelColumn);
+            loader.setHeader(this.header);
+            source = loader.openBlocks(this.inputFilename);
+        }
+        
+        long[] clusterSizes = new long[model.getK()];
+        try (FileChannel output = this.assignmentFilename != null
+                ? FileChannel.open(Paths.get(this.assignmentFilename), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)
+                : null) {
+            model.setThreads(this.threads);
+            
+            long predictStart = System.nanoTime();
+            long rows = model.predict(source, (firstRow, assignments, count) -> {
+                for(int row = 0; row < count; row++)
+                    clusterSizes[assignments[row]]++;
+                
+                if(output != null) {
+                    ByteBuffer rowBuffer = ByteBuffer.allocate(count * Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+                    rowBuffer.asIntBuffer().put(assignments, 0, count);
+                    while(rowBuffer.hasRemaining())
+                        output.write(rowBuffer);
+                }
+            });
+            long predictNanos = System.nanoTime() - predictStart;
+            
+            System.out.println(String.format("Predicted %d rows in %.1f ms (%.0f rows/s)", rows, predictNanos / 1e6, rows / (predictNanos / 1e9)));
+            System.out.println("Cluster sizes: " + Arrays.toString(clusterSizes));
+        } finally {
+            model.close();
+            source.close();
+        }
+    }
+    
+    private void runCoordinator() throws KmeansException, IOException {
+        System.out.println("Waiting for " + this.workerCount + " workers on port " + this.coordinatorPort);
+        
+        try (SocketTransport transport = SocketTransport.listen(this.coordinatorPort, this.workerCount)) {
+            DistributedKmeans clustering = new DistributedKmeans(transport, this.clusterCountKmeans, this.seed);
+            clustering.setMetric(this.metric);
+            clustering.setConvergencePolicy(this.convergencePolicy);
+            clustering.run();
+            
+            if(clustering.getStopReason() == ConvergencePolicy.StopReason.CONVERGED)
+                System.out.println("=== Converged after " + clustering.getRoundCount() + " rounds ===");
+            else
+                System.out.println("=== Stopped after " + clustering.getRoundCount() + " rounds: " + clustering.getStopReason() + " ===");
+            System.out.println(String.format("Clustered %d rows on %d workers, %d bytes sent, %d bytes received",
+                    clustering.getRows(), transport.getPeerCount(), transport.getBytesSent(), transport.getBytesReceived()));
+            System.out.println("Cluster sizes: " + Arrays.toString(clustering.getClusterSizes()));
+        }
+    }
+    
+    private void runWorker(PointMatrix dataPoints) throws KmeansException, IOException {
+        int separator = this.workerAddress.lastIndexOf(':');
+        if(separator < 0)
+            throw new KmeansException("the coordinator must be given as host:port: " + this.workerAddress);
+        
+        String host = this.workerAddress.substring(0, separator);
+        int port = Integer.parseInt(this.workerAddress.substring(separator + 1));
+        
+        try (SocketTransport transport = SocketTransport.connect(host, port)) {
+            KmeansWorker worker = new KmeansWorker(transport, dataPoints, 0, dataPoints.getRows(), this.shard, this.shards);
+            worker.setThreads(this.threads);
+            worker.run();
+            
+            System.out.println("Worker for shard " + this.shard + "/" + this.shards + " finished after " + worker.getRoundCount() + " rounds");
+        }
+    }
+    
+    private KmeansClustering runSweep(PointMatrix dataPoints, int[] labels) throws KmeansException {
+        KmeansSweep sweep = new KmeansSweep(dataPoints, this.sweepMinK, this.sweepMaxK);
+        sweep.setSeeds(this.sweepSeeds, this.seed);
+        sweep.setThreads(this.threads);
+        sweep.setAlgorithm(this.algorithm);
+        sweep.setMetric(this.metric);
+        sweep.setLabels(labels);
+        sweep.setSilhouetteSample(this.silhouetteSample);
+        sweep.setGapParameters(this.gapReferences, Math.min(dataPoints.getRows(), 10000));
+        sweep.setCriterion(this.sweepCriterion);
+        sweep.setConvergencePolicy(this.convergencePolicy);
+        
+        long sweepStart = System.nanoTime();
+        sweep.run();
+        for(KmeansSweep.Result result : sweep.getResults())
+            System.out.println(result);
+        
+        KmeansSweep.Result best = sweep.getBest();
+        this.clusterCountKmeans = best.getK();
+        System.out.println(String.format("Best k by %s: %d (sweep took %.1f ms)", this.sweepCriterion.toString().toLowerCase(), best.getK(),
+                (System.nanoTime() - sweepStart) / 1e6));
+        return best.getClustering();
+    }
+    
+    private KmeansClustering runRestarts(PointMatrix dataPoints) throws KmeansException {
+        KmeansRestarts restartRunner = new KmeansRestarts(dataPoints, this.clusterCountKmeans, this.restarts);
+        restartRunner.setSeed(this.seed);
+        restartRunner.setThreads(this.threads);
+        restartRunner.setInitializationStrategy(this.initializationStrategy);
+        restartRunner.setAlgorithm(this.algorithm);
+        restartRunner.setMetric(this.metric);
+        restartRunner.setUseHashing(this.useHashing);
+        restartRunner.setAbandonMargin(this.abandonMargin);
+        restartRunner.setConvergencePolicy(this.convergencePolicy);
+        
+        long restartStart = System.nanoTime();
+        restartRunner.run();
+        System.out.println(String.format("Restarts: %d abandoned, %d unconverged, %d rounds in total, best restart %d with SSE %.6g (%.1f ms)",
+                restartRunner.getAbandonedCount(), restartRunner.getUnconvergedCount(), restartRunner.getTotalRounds(),
+                restartRunner.getBestRestart(), restartRunner.getBestSse(), (System.nanoTime() - restartStart) / 1e6));
+        return restartRunner.getBest();
+    }
+    
+    private KmeansClustering createClustering(PointMatrix dataPoints) throws KmeansException {
+        KmeansClustering clustering = new KmeansClustering(
+                dataPoints,
+                this.clusterCountKmeans, 
+                this.seed,
+                this.initializationStrategy,
+                this.algorithm          
+        );
+        clustering.setThreads(this.threads);
+        clustering.setUseHashing(this.useHashing);
+        clustering.setLshParameters(this.lshTables, this.lshHashesPerTable, this.lshBucketWidth);
+        clustering.setMetric(this.metric);
+        clustering.setMiniBatchParameters(this.batchSize, this.batchTolerance);
+        clustering.setConvergencePolicy(this.convergencePolicy);
+        if(this.warmStart != null)
+            clustering.setWarmStart(this.warmStart);
+        clustering.addListener((source, statistics) -> System.out.println(statistics));
+        return clustering;
+    }
+    
     public void plot2d(ICluster[] clusters, boolean plotCenters, String title) throws KmeansException {
         // http://stackoverflow.com/questions/6594748/making-a-scatter-plot-using-2d-array-and-jfreechart
         // how to add jfreechart to netbeans: https://www.youtube.com/watch?v=aBONSQ44cnk
@@ -3,64 +3,81 @@ package kmeans;
 import java.util.ArrayList;
 import java.util.List;
 
+/**
+ * A cluster of a KmeansClustering. Membership is kept by the clustering as one
+ * cluster id per row, the member list is only built when it is asked for.
+ */
 public class KmeansCluster implements ICluster {
 
     private final int clusterId;
-    private final List<KmeansDataPoint> dataPoints = new ArrayList<>();
     private final int dimensions;
-    private DataPoint clusterCenter;
+    private final PointMatrix points;
+    private final int[] assignment;
+    private final PointMatrix centers;
     
-    public KmeansCluster(int clusterId, int dimensions) {
+    /**
+     * The center of the cluster is row clusterId of centers.
+     */
+    public KmeansCluster(int clusterId, PointMatrix points, int[] assignment, PointMatrix centers) {
         this.clusterId = clusterId;
-        this.dimensions = dimensions;
-    }
-
-    void removeDataPoint(KmeansDataPoint dataPoint) {
-        dataPoints.remove(dataPoint);
-    }
-
-    void addDataPoint(KmeansDataPoint dataPoint) throws KmeansException {
-        if(dataPoints.contains(dataPoint))
-            throw new KmeansException("Cannot add dataPoint to KmeansCluster because it's already contained in this cluster");
-        
-        if(dataPoint.getCluster() != this)
-            throw new KmeansException("Cannot add dataPoint to KmeansCluster because it's already contained in another cluster");
-        
-        if(dataPoint.getDataPoint().getDimensions() != this.dimensions)
-            throw new KmeansException("Cannot add dataPoint to KmeansCluster because it's dimensions are unfitting");
-        
-        dataPoints.add(dataPoint);
+        this.dimensions = points.getDimensions();
+        this.points = points;
+        this.assignment = assignment;
+        this.centers = centers;
     }
     
-    public void updateClusterCenter() throws KmeansException {
-        DataPoint center = new DataPoint(dimensions);
+    /**
+     * Sets the center to the mean of count points whose coordinates sum up to
+     * summedCoordinates[offset ..]. An empty cluster keeps its previous center.
+     * 
+     * @return whether the center moved
+     */
+    public boolean updateClusterCenter(double[] summedCoordinates, int offset, int count) {
+        if(count == 0)
+            return false;
         
+        boolean moved = false;
         for(int dimension = 0; dimension < dimensions; dimension ++) {
-            final int finalDimension = dimension;
-            double summedCoordinates = this.dataPoints.stream().mapToDouble(dp -> dp.getDataPoint().getSafe(finalDimension)).sum();
-            double averagedCoordinates = summedCoordinates / this.dataPoints.size();
+            double averagedCoordinates = summedCoordinates[offset + dimension] / count;
             
-            center.set(dimension, averagedCoordinates);
+            moved |= this.centers.get(this.clusterId, dimension) != averagedCoordinates;
+            this.centers.set(this.clusterId, dimension, averagedCoordinates);
         }
         
-        this.clusterCenter = center;
+        return moved;
     }
-        
+    
+    @Override
     public DataPoint[] getDataPoints() {
-        return this.dataPoints.stream().map(dp -> dp.getDataPoint()).toArray(DataPoint[]::new);
+        List<DataPoint> dataPoints = new ArrayList<>();
+        
+        for(int row = 0; row < this.assignment.length; row++) {
+            if(this.assignment[row] == this.clusterId)
+                dataPoints.add(this.points.getPoint(row));
+        }
+        
+        return dataPoints.toArray(new DataPoint[dataPoints.size()]);
     }
 
+    @Override
     public int getClusterId() {
         return this.clusterId;
     }
 
+    /**
+     * A view on the center; it follows the center when the cluster is updated.
+     */
     @Override
     public DataPoint getClusterCenter() {
-        return this.clusterCenter;
+        return this.centers.getPoint(this.clusterId);
     }
     
-    public void setClusterCenter(DataPoint center) {
-        this.clusterCenter = center;
+    public void setClusterCenter(DataPoint center) throws KmeansException {
+        if(this.centers.isReadOnly())
+            throw new KmeansException("the centers are read only and can't be set");
+
+        for(int dimension = 0; dimension < dimensions; dimension ++)
+            this.centers.set(this.clusterId, dimension, center.getSafe(dimension));
     }
 
     @Override
@@ -5,89 +5,428 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
+import java.util.function.DoublePredicate;
 
 public class KmeansClustering {
 
-    public int same_number = 0;
-    protected final KmeansDataPoint[] dataPoints;
-    protected final KmeansDataPoint[] hashDataPoints;
-    private Hasher hasher;
+    protected final PointMatrix points;
+    protected final int[] assignment;
+    protected final int[] clusterSizes;
+    protected final double[] clusterSums;
+    private LshIndex lsh;
+    private int lshTables = 2;
+    private int lshHashesPerTable = 2;
+    private double lshBucketWidth = 10;
+    private final int seed;
     private final int dimensions;
     protected final int k;
     
-    private final int maxRounds = 200;
+    private ConvergencePolicy convergencePolicy = new ConvergencePolicy();
+    private ConvergencePolicy.StopReason stopReason;
     private int roundCount = 0;
     protected Random random;
     protected KmeansCluster[] clusters;
+    protected ArrayPointMatrix centers;
+    private DistanceMetric metric = DistanceMetric.EUCLIDEAN;
     
-    private boolean updateAfterEachPoint = false;
-    private boolean updateAfterEachRound = true;
+    private final Algorithm algorithm;
+    private boolean useHashing = true;
+    
+    // Hamerly: per point upper bound to the assigned and lower bound to the second closest center
+    private double[] upperBounds;
+    private double[] lowerBounds;
+    
+    // warm start: the model to start from and per point margin, see runWarmRound
+    private KmeansModel warmStart;
+    private double[] margins;
+    
+    // mini-batch: updates per center so far and the number of rounds in a row the centers stayed put
+    private static final int MINI_BATCH_PATIENCE = 10;
+    private int batchSize = 1024;
+    private double batchTolerance = 1e-3;
+    private long[] centerUpdateCounts;
+    private double dataSpread;
+    private int settledRounds;
+    
+    private long distanceComputations = 0;
+    private long skippedDistanceComputations = 0;
+    private long bucketHits = 0;
+    private long reassignedPoints;
+    
+    // per cluster squared and plain distances of the last full assignment, if it computed them exactly
+    private double[] clusterErrors;
+    private double[] clusterDistances;
     
     private boolean clustersChangedDuringRound;
     private final InitializationStrategy strategy;
+    private double[] initialCenters;
+    private DoublePredicate abandonCheck;
+    
+    // the round with the lowest SSE, kept when rounds can make the SSE worse (LSH)
+    private double bestSse;
+    private int[] bestAssignment;
+    private double[] bestCenters;
+    
+    private WorkerPool pool;
+    
+    // registered on every clustering, commits JFR events while a recording enables them; null without JFR
+    private static final ClusteringListener JFR_LISTENER = createJfrListener();
+    private final List<ClusteringListener> listeners = new ArrayList<>();
     
     public enum InitializationStrategy {
         RANDOM_PARTITION,
-        RANDOM_POINTS
+        RANDOM_POINTS,
+        KMEANS_PLUS_PLUS,
+        KMEANS_PARALLEL
     } 
     
     public enum Algorithm {
         LLOYD,
-        MACQUEEN
+        MACQUEEN,
+        HAMERLY,
+        MINI_BATCH
     }
         
     public KmeansClustering(DataPoint[] dataPoints, int dimensions, int k, int seed, InitializationStrategy strategy, Algorithm algorithm) throws KmeansException{
-        this.dataPoints = Arrays.stream(dataPoints).map(dp -> new KmeansDataPoint(dp)).toArray(size -> new KmeansDataPoint[size]);
-        this.hasher = new Hasher(dataPoints, 4);//TODO 4=numberOfhashes as param 
-        this.hashDataPoints = Arrays.stream(hasher.getHashes()).map(dp -> new KmeansDataPoint(dp)).toArray(size -> new KmeansDataPoint[size]);
-        this.dimensions = dimensions;
+        this(PointMatrix.of(dataPoints), k, seed, strategy, algorithm);
+        
+        if(this.dimensions != dimensions)
+            throw new KmeansException("dimensions of the data points don't match the passed dimensions");
+    }
+    
+    public KmeansClustering(PointMatrix points, int k, int seed, InitializationStrategy strategy, Algorithm algorithm) throws KmeansException{
+        this.points = points;
+        this.dimensions = points.getDimensions();
         this.k = k;
+        this.assignment = new int[points.getRows()];
+        this.clusterSizes = new int[k];
+        this.clusterSums = new double[k * this.dimensions];
         
+        this.seed = seed;
         this.random = seed == -1 ? new Random() : new Random(seed);
         this.strategy = strategy;
+        this.pool = new WorkerPool(1);
         
-        if(algorithm == Algorithm.MACQUEEN) {
-            this.updateAfterEachPoint = true;
-            this.updateAfterEachRound = true;
-        }
+        this.algorithm = algorithm;
+    }
+    
+    /**
+     * Turns the LSH shortcut off, every point is then compared against every
+     * center. HAMERLY never uses it, its bounds need exact distances.
+     */
+    public void setUseHashing(boolean useHashing) {
+        this.useHashing = useHashing;
+    }
+    
+    /**
+     * Configures the LSH index: a point is compared with the centers that share
+     * a bucket with it in any of the tables. More hashes per table make buckets
+     * more selective, more tables and wider buckets find more candidates.
+     */
+    public void setLshParameters(int tables, int hashesPerTable, double bucketWidth) {
+        this.lshTables = tables;
+        this.lshHashesPerTable = hashesPerTable;
+        this.lshBucketWidth = bucketWidth;
+        this.lsh = null;
+    }
+    
+    public void setMetric(DistanceMetric metric) {
+        this.metric = metric;
+    }
+    
+    public DistanceMetric getMetric() {
+        return this.metric;
+    }
+    
+    /**
+     * Sets the number of threads used by Lloyd rounds. The result doesn't depend on it.
+     */
+    public void setThreads(int threads) throws KmeansException {
+        this.pool.close();
+        this.pool = new WorkerPool(threads);
+    }
+    
+    /**
+     * MINI_BATCH looks at batchSize randomly drawn points per round and stops
+     * once no center moved more than tolerance times the spread of the data
+     * (the root of the summed per dimension variances) for MINI_BATCH_PATIENCE
+     * rounds in a row.
+     */
+    public void setMiniBatchParameters(int batchSize, double tolerance) throws KmeansException {
+        if(batchSize < 1)
+            throw new KmeansException("batch size must be greater then 0");
+        
+        this.batchSize = batchSize;
+        this.batchTolerance = tolerance;
+    }
+    
+    /**
+     * Same as setMaxRounds on the convergence policy.
+     */
+    public void setMaxRounds(int maxRounds) throws KmeansException {
+        this.convergencePolicy.setMaxRounds(maxRounds);
+    }
+    
+    /**
+     * Decides when run stops, the policy is copied.
+     */
+    public void setConvergencePolicy(ConvergencePolicy convergencePolicy) {
+        this.convergencePolicy = convergencePolicy.copy();
+    }
+    
+    /**
+     * Starts from the given k centers, row-major, instead of the initialization strategy.
+     */
+    public void setInitialCenters(double[] initialCenters) throws KmeansException {
+        if(initialCenters.length != this.k * this.dimensions)
+            throw new KmeansException("expected " + this.k * this.dimensions + " center values but got " + initialCenters.length);
+        
+        this.initialCenters = initialCenters.clone();
+    }
+    
+    /**
+     * Starts from the centers and row assignments of a model, see
+     * KmeansModel.setAssignments; the rows past the ones the model knows are
+     * new. Every round only computes distances for the new rows and the rows
+     * near a cluster boundary; together with a reassigned fraction tolerance
+     * a grown data set stops after a few rounds. Needs LLOYD and the metric
+     * of the model; LSH isn't used.
+     */
+    public void setWarmStart(KmeansModel model) throws KmeansException {
+        if(!model.hasAssignments())
+            throw new KmeansException("a warm start needs a model with row assignments");
+        
+        if(model.getK() != this.k || model.getDimensions() != this.dimensions)
+            throw new KmeansException("the model has " + model.getK() + " clusters of " + model.getDimensions()
+                    + " dimensions but the clustering " + this.k + " of " + this.dimensions);
+        
+        if(model.getTrainingRows() > this.points.getRows())
+            throw new KmeansException("the model knows " + model.getTrainingRows() + " rows but the data only has " + this.points.getRows());
+        
+        this.warmStart = model;
+    }
+    
+    public void addListener(ClusteringListener listener) {
+        this.listeners.add(listener);
+    }
+    
+    public void removeListener(ClusteringListener listener) {
+        this.listeners.remove(listener);
+    }
+    
+    /**
+     * Called with the SSE after every round that computes it exactly (LLOYD),
+     * run stops without converging once it returns true.
+     */
+    void setAbandonCheck(DoublePredicate abandonCheck) {
+        this.abandonCheck = abandonCheck;
     }
     
     public void run() throws KmeansException {
-        initializeClusters();
+        if(this.algorithm == Algorithm.HAMERLY && !this.metric.isTriangleInequalityValid())
+            throw new KmeansException("HAMERLY can't be used with the " + this.metric + " metric");
+        
+        if(this.warmStart != null) {
+            if(this.algorithm != Algorithm.LLOYD)
+                throw new KmeansException("a warm start needs LLOYD");
+            
+            if(this.warmStart.getMetric() != this.metric || !this.metric.isTriangleInequalityValid())
+                throw new KmeansException("a warm start can't be used with the " + this.metric + " metric of the model " + this.warmStart.getMetric());
+        }
+        
+        try {
+            initializeClusters();
+            this.stopReason = null;
+            this.bestSse = Double.POSITIVE_INFINITY;
+            double sse = Double.NaN;
+
+            do {
+                RoundStart start = isObserved() ? new RoundStart() : null;
+                double[] previousCenters = this.convergencePolicy.needsCenterShift() ? this.centers.getValues().clone() : null;
+                double previousSse = sse;
+                
+                runRound();
+                this.roundCount ++;
+                if(start != null)
+                    notifyListeners(start);
+                
+                sse = this.clusterErrors == null ? Double.NaN : getRoundSse();
+                if(this.lsh != null && sse < this.bestSse)
+                    keepBestRound(sse);
                 
-        do {
-            if(this.roundCount > this.maxRounds)
-                throw new KmeansException("Exceeded maximum amount of rounds -> doesn't converge");
+                if(this.abandonCheck != null && !Double.isNaN(sse) && this.abandonCheck.test(sse)) {
+                    this.stopReason = ConvergencePolicy.StopReason.ABANDONED;
+                    break;
+                }
+                
+                this.stopReason = this.convergencePolicy.check(this.roundCount, this.clustersChangedDuringRound, this.algorithm != Algorithm.MINI_BATCH,
+                        this.reassignedPoints, this.points.getRows(), previousCenters == null ? Double.NaN : getMaxCenterShift(previousCenters), sse, previousSse);
+                
+                // MINI_BATCH ends with a full pass, either because it settled or ran out of rounds
+                if(this.stopReason == ConvergencePolicy.StopReason.CONVERGED && this.algorithm == Algorithm.MINI_BATCH && this.settledRounds < MINI_BATCH_PATIENCE)
+                    this.stopReason = ConvergencePolicy.StopReason.MAX_ROUNDS;
+            } while (this.stopReason == null);
             
-            runRound();
-            this.roundCount ++;
-            System.out.println("round: "+this.roundCount);
-        } while (!isConverged());
+            if(this.stopReason != ConvergencePolicy.StopReason.CONVERGED && this.bestSse < sse)
+                restoreBestRound();
+            
+            // a round measures its errors before it moves the centers, they only belong
+            // to the final centers if nothing moved; MINI_BATCH ends with a pass that doesn't move them
+            if(this.stopReason != ConvergencePolicy.StopReason.CONVERGED && this.algorithm != Algorithm.MINI_BATCH)
+                this.clusterErrors = null;
+        } finally {
+            this.pool.close();
+        }
+    }
+    
+    private double getMaxCenterShift(double[] previousCenters) {
+        double[] centerValues = this.centers.getValues();
+        double maxCenterShift = 0;
+        for(int cluster = 0; cluster < this.k; cluster++) {
+            double shift = this.metric.distance(previousCenters, cluster * this.dimensions, centerValues, cluster * this.dimensions, this.dimensions);
+            maxCenterShift = Math.max(maxCenterShift, shift);
+        }
+        
+        return maxCenterShift;
+    }
+    
+    private void keepBestRound(double sse) {
+        if(this.bestAssignment == null) {
+            this.bestAssignment = new int[this.assignment.length];
+            this.bestCenters = new double[this.k * this.dimensions];
+        }
+        
+        System.arraycopy(this.assignment, 0, this.bestAssignment, 0, this.assignment.length);
+        System.arraycopy(this.centers.getValues(), 0, this.bestCenters, 0, this.bestCenters.length);
+        this.bestSse = sse;
+    }
+    
+    /**
+     * Goes back to the assignment and centers of the round with the lowest SSE.
+     */
+    private void restoreBestRound() {
+        System.arraycopy(this.bestAssignment, 0, this.assignment, 0, this.assignment.length);
+        System.arraycopy(this.bestCenters, 0, this.centers.getValues(), 0, this.bestCenters.length);
+        recomputeClusterSums();
+        
+        // the kept errors belong to the last round; getEvaluation computes those of the restored one
+        this.clusterErrors = null;
+        if(this.lsh != null)
+            this.lsh.invalidateAll();
+    }
+    
+    /**
+     * The JfrListener, loaded by name so this class doesn't link against
+     * jdk.jfr; null if it wasn't built or the JVM has no JFR.
+     */
+    private static ClusteringListener createJfrListener() {
+        try {
+            return (ClusteringListener) Class.forName("kmeans.JfrListener").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+    
+    private boolean isObserved() {
+        if(JFR_LISTENER != null && JFR_LISTENER.isEnabled())
+            return true;
+        
+        for(ClusteringListener listener : this.listeners) {
+            if(listener.isEnabled())
+                return true;
+        }
+        
+        return false;
+    }
+    
+    private void notifyListeners(RoundStart start) {
+        long allocatedBytes = this.pool.getAllocatedBytes();
+        RoundStatistics statistics = new RoundStatistics(
+                this.roundCount,
+                System.nanoTime() - start.nanos,
+                this.reassignedPoints,
+                this.clusterErrors == null ? Double.NaN : getRoundSse(),
+                getMaxCenterShift(start.centers),
+                this.distanceComputations - start.distanceComputations,
+                this.skippedDistanceComputations - start.skippedDistanceComputations,
+                this.bucketHits - start.bucketHits,
+                allocatedBytes < 0 || start.allocatedBytes < 0 ? -1 : allocatedBytes - start.allocatedBytes);
+        
+        if(JFR_LISTENER != null && JFR_LISTENER.isEnabled())
+            JFR_LISTENER.roundFinished(this, statistics);
+        
+        for(ClusteringListener listener : this.listeners) {
+            if(listener.isEnabled())
+                listener.roundFinished(this, statistics);
+        }
+    }
+    
+    private double getRoundSse() {
+        double sse = 0;
+        for(double error : this.clusterErrors)
+            sse += error;
         
-        System.out.println("=== Converged after " + this.roundCount + " rounds ===");
+        return sse;
     }
     
     public void initializeClusters() throws KmeansException {
         this.clusters = new KmeansCluster[this.k];
+        this.centers = new ArrayPointMatrix(this.k, this.dimensions);
+        
+        if(!this.useHashing || this.algorithm == Algorithm.HAMERLY || this.warmStart != null)
+            this.lsh = null;
+        else if(this.lsh == null)
+            this.lsh = new LshIndex(this.points, this.k, this.lshTables, this.lshHashesPerTable, this.lshBucketWidth, this.seed);
+        else
+            this.lsh.invalidateAll();
         
         for(int i = 0; i < this.k; i++) {
-            this.clusters[i] = new KmeansCluster(i, this.dimensions);
+            this.clusters[i] = new KmeansCluster(i, this.points, this.assignment, this.centers);
         }
         
-        if(this.strategy == strategy.RANDOM_PARTITION) {
+        Arrays.fill(this.assignment, -1);
+        this.centerUpdateCounts = new long[this.k];
+        this.settledRounds = 0;
+        this.dataSpread = -1;
+        
+        if(this.warmStart != null) {
+            int knownRows = (int) this.warmStart.getTrainingRows();
+            System.arraycopy(this.warmStart.getAssignments(), 0, this.assignment, 0, knownRows);
+            recomputeClusterSums();
+            System.arraycopy(this.warmStart.getCenters(), 0, this.centers.getValues(), 0, this.k * this.dimensions);
+            
+            // new rows have no margin and are always looked at in the first round
+            this.margins = new double[this.assignment.length];
+            float[] knownMargins = this.warmStart.getMargins();
+            for(int row = 0; row < knownRows; row++)
+                this.margins[row] = knownMargins[row];
+        } else if(this.initialCenters != null) {
+            recomputeClusterSums();
+            System.arraycopy(this.initialCenters, 0, this.centers.getValues(), 0, this.initialCenters.length);
+        } else if(this.strategy == InitializationStrategy.RANDOM_PARTITION) {
             // randomly assign the points to clusters and then calculate the centroids
-            for(KmeansDataPoint dp : this.dataPoints) {
-                KmeansCluster randomCluster = this.clusters[random.nextInt(this.k)];
-                dp.setCluster(randomCluster);
+            for(int row = 0; row < this.assignment.length; row++) {
+                this.assignment[row] = random.nextInt(this.k);
             }
+            
+            recomputeClusterSums();
 
             for(KmeansCluster cluster : this.clusters) {
-                cluster.updateClusterCenter();
+                cluster.updateClusterCenter(this.clusterSums, cluster.getClusterId() * this.dimensions, this.clusterSizes[cluster.getClusterId()]);
             }
+        } else if(this.strategy == InitializationStrategy.KMEANS_PLUS_PLUS || this.strategy == InitializationStrategy.KMEANS_PARALLEL) {
+            recomputeClusterSums();
+            
+            double[] seeds = this.strategy == InitializationStrategy.KMEANS_PLUS_PLUS
+                    ? KmeansSeeding.kmeansPlusPlus(this.points, this.k, this.metric, this.random, this.pool)
+                    : KmeansSeeding.kmeansParallel(this.points, this.k, this.metric, this.random, this.pool);
+            System.arraycopy(seeds, 0, this.centers.getValues(), 0, seeds.length);
         } else {
+            recomputeClusterSums();
+            
             // choose random points as initial centroids
             for(KmeansCluster cluster : this.clusters) {
-                DataPoint center = this.dataPoints[this.random.nextInt(this.dataPoints.length)].getDataPoint();
+                DataPoint center = this.points.getPoint(this.random.nextInt(this.points.getRows()));
                 cluster.setClusterCenter(center);
             }
         }        
@@ -95,85 +434,750 @@ public class KmeansClustering {
     }
     
     public void runRound() throws KmeansException {
+        this.clusterErrors = null;
+        this.reassignedPoints = 0;
+        
+        switch(this.algorithm) {
+            case MACQUEEN:
+                runMacQueenRound();
+                break;
+            case HAMERLY:
+                runHamerlyRound();
+                break;
+            case MINI_BATCH:
+                runMiniBatchRound();
+                break;
+            default:
+                if(this.margins != null)
+                    runWarmRound();
+                else
+                    runChunkedRound();
+        }
+    }
+    
+    /**
+     * MacQueen: the clusters keep running sums of their points, so moving a
+     * point updates the two affected centers in O(dimensions). The sums are
+     * rebuilt from the assignment once per round so rounding errors can't pile up.
+     */
+    private void runMacQueenRound() throws KmeansException {
+        this.clustersChangedDuringRound = false;
+        RoundPartial partial = new RoundPartial(0, 0, this.lsh);
+        
+        recomputeClusterSums();
+        refreshCenterSignatures();
+        
+        for(int i = 0; i < this.assignment.length; i++) {
+            int closestCluster = findClosestClusterIndex(i, partial);
+            int lastAssignedCluster = this.assignment[i];
+            
+            if(lastAssignedCluster == closestCluster)
+                continue;
+            
+            this.clustersChangedDuringRound = true;
+            this.reassignedPoints++;
+            this.assignment[i] = closestCluster;
+            
+            moveRow(i, closestCluster, 1);
+            if(lastAssignedCluster != -1)
+                moveRow(i, lastAssignedCluster, -1); //update the cluster which "lost" the DataPoint
+        }
+        
+        this.bucketHits += partial.bucketHits;
+        this.distanceComputations += partial.distanceComputations;
+        this.skippedDistanceComputations += partial.skippedDistanceComputations;
+    }
+    
+    private void moveRow(int row, int cluster, int direction) {
+        int offset = cluster * this.dimensions;
+        
+        if(direction > 0)
+            this.points.addRowTo(row, this.clusterSums, offset);
+        else
+            this.points.subtractRowFrom(row, this.clusterSums, offset);
+        
+        this.clusterSizes[cluster] += direction;
+        if(this.clusters[cluster].updateClusterCenter(this.clusterSums, offset, this.clusterSizes[cluster]) && this.lsh != null) {
+            // only the moved center is hashed again, before the next point is assigned
+            this.lsh.invalidateCenter(cluster);
+            this.lsh.refreshCenter(this.centers.getValues(), this.dimensions, cluster);
+        }
+    }
+    
+    private void recomputeClusterSums() {
+        Arrays.fill(this.clusterSums, 0d);
+        Arrays.fill(this.clusterSizes, 0);
+        
+        for(int row = 0; row < this.assignment.length; row++) {
+            int cluster = this.assignment[row];
+            if(cluster != -1) {
+                this.points.addRowTo(row, this.clusterSums, cluster * this.dimensions);
+                this.clusterSizes[cluster]++;
+            }
+        }
+    }
+    
+    /**
+     * Lloyd: every chunk of points is assigned independently and sums up its
+     * points per cluster, the partial sums are then reduced into the new centers.
+     */
+    private void runChunkedRound() throws KmeansException {
+        refreshCenterSignatures();
+        
+        List<RoundPartial> partials = this.pool.run(this.points.getRows(), (chunk, fromRow, toRow) -> {
+            RoundPartial partial = new RoundPartial(this.k, this.dimensions, this.lsh);
+            
+            for(int row = fromRow; row < toRow; row++) {
+                int closest = findClosestClusterIndex(row, partial);
+                
+                if(this.assignment[row] != closest)
+                    partial.reassigned++;
+                
+                this.assignment[row] = closest;
+                this.points.addRowTo(row, partial.sums, closest * this.dimensions);
+                partial.counts[closest]++;
+                partial.addError(closest, this.metric.toDistance(partial.closestDistance));
+            }
+            
+            return partial;
+        });
+        
+        reducePartials(partials);
+        
+        // the last round doesn't move the centers, so its distances are those to the final centers
+        reduceErrors(partials);
+    }
+    
+    private void reduceErrors(List<RoundPartial> partials) {
+        this.clusterErrors = new double[this.k];
+        this.clusterDistances = new double[this.k];
+        
+        for(RoundPartial partial : partials) {
+            for(int cluster = 0; cluster < this.k; cluster++) {
+                this.clusterErrors[cluster] += partial.errors[cluster];
+                this.clusterDistances[cluster] += partial.distances[cluster];
+            }
+        }
+    }
+    
+    private void reducePartials(List<RoundPartial> partials) throws KmeansException {
+        Arrays.fill(this.clusterSums, 0d);
+        Arrays.fill(this.clusterSizes, 0);
         this.clustersChangedDuringRound = false;
-        KmeansDataPoint point;
-        KmeansDataPoint hashPoint;
-        for(int i = 0; i < this.dataPoints.length; i++) {
-            point = this.dataPoints[i];
-            hashPoint = this.hashDataPoints[i];
-            KmeansCluster closestCluster = findClosestCluster(point, hashPoint);
-            KmeansCluster lastAssignedCluster = point.getCluster();
-            
-            if(lastAssignedCluster != closestCluster)
-                this.clustersChangedDuringRound = true;
-            
-            point.setCluster(closestCluster);
+        
+        for(RoundPartial partial : partials) {
+            for(int i = 0; i < this.clusterSums.length; i++)
+                this.clusterSums[i] += partial.sums[i];
+            
+            for(int cluster = 0; cluster < this.k; cluster++)
+                this.clusterSizes[cluster] += partial.counts[cluster];
+            
+            this.clustersChangedDuringRound |= partial.reassigned > 0;
+            this.reassignedPoints += partial.reassigned;
+            this.bucketHits += partial.bucketHits;
+            this.distanceComputations += partial.distanceComputations;
+            this.skippedDistanceComputations += partial.skippedDistanceComputations;
+        }
+        
+        for(KmeansCluster cluster : this.clusters) {
+            boolean moved = cluster.updateClusterCenter(this.clusterSums, cluster.getClusterId() * this.dimensions, this.clusterSizes[cluster.getClusterId()]);
+            
+            if(moved && this.lsh != null)
+                this.lsh.invalidateCenter(cluster.getClusterId());
+        }
+    }
+    
+    /**
+     * Mini-batch (Sculley): the sampled points are assigned to the current
+     * centers, then every point pulls its center towards it with the learning
+     * rate 1 / (number of points the center has seen). Once the centers settle
+     * all points are assigned in one full pass, so the result is a complete
+     * assignment like with the other algorithms.
+     */
+    private void runMiniBatchRound() throws KmeansException {
+        if(this.dataSpread < 0)
+            this.dataSpread = computeDataSpread();
+        
+        refreshCenterSignatures();
+        
+        RoundPartial partial = new RoundPartial(0, 0, this.lsh);
+        int[] batch = new int[this.batchSize];
+        int[] closest = new int[this.batchSize];
+        for(int i = 0; i < this.batchSize; i++) {
+            batch[i] = this.random.nextInt(this.points.getRows());
+            closest[i] = findClosestClusterIndex(batch[i], partial);
+        }
+        
+        double[] centerValues = this.centers.getValues();
+        double[] oldCenters = centerValues.clone();
+        
+        for(int i = 0; i < this.batchSize; i++) {
+            int offset = closest[i] * this.dimensions;
+            double learningRate = 1d / ++this.centerUpdateCounts[closest[i]];
+            
+            for(int dimension = 0; dimension < this.dimensions; dimension++)
+                centerValues[offset + dimension] += learningRate * (this.points.get(batch[i], dimension) - centerValues[offset + dimension]);
+        }
+        
+        double largestShift = 0;
+        for(int cluster = 0; cluster < this.k; cluster++) {
+            double shift = this.metric.distance(oldCenters, cluster * this.dimensions, centerValues, cluster * this.dimensions, this.dimensions);
+            largestShift = Math.max(largestShift, shift);
+            
+            if(shift > 0 && this.lsh != null)
+                this.lsh.invalidateCenter(cluster);
+        }
+        
+        // a single batch is noisy, the centers have to stay put for a few rounds
+        this.settledRounds = largestShift <= this.batchTolerance * this.dataSpread ? this.settledRounds + 1 : 0;
+        
+        this.bucketHits += partial.bucketHits;
+        this.distanceComputations += partial.distanceComputations;
+        this.skippedDistanceComputations += partial.skippedDistanceComputations;
+        
+        this.clustersChangedDuringRound = this.settledRounds < MINI_BATCH_PATIENCE && this.roundCount + 1 < this.convergencePolicy.getMaxRounds();
+        if(!this.clustersChangedDuringRound)
+            assignAllPoints();
+    }
+    
+    private double computeDataSpread() throws KmeansException {
+        List<double[]> partials = this.pool.run(this.points.getRows(), (chunk, fromRow, toRow) -> {
+            double[] moments = new double[2 * this.dimensions];
+            
+            for(int row = fromRow; row < toRow; row++) {
+                for(int dimension = 0; dimension < this.dimensions; dimension++) {
+                    double value = this.points.get(row, dimension);
+                    moments[dimension] += value;
+                    moments[this.dimensions + dimension] += value * value;
+                }
+            }
+            
+            return moments;
+        });
+        
+        double[] moments = new double[2 * this.dimensions];
+        for(double[] partial : partials) {
+            for(int i = 0; i < moments.length; i++)
+                moments[i] += partial[i];
+        }
+        
+        double variance = 0;
+        int rows = this.points.getRows();
+        for(int dimension = 0; dimension < this.dimensions; dimension++) {
+            double mean = moments[dimension] / rows;
+            variance += Math.max(0, moments[this.dimensions + dimension] / rows - mean * mean);
+        }
+        
+        return Math.sqrt(variance);
+    }
+    
+    /**
+     * Assigns every point to its closest center and rebuilds the cluster sums
+     * without moving the centers.
+     */
+    private void assignAllPoints() throws KmeansException {
+        refreshCenterSignatures();
+        
+        List<RoundPartial> partials = this.pool.run(this.points.getRows(), (chunk, fromRow, toRow) -> {
+            RoundPartial partial = new RoundPartial(this.k, this.dimensions, this.lsh);
+            
+            for(int row = fromRow; row < toRow; row++) {
+                int closest = findClosestClusterIndex(row, partial);
+                if(this.assignment[row] != closest)
+                    partial.reassigned++;
+                
+                this.assignment[row] = closest;
+                this.points.addRowTo(row, partial.sums, closest * this.dimensions);
+                partial.counts[closest]++;
+                partial.addError(closest, this.metric.toDistance(partial.closestDistance));
+            }
+            
+            return partial;
+        });
+        
+        Arrays.fill(this.clusterSums, 0d);
+        Arrays.fill(this.clusterSizes, 0);
+        for(RoundPartial partial : partials) {
+            for(int i = 0; i < this.clusterSums.length; i++)
+                this.clusterSums[i] += partial.sums[i];
+            
+            for(int cluster = 0; cluster < this.k; cluster++)
+                this.clusterSizes[cluster] += partial.counts[cluster];
+            
+            this.bucketHits += partial.bucketHits;
+            this.reassignedPoints += partial.reassigned;
+            this.distanceComputations += partial.distanceComputations;
+            this.skippedDistanceComputations += partial.skippedDistanceComputations;
+        }
+        
+        reduceErrors(partials);
+    }
+    
+    /**
+     * Hamerly: a point keeps its center as long as the upper bound of its
+     * distance to it is below both the lower bound of its distance to any other
+     * center and half the distance from its center to the nearest other center.
+     * Gives the same assignment as an exact Lloyd round.
+     */
+    private void runHamerlyRound() throws KmeansException {
+        if(this.upperBounds == null) {
+            this.upperBounds = new double[this.assignment.length];
+            this.lowerBounds = new double[this.assignment.length];
+            Arrays.fill(this.upperBounds, Double.POSITIVE_INFINITY);
+        }
+        
+        double[] centerValues = this.centers.getValues();
+        double[] halfCenterDistances = new double[this.k];
+        for(int a = 0; a < this.k; a++) {
+            double minDistance = Double.POSITIVE_INFINITY;
+            for(int b = 0; b < this.k; b++) {
+                if(a != b)
+                    minDistance = Math.min(minDistance, this.metric.distance(centerValues, a * this.dimensions, centerValues, b * this.dimensions, this.dimensions));
+            }
+            halfCenterDistances[a] = minDistance / 2;
+        }
+        
+        List<RoundPartial> partials = this.pool.run(this.points.getRows(), (chunk, fromRow, toRow) -> {
+            RoundPartial partial = new RoundPartial(this.k, this.dimensions, null);
+            
+            for(int row = fromRow; row < toRow; row++) {
+                int closest = this.assignment[row];
+                
+                if(closest != -1) {
+                    double bound = Math.max(halfCenterDistances[closest], this.lowerBounds[row]);
+                    
+                    if(this.upperBounds[row] > bound) {
+                        // tighten the upper bound and try again before looking at all centers
+                        this.upperBounds[row] = this.points.getDistance(row, centerValues, closest * this.dimensions, this.metric);
+                        partial.distanceComputations++;
                         
-            if(updateAfterEachPoint) {
-                // MacQueen
-                closestCluster.updateClusterCenter();
-                if(lastAssignedCluster != null)
-                    lastAssignedCluster.updateClusterCenter(); //update the cluster which "lost" the DataPoint
+                        if(this.upperBounds[row] > bound)
+                            closest = scanAllCenters(row, closest, partial);
+                        else
+                            partial.skippedDistanceComputations += this.k - 1;
+                    } else {
+                        partial.skippedDistanceComputations += this.k;
+                    }
+                } else {
+                    closest = scanAllCenters(row, closest, partial);
+                }
+                
+                if(this.assignment[row] != closest)
+                    partial.reassigned++;
+                
+                this.assignment[row] = closest;
+                this.points.addRowTo(row, partial.sums, closest * this.dimensions);
+                partial.counts[closest]++;
+            }
+            
+            return partial;
+        });
+        
+        double[] oldCenters = centerValues.clone();
+        
+        reducePartials(partials);
+        
+        double[] shifts = new double[this.k];
+        double[] otherShifts = getCenterShifts(oldCenters, shifts);
+        for(int row = 0; row < this.assignment.length; row++) {
+            int cluster = this.assignment[row];
+            this.upperBounds[row] += shifts[cluster];
+            this.lowerBounds[row] -= otherShifts[cluster];
+        }
+    }
+    
+    /**
+     * Stores how far every center moved since oldCenters in shifts.
+     * 
+     * @return per cluster the largest shift of any other center
+     */
+    private double[] getCenterShifts(double[] oldCenters, double[] shifts) {
+        double[] centerValues = this.centers.getValues();
+        int farthestMovedCluster = 0;
+        double secondLargestShift = 0;
+        for(int cluster = 0; cluster < this.k; cluster++) {
+            shifts[cluster] = this.metric.distance(oldCenters, cluster * this.dimensions, centerValues, cluster * this.dimensions, this.dimensions);
+            
+            if(shifts[cluster] > shifts[farthestMovedCluster]) {
+                secondLargestShift = shifts[farthestMovedCluster];
+                farthestMovedCluster = cluster;
+            } else if(cluster != farthestMovedCluster && shifts[cluster] > secondLargestShift) {
+                secondLargestShift = shifts[cluster];
             }
         }
         
-        if(updateAfterEachRound) {
-            // Lloyd
-            for(KmeansCluster cluster : this.clusters) {
-                cluster.updateClusterCenter();
+        double[] otherShifts = new double[this.k];
+        for(int cluster = 0; cluster < this.k; cluster++)
+            otherShifts[cluster] = cluster == farthestMovedCluster ? secondLargestShift : shifts[farthestMovedCluster];
+        
+        return otherShifts;
+    }
+    
+    /**
+     * Warm start: a LLOYD round that only looks at the new rows and the rows
+     * whose margin dropped below 0. The margin is a lower bound of the
+     * distance to the closest other center minus the distance to the
+     * assigned one, so a row with a positive margin keeps its cluster. Moving
+     * centers shrink the margins by the shift of the own and the farthest
+     * moved other center; a scanned row gets its exact margin back. Gives the
+     * same assignment as an exact LLOYD round.
+     */
+    private void runWarmRound() throws KmeansException {
+        double[] centerValues = this.centers.getValues();
+        
+        List<RoundPartial> partials = this.pool.run(this.points.getRows(), (chunk, fromRow, toRow) -> {
+            RoundPartial partial = new RoundPartial(this.k, this.dimensions, null);
+            
+            for(int row = fromRow; row < toRow; row++) {
+                int closest = this.assignment[row];
+                
+                if(closest == -1 || this.margins[row] < 0)
+                    closest = scanMargin(row, partial);
+                else
+                    partial.skippedDistanceComputations += this.k;
+                
+                if(this.assignment[row] != closest)
+                    partial.reassigned++;
+                
+                this.assignment[row] = closest;
+                this.points.addRowTo(row, partial.sums, closest * this.dimensions);
+                partial.counts[closest]++;
+            }
+            
+            return partial;
+        });
+        
+        double[] oldCenters = centerValues.clone();
+        
+        reducePartials(partials);
+        
+        double[] shifts = new double[this.k];
+        double[] otherShifts = getCenterShifts(oldCenters, shifts);
+        for(int row = 0; row < this.assignment.length; row++) {
+            int cluster = this.assignment[row];
+            this.margins[row] -= shifts[cluster] + otherShifts[cluster];
+        }
+    }
+    
+    private int scanMargin(int row, RoundPartial partial) {
+        double[] centerValues = this.centers.getValues();
+        double closestDistance = Double.POSITIVE_INFINITY;
+        double secondClosestDistance = Double.POSITIVE_INFINITY;
+        int closestCluster = -1;
+        
+        for(int cluster = 0; cluster < this.k; cluster++) {
+            double distance = this.points.getDistance(row, centerValues, cluster * this.dimensions, this.metric);
+            
+            if(closestCluster == -1 || distance < closestDistance) {
+                secondClosestDistance = closestDistance;
+                closestDistance = distance;
+                closestCluster = cluster;
+            } else if(distance < secondClosestDistance) {
+                secondClosestDistance = distance;
+            }
+        }
+        
+        partial.distanceComputations += this.k;
+        this.margins[row] = secondClosestDistance - closestDistance;
+        return closestCluster;
+    }
+    
+    /**
+     * Computes the distance to every center and resets the bounds of the row;
+     * the distance to the currently assigned center is already in upperBounds.
+     */
+    private int scanAllCenters(int row, int assignedCluster, RoundPartial partial) {
+        double[] centerValues = this.centers.getValues();
+        double closestDistance = Double.POSITIVE_INFINITY;
+        double secondClosestDistance = Double.POSITIVE_INFINITY;
+        int closestCluster = -1;
+        
+        for(int cluster = 0; cluster < this.k; cluster++) {
+            double distance;
+            if(cluster == assignedCluster) {
+                distance = this.upperBounds[row];
+            } else {
+                distance = this.points.getDistance(row, centerValues, cluster * this.dimensions, this.metric);
+                partial.distanceComputations++;
+            }
+            
+            if(distance < closestDistance) {
+                secondClosestDistance = closestDistance;
+                closestDistance = distance;
+                closestCluster = cluster;
+            } else if(distance < secondClosestDistance) {
+                secondClosestDistance = distance;
             }
         }
+        
+        this.upperBounds[row] = closestDistance;
+        this.lowerBounds[row] = secondClosestDistance;
+        return closestCluster;
+    }
+    
+    public KmeansCluster findClosestCluster(int row) {
+        return this.clusters[findClosestClusterIndex(row, new RoundPartial(0, 0, this.lsh))];
+    }
+    
+    /**
+     * Brings the cached LSH buckets of the moved centers up to date.
+     */
+    private void refreshCenterSignatures() {
+        if(this.lsh != null)
+            this.lsh.refreshCenters(this.centers.getValues(), this.dimensions);
     }
     
-    public KmeansCluster findClosestCluster(KmeansDataPoint dataPoint, KmeansDataPoint hashPoint) throws KmeansException {
+    /**
+     * With LSH only the centers sharing a bucket with the point are compared,
+     * all centers if there are none.
+     */
+    private int findClosestClusterIndex(int row, RoundPartial partial) {
+        if(this.lsh != null) {
+            int candidates = this.lsh.getCandidates(row, partial.query);
+            
+            if(candidates > 0) {
+                partial.bucketHits++;
+                partial.distanceComputations += candidates;
+                partial.skippedDistanceComputations += this.k - candidates;
+                return findClosestCandidate(row, partial.query.candidates, candidates, partial);
+            }
+        }
+        
+        partial.distanceComputations += this.k;
+        return findClosestCenter(row, partial);
+    }
+    
+    /**
+     * Leaves the comparable distance to the closest center in partial.closestDistance.
+     */
+    private int findClosestCenter(int row, RoundPartial partial) {
+        double[] centerValues = this.centers.getValues();
         double currentDistance = 0;
-        KmeansCluster closestCluster = null;
+        int closestCluster = -1;
         double distance;
-        for(KmeansCluster cluster : this.clusters) {
-          //double distance = dataPoint.getDataPoint().getDistance(cluster.getClusterCenter());
-          distance = isInSameBucket(hashPoint, this.hasher.getAllHashesOfPoint(cluster.getClusterCenter())) ? 0 : dataPoint.getDataPoint().getDistance(cluster.getClusterCenter());
-          if(distance < currentDistance || closestCluster == null) {
+        for(int cluster = 0; cluster < this.k; cluster++) {
+          distance = this.points.getComparableDistance(row, centerValues, cluster * this.dimensions, this.metric);
+          
+          if(distance < currentDistance || closestCluster == -1) {
               closestCluster = cluster;
               currentDistance = distance;
-              if (distance == 0) {break;}
           }
         }
         
+        partial.closestDistance = currentDistance;
         return closestCluster;
     }
     
-    private boolean isInSameBucket(KmeansDataPoint hashPoint, DataPoint hashCenter) throws KmeansException{
-        int numberOfBlocks = 2;
-        int rowsPerBlock = hashCenter.getDimensions()/numberOfBlocks;
-        boolean same = true;
-        for (int b = 0; b < numberOfBlocks; b++) {
-            for (int r = 0; r < rowsPerBlock; r++) {
-                if (((int) hashPoint.getDataPoint().get(b*rowsPerBlock + r)/10) != ((int)hashCenter.get(b*rowsPerBlock + r)/10)){//buckets are [0,10][10,20]...
-                    same = false;
-                    break;
-                }
-            }
-            if (same == true){
-                same_number++;
-                return true;
+    private int findClosestCandidate(int row, int[] candidates, int count, RoundPartial partial) {
+        double[] centerValues = this.centers.getValues();
+        double currentDistance = 0;
+        int closestCluster = -1;
+        for(int i = 0; i < count; i++) {
+            int cluster = candidates[i];
+            double distance = this.points.getComparableDistance(row, centerValues, cluster * this.dimensions, this.metric);
+            
+            // candidates come in bucket order, ties go to the lowest id like in the full search
+            if(closestCluster == -1 || distance < currentDistance || (distance == currentDistance && cluster < closestCluster)) {
+                closestCluster = cluster;
+                currentDistance = distance;
             }
-            same = true;
         }
-        return false;
+        
+        partial.closestDistance = currentDistance;
+        return closestCluster;
+    }
+    
+    /**
+     * Compares LSH candidate search with an exact search against the current
+     * centers on up to sampleSize randomly chosen points.
+     */
+    public LshStatistics getLshStatistics(int sampleSize) throws KmeansException {
+        if(this.lsh == null || this.centers == null)
+            throw new KmeansException("LSH statistics need a clustering that was run with LSH");
+        
+        Random sampleRandom = this.seed == -1 ? new Random() : new Random(this.seed);
+        int samples = Math.min(sampleSize, this.points.getRows());
+        int[] rows = new int[samples];
+        for(int i = 0; i < samples; i++)
+            rows[i] = sampleRandom.nextInt(this.points.getRows());
+        
+        refreshCenterSignatures();
+        
+        int[] exact = new int[samples];
+        RoundPartial exactPartial = new RoundPartial(0, 0, null);
+        long exactStart = System.nanoTime();
+        for(int i = 0; i < samples; i++)
+            exact[i] = findClosestCenter(rows[i], exactPartial);
+        long exactNanos = System.nanoTime() - exactStart;
+        
+        RoundPartial partial = new RoundPartial(0, 0, this.lsh);
+        int exactMatches = 0;
+        long lshStart = System.nanoTime();
+        for(int i = 0; i < samples; i++) {
+            if(findClosestClusterIndex(rows[i], partial) == exact[i])
+                exactMatches++;
+        }
+        long lshNanos = System.nanoTime() - lshStart;
+        
+        double averageCandidates = samples == 0 ? 0 : (double) partial.distanceComputations / samples;
+        return new LshStatistics(samples, partial.bucketHits, exactMatches, averageCandidates, this.k, exactNanos, lshNanos);
+    }
+    
+    public boolean isUsingHashing() {
+        return this.lsh != null;
+    }
+    
+    /**
+     * How often a center had to be hashed for LSH, only moved centers are hashed again.
+     */
+    public long getCenterHashCount() {
+        return this.lsh == null ? 0 : this.lsh.getCenterHashCount();
     }
     
     public boolean isConverged() {
         return !clustersChangedDuringRound;
     }
     
-    public double getClusteringError(List<Integer> reality) {
+    /**
+     * Why the last run stopped, null before it ran.
+     */
+    public ConvergencePolicy.StopReason getStopReason() {
+        return this.stopReason;
+    }
+    
+    /**
+     * Whether the abandon check stopped the last run.
+     */
+    public boolean isAbandoned() {
+        return this.stopReason == ConvergencePolicy.StopReason.ABANDONED;
+    }
+    
+    public double getClusteringError(List<Integer> reality) throws KmeansException {
+        return getClusteringError(reality.stream().mapToInt(Integer::intValue).toArray());
+    }
+    
+    /**
+     * The NMI between the true clusters and the found ones.
+     */
+    public double getClusteringError(int[] reality) throws KmeansException {
+        return getMetrics(reality).getNmi();
+    }
+    
+    /**
+     * All external measures of the assignment against the true clusters, computed on the worker threads.
+     */
+    public ClusteringMetrics getMetrics(int[] reality) throws KmeansException {
+        return ClusteringMetrics.compare(reality, this.assignment, this.pool);
+    }
+    
+    /**
+     * SSE, Davies-Bouldin and Calinski-Harabasz of the result. They come for
+     * free from the last pass of a converged LLOYD run and of MINI_BATCH,
+     * otherwise they need one more pass over the points.
+     */
+    public ClusterEvaluation getEvaluation() throws KmeansException {
+        if(this.clusterErrors == null)
+            return ClusterEvaluation.compute(this.points, this.assignment, this.centers, this.metric, this.pool);
+        
+        long[] sizes = new long[this.k];
+        for(int cluster = 0; cluster < this.k; cluster++)
+            sizes[cluster] = this.clusterSizes[cluster];
+        
+        return new ClusterEvaluation(this.centers.getValues().clone(), this.dimensions, sizes, this.clusterErrors.clone(), this.clusterDistances.clone(), this.metric);
+    }
+    
+    /**
+     * The mean silhouette on a sample of at most sampleSize points, see ClusterEvaluation.silhouette.
+     */
+    public double getSilhouette(int sampleSize) throws KmeansException {
+        Random sampleRandom = this.seed == -1 ? new Random() : new Random(this.seed);
+        return ClusterEvaluation.silhouette(this.points, this.assignment, this.k, this.metric, sampleSize, sampleRandom, this.pool);
+    }
+    
+    /**
+     * The cluster id of every row of the point matrix.
+     */
+    public int[] getAssignments() {
+        return this.assignment.clone();
+    }
+    
+    public int[] getClusterSizes() {
+        return this.clusterSizes.clone();
+    }
+    
+    public PointMatrix getPoints() {
+        return this.points;
+    }
+    
+    /**
+     * A copy of the centers, one row per cluster.
+     */
+    public PointMatrix getCenters() throws KmeansException {
+        return new ArrayPointMatrix(this.k, this.dimensions, this.centers.getValues().clone());
+    }
+    
+    public int getK() {
+        return this.k;
+    }
+    
+    public int getRoundCount() {
+        return this.roundCount;
+    }
+    
+    public long getDistanceComputations() {
+        return this.distanceComputations;
+    }
+    
+    /**
+     * Points that found their closest center through a shared LSH bucket, over all rounds.
+     */
+    public long getBucketHits() {
+        return this.bucketHits;
+    }
+    
+    /**
+     * The number of point to center distances HAMERLY didn't have to compute.
+     */
+    public long getSkippedDistanceComputations() {
+        return this.skippedDistanceComputations;
+    }
+    
+    /**
+     * The counters and centers before a round, for its statistics.
+     */
+    private class RoundStart {
+        final long nanos = System.nanoTime();
+        final double[] centers = KmeansClustering.this.centers.getValues().clone();
+        final long distanceComputations = KmeansClustering.this.distanceComputations;
+        final long skippedDistanceComputations = KmeansClustering.this.skippedDistanceComputations;
+        final long bucketHits = KmeansClustering.this.bucketHits;
+        final long allocatedBytes = KmeansClustering.this.pool.getAllocatedBytes();
+    }
+    
+    private static class RoundPartial {
+        final double[] sums;
+        final int[] counts;
+        final double[] errors;
+        final double[] distances;
+        double closestDistance;
+        int reassigned;
+        int bucketHits;
+        long distanceComputations;
+        long skippedDistanceComputations;
+        final LshIndex.Query query;
+        
+        RoundPartial(int k, int dimensions, LshIndex lsh) {
+            this.sums = new double[k * dimensions];
+            this.counts = new int[k];
+            this.errors = new double[k];
+            this.distances = new double[k];
+            this.query = lsh == null ? null : lsh.newQuery();
+        }
         
-        System.out.println(this.same_number + " same buckets were founded.");
-        ArrayList<Integer> results = new ArrayList<Integer>();
-        for (int i = 0; i < this.dataPoints.length; i++){
-            results.add(this.dataPoints[i].getCluster().getClusterId());
+        void addError(int cluster, double distance) {
+            this.errors[cluster] += distance * distance;
+            this.distances[cluster] += distance;
         }
-        return CalculateNMI.NMI(new ArrayList<Integer>(reality), results);
     }
     
 }
@@ -0,0 +1,555 @@
+package kmeans;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The result of a clustering that can be stored and used to assign new
+ * points without clustering again.
+ *
+ * A new point belongs to the cluster of its closest center under the metric
+ * of the model. If the model has scaling parameters, points are given
+ * unscaled and transformed to (x - offset) / scale first, like the data the
+ * centers were computed on.
+ *
+ * Layout of a model file, all little-endian:
+ * <pre>
+ *  0  4 bytes  magic "KMMD"
+ *  4  int      format version (1)
+ *  8  int      k
+ * 12  int      dimensions
+ * 16  int      metric, index in DistanceMetric.values()
+ * 20  int      flags, bit 0: the file has scaling parameters,
+ *              bit 1: the file has row assignments
+ * 24  long     rows the model was trained on
+ * 32  int      rounds of the clustering
+ * 36  int      reserved (0)
+ * 40  double   SSE of the clustering
+ * 48  long     creation time, milliseconds since the epoch
+ * 56           k x dimensions center values, row-major
+ *              k ints with the size of every cluster
+ *              dimensions offsets and dimensions scales, if present
+ *              training rows ints with the cluster and training rows floats
+ *              with the margin of every row, if present
+ * </pre>
+ * The row assignments are optional since they grow with the data set; a
+ * clustering needs them to start warm, see KmeansClustering.setWarmStart.
+ * predict may be called from several threads at once; the batch variants
+ * split the points into chunks on the pool set with setThreads.
+ */
+public class KmeansModel implements AutoCloseable {
+
+    public static final int VERSION = 1;
+
+    private static final byte[] MAGIC = "KMMD".getBytes(StandardCharsets.US_ASCII);
+    private static final int HEADER_SIZE = 56;
+    private static final int FLAG_SCALING = 1;
+    private static final int FLAG_ASSIGNMENTS = 2;
+    // rows read from a BlockSource at once by the streaming predict
+    private static final int BLOCK_ROWS = 16 * WorkerPool.CHUNK_SIZE;
+
+    public interface AssignmentConsumer {
+        /**
+         * Called in row order with the clusters of rows firstRow .. firstRow + rows - 1.
+         */
+        void accept(long firstRow, int[] assignments, int rows) throws KmeansException, IOException;
+    }
+
+    private final int k;
+    private final int dimensions;
+    private final DistanceMetric metric;
+    private final double[] centers;
+    private final int[] clusterSizes;
+    private long trainingRows;
+    private int roundCount;
+    private double sse = Double.NaN;
+    private long createdMillis = System.currentTimeMillis();
+    private double[] offsets;
+    private double[] scales;
+    private int[] assignments;
+    private float[] margins;
+
+    private WorkerPool pool = new WorkerPool(1);
+    private final ThreadLocal<double[]> scratch;
+
+    /**
+     * @param centers k rows of dimensions values, copied
+     * @param clusterSizes the training points per cluster, copied
+     */
+    public KmeansModel(int k, int dimensions, DistanceMetric metric, double[] centers, int[] clusterSizes) throws KmeansException {
+        if(k < 1)
+            throw new KmeansException("cluster count must be greater then 0");
+
+        if(dimensions < 1)
+            throw new KmeansException("dimensionality must be greater then 0");
+
+        if(centers.length != k * dimensions)
+            throw new KmeansException("expected " + k * dimensions + " center values but got " + centers.length);
+
+        if(clusterSizes.length != k)
+            throw new KmeansException("expected " + k + " cluster sizes but got " + clusterSizes.length);
+
+        this.k = k;
+        this.dimensions = dimensions;
+        this.metric = metric;
+        this.centers = centers.clone();
+        this.clusterSizes = clusterSizes.clone();
+        this.scratch = ThreadLocal.withInitial(() -> new double[dimensions]);
+    }
+
+    /**
+     * The centers, metric and metadata of a finished clustering.
+     */
+    public static KmeansModel of(KmeansClustering clustering) throws KmeansException {
+        PointMatrix centers = clustering.getCenters();
+        double[] values = new double[clustering.getK() * centers.getDimensions()];
+        for(int cluster = 0; cluster < clustering.getK(); cluster++)
+            centers.copyRow(cluster, values, cluster * centers.getDimensions());
+
+        KmeansModel model = new KmeansModel(clustering.getK(), centers.getDimensions(), clustering.getMetric(), values, clustering.getClusterSizes());
+        model.trainingRows = clustering.getPoints().getRows();
+        model.roundCount = clustering.getRoundCount();
+        model.sse = clustering.getEvaluation().getSse();
+        return model;
+    }
+
+    /**
+     * Points are transformed to (x - offset) / scale before they are assigned;
+     * null for both removes the scaling. Not to be called while predicting.
+     */
+    public void setScaling(double[] offsets, double[] scales) throws KmeansException {
+        if(offsets == null && scales == null) {
+            this.offsets = null;
+            this.scales = null;
+            return;
+        }
+
+        if(offsets == null || scales == null || offsets.length != this.dimensions || scales.length != this.dimensions)
+            throw new KmeansException("expected " + this.dimensions + " offsets and scales");
+
+        for(double scale : scales) {
+            if(scale == 0 || !Double.isFinite(scale))
+                throw new KmeansException("scales must be finite and not 0: " + scale);
+        }
+
+        this.offsets = offsets.clone();
+        this.scales = scales.clone();
+    }
+
+    /**
+     * Keeps the cluster of every training row together with its margin, the
+     * distance to the closest other center minus the distance to the own
+     * one; the margins are computed here with one pass over the points, given
+     * like the clustering saw them. Makes the model as many rows long as the
+     * training data.
+     */
+    public void setAssignments(PointMatrix points, int[] assignments) throws KmeansException {
+        checkDimensions(points.getDimensions());
+
+        if(assignments.length != points.getRows())
+            throw new KmeansException("expected " + points.getRows() + " assignments but got " + assignments.length);
+
+        float[] rowMargins = new float[assignments.length];
+        this.pool.run(points.getRows(), (chunk, fromRow, toRow) -> {
+            for(int row = fromRow; row < toRow; row++) {
+                if(assignments[row] < 0 || assignments[row] >= this.k)
+                    throw new KmeansException("invalid cluster " + assignments[row] + " of row " + row);
+
+                double ownDistance = 0;
+                double otherDistance = Double.POSITIVE_INFINITY;
+                for(int cluster = 0; cluster < this.k; cluster++) {
+                    double distance = points.getDistance(row, this.centers, cluster * this.dimensions, this.metric);
+                    if(cluster == assignments[row])
+                        ownDistance = distance;
+                    else
+                        otherDistance = Math.min(otherDistance, distance);
+                }
+
+                // rounded down, the margin is used as a lower bound
+                double margin = otherDistance - ownDistance;
+                float rowMargin = (float) margin;
+                rowMargins[row] = rowMargin > margin ? Math.nextDown(rowMargin) : rowMargin;
+            }
+            return null;
+        });
+
+        this.assignments = assignments.clone();
+        this.margins = rowMargins;
+        this.trainingRows = assignments.length;
+    }
+
+    /**
+     * Threads used by the batch variants of predict. Not to be called while predicting.
+     */
+    public void setThreads(int threads) throws KmeansException {
+        WorkerPool threadPool = new WorkerPool(threads);
+        this.pool.close();
+        this.pool = threadPool;
+    }
+
+    public void write(String path) throws KmeansException, IOException {
+        long size = HEADER_SIZE + this.centers.length * Double.BYTES + this.k * Integer.BYTES
+                + (this.offsets != null ? 2 * this.dimensions * Double.BYTES : 0)
+                + (this.assignments != null ? (long) this.assignments.length * (Integer.BYTES + Float.BYTES) : 0);
+        if(size > Integer.MAX_VALUE)
+            throw new KmeansException("the model is too large to be written with its row assignments: " + size + " bytes");
+
+        ByteBuffer buffer = ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt(this.k);
+        buffer.putInt(this.dimensions);
+        buffer.putInt(this.metric.ordinal());
+        buffer.putInt((this.offsets != null ? FLAG_SCALING : 0) | (this.assignments != null ? FLAG_ASSIGNMENTS : 0));
+        buffer.putLong(this.trainingRows);
+        buffer.putInt(this.roundCount);
+        buffer.putInt(0);
+        buffer.putDouble(this.sse);
+        buffer.putLong(this.createdMillis);
+
+        for(double value : this.centers)
+            buffer.putDouble(value);
+
+        for(int clusterSize : this.clusterSizes)
+            buffer.putInt(clusterSize);
+
+        if(this.offsets != null) {
+            for(double offset : this.offsets)
+                buffer.putDouble(offset);
+
+            for(double scale : this.scales)
+                buffer.putDouble(scale);
+        }
+
+        if(this.assignments != null) {
+            buffer.asIntBuffer().put(this.assignments);
+            buffer.position(buffer.position() + this.assignments.length * Integer.BYTES);
+            buffer.asFloatBuffer().put(this.margins);
+            buffer.position(buffer.position() + this.margins.length * Float.BYTES);
+        }
+
+        buffer.flip();
+        try (RandomAccessFile file = new RandomAccessFile(path, "rw"); FileChannel channel = file.getChannel()) {
+            channel.truncate(0);
+            while(buffer.hasRemaining())
+                channel.write(buffer);
+        }
+    }
+
+    public static KmeansModel load(String path) throws KmeansException, IOException {
+        ByteBuffer buffer;
+        try (RandomAccessFile file = new RandomAccessFile(path, "r"); FileChannel channel = file.getChannel()) {
+            if(channel.size() < HEADER_SIZE)
+                throw new KmeansException(path + " is too short for a k-means model");
+
+            if(channel.size() > Integer.MAX_VALUE)
+                throw new KmeansException(path + " is too large for a k-means model");
+
+            buffer = ByteBuffer.allocate((int) channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+            while(buffer.hasRemaining()) {
+                if(channel.read(buffer, buffer.position()) < 0)
+                    throw new KmeansException("unexpected end of " + path);
+            }
+            buffer.flip();
+        }
+
+        byte[] magic = new byte[MAGIC.length];
+        buffer.get(magic);
+        if(!Arrays.equals(magic, MAGIC))
+            throw new KmeansException(path + " is not a k-means model");
+
+        int version = buffer.getInt();
+        if(version != VERSION)
+            throw new KmeansException(path + " has the unsupported model version " + version);
+
+        int k = buffer.getInt();
+        int dimensions = buffer.getInt();
+        int metricIndex = buffer.getInt();
+        int flags = buffer.getInt();
+        boolean hasScaling = (flags & FLAG_SCALING) != 0;
+        boolean hasAssignments = (flags & FLAG_ASSIGNMENTS) != 0;
+
+        if(k < 1 || dimensions < 1 || (long) k * dimensions > Integer.MAX_VALUE / Double.BYTES)
+            throw new KmeansException(path + " has invalid dimensions: " + k + "x" + dimensions);
+
+        if(metricIndex < 0 || metricIndex >= DistanceMetric.values().length)
+            throw new KmeansException(path + " has an unknown metric: " + metricIndex);
+
+        long trainingRows = buffer.getLong();
+        if(trainingRows < 0 || (hasAssignments && trainingRows > Integer.MAX_VALUE))
+            throw new KmeansException(path + " has an invalid row count: " + trainingRows);
+
+        long expectedSize = HEADER_SIZE + (long) k * dimensions * Double.BYTES + (long) k * Integer.BYTES
+                + (hasScaling ? 2L * dimensions * Double.BYTES : 0)
+                + (hasAssignments ? trainingRows * (Integer.BYTES + Float.BYTES) : 0);
+        if(buffer.limit() != expectedSize)
+            throw new KmeansException(path + " has the wrong size: expected " + expectedSize + " bytes but found " + buffer.limit());
+
+        int roundCount = buffer.getInt();
+        buffer.getInt();
+        double sse = buffer.getDouble();
+        long createdMillis = buffer.getLong();
+
+        double[] centers = new double[k * dimensions];
+        buffer.asDoubleBuffer().get(centers);
+        buffer.position(buffer.position() + centers.length * Double.BYTES);
+
+        int[] clusterSizes = new int[k];
+        buffer.asIntBuffer().get(clusterSizes);
+        buffer.position(buffer.position() + k * Integer.BYTES);
+
+        KmeansModel model = new KmeansModel(k, dimensions, DistanceMetric.values()[metricIndex], centers, clusterSizes);
+        model.trainingRows = trainingRows;
+        model.roundCount = roundCount;
+        model.sse = sse;
+        model.createdMillis = createdMillis;
+
+        if(hasScaling) {
+            double[] offsets = new double[dimensions];
+            double[] scales = new double[dimensions];
+            buffer.asDoubleBuffer().get(offsets);
+            buffer.position(buffer.position() + dimensions * Double.BYTES);
+            buffer.asDoubleBuffer().get(scales);
+            buffer.position(buffer.position() + dimensions * Double.BYTES);
+            model.setScaling(offsets, scales);
+        }
+
+        if(hasAssignments) {
+            int[] assignments = new int[(int) trainingRows];
+            float[] margins = new float[(int) trainingRows];
+            buffer.asIntBuffer().get(assignments);
+            buffer.position(buffer.position() + assignments.length * Integer.BYTES);
+            buffer.asFloatBuffer().get(margins);
+
+            for(int row = 0; row < assignments.length; row++) {
+                if(assignments[row] < 0 || assignments[row] >= k)
+                    throw new KmeansException(path + " has the invalid cluster " + assignments[row] + " for row " + row);
+            }
+
+            model.assignments = assignments;
+            model.margins = margins;
+        }
+
+        return model;
+    }
+
+    /**
+     * The cluster of a single point.
+     */
+    public int predict(double[] point) throws KmeansException {
+        checkDimensions(point.length);
+
+        return closestCenter(scale(point, 0, this.scratch.get()), 0);
+    }
+
+    /**
+     * The cluster of every point, computed in parallel.
+     */
+    public int[] predict(double[][] points) throws KmeansException {
+        for(double[] point : points)
+            checkDimensions(point.length);
+
+        int[] assignments = new int[points.length];
+        this.pool.run(points.length, (chunk, fromRow, toRow) -> {
+            double[] values = new double[this.dimensions];
+            for(int row = fromRow; row < toRow; row++)
+                assignments[row] = closestCenter(scale(points[row], 0, values), 0);
+            return null;
+        });
+
+        return assignments;
+    }
+
+    /**
+     * The cluster of every row, computed in parallel. Float32 and int8
+     * matrices are compared with their own kernels if there is no scaling.
+     */
+    public int[] predict(PointMatrix points) throws KmeansException {
+        checkDimensions(points.getDimensions());
+
+        int[] assignments = new int[points.getRows()];
+        predictRows(points, assignments);
+        return assignments;
+    }
+
+    /**
+     * Reads the source block by block and hands the clusters of every block
+     * to the consumer, for data sets that don't fit into memory.
+     *
+     * @return the number of rows predicted
+     */
+    public long predict(BlockSource source, AssignmentConsumer consumer) throws KmeansException, IOException {
+        checkDimensions(source.getDimensions());
+
+        double[] values = new double[BLOCK_ROWS * this.dimensions];
+        int[] assignments = new int[BLOCK_ROWS];
+        long firstRow = 0;
+
+        int rows;
+        while((rows = source.read(values, BLOCK_ROWS)) > 0) {
+            predictRows(new ArrayPointMatrix(rows, this.dimensions, values), assignments);
+            consumer.accept(firstRow, assignments, rows);
+            firstRow += rows;
+        }
+
+        return firstRow;
+    }
+
+    private void predictRows(PointMatrix points, int[] assignments) throws KmeansException {
+        this.pool.run(points.getRows(), (chunk, fromRow, toRow) -> {
+            if(this.offsets == null) {
+                for(int row = fromRow; row < toRow; row++)
+                    assignments[row] = closestCenter(points, row);
+            } else {
+                double[] values = new double[this.dimensions];
+                for(int row = fromRow; row < toRow; row++) {
+                    points.copyRow(row, values, 0);
+                    assignments[row] = closestCenter(scale(values, 0, values), 0);
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * The point at values[offset ..] scaled into target, or values itself without scaling.
+     */
+    private double[] scale(double[] values, int offset, double[] target) {
+        if(this.offsets == null)
+            return values;
+
+        for(int dimension = 0; dimension < this.dimensions; dimension++)
+            target[dimension] = (values[offset + dimension] - this.offsets[dimension]) / this.scales[dimension];
+
+        return target;
+    }
+
+    private int closestCenter(double[] values, int offset) {
+        int closest = 0;
+        double closestDistance = Double.POSITIVE_INFINITY;
+
+        for(int cluster = 0; cluster < this.k; cluster++) {
+            double distance = this.metric.comparableDistance(values, offset, this.centers, cluster * this.dimensions, this.dimensions);
+            if(distance < closestDistance) {
+                closestDistance = distance;
+                closest = cluster;
+            }
+        }
+
+        return closest;
+    }
+
+    private int closestCenter(PointMatrix points, int row) {
+        int closest = 0;
+        double closestDistance = Double.POSITIVE_INFINITY;
+
+        for(int cluster = 0; cluster < this.k; cluster++) {
+            double distance = points.getComparableDistance(row, this.centers, cluster * this.dimensions, this.metric);
+            if(distance < closestDistance) {
+                closestDistance = distance;
+                closest = cluster;
+            }
+        }
+
+        return closest;
+    }
+
+    private void checkDimensions(int dimensions) throws KmeansException {
+        if(dimensions != this.dimensions)
+            throw new KmeansException("the model expects " + this.dimensions + " dimensions but got " + dimensions);
+    }
+
+    public int getK() {
+        return this.k;
+    }
+
+    public int getDimensions() {
+        return this.dimensions;
+    }
+
+    public DistanceMetric getMetric() {
+        return this.metric;
+    }
+
+    /**
+     * A copy of the centers, row-major, in the scaled space.
+     */
+    public double[] getCenters() {
+        return this.centers.clone();
+    }
+
+    public int[] getClusterSizes() {
+        return this.clusterSizes.clone();
+    }
+
+    public boolean hasScaling() {
+        return this.offsets != null;
+    }
+
+    /**
+     * null without scaling.
+     */
+    public double[] getOffsets() {
+        return this.offsets == null ? null : this.offsets.clone();
+    }
+
+    public double[] getScales() {
+        return this.scales == null ? null : this.scales.clone();
+    }
+
+    public boolean hasAssignments() {
+        return this.assignments != null;
+    }
+
+    /**
+     * The cluster of every training row, null without row assignments.
+     */
+    public int[] getAssignments() {
+        return this.assignments == null ? null : this.assignments.clone();
+    }
+
+    /**
+     * A lower bound of the margin of every training row, see setAssignments.
+     */
+    public float[] getMargins() {
+        return this.margins == null ? null : this.margins.clone();
+    }
+
+    public long getTrainingRows() {
+        return this.trainingRows;
+    }
+
+    public int getRoundCount() {
+        return this.roundCount;
+    }
+
+    /**
+     * NaN if unknown.
+     */
+    public double getSse() {
+        return this.sse;
+    }
+
+    public long getCreatedMillis() {
+        return this.createdMillis;
+    }
+
+    /**
+     * Stops the threads of the pool; predict starts new ones if it is used again.
+     */
+    @Override
+    public void close() {
+        this.pool.close();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("KmeansModel k=%d dimensions=%d metric=%s scaling=%b assignments=%b trainingRows=%d rounds=%d SSE=%.6g",
+                this.k, this.dimensions, this.metric, hasScaling(), hasAssignments(), this.trainingRows, this.roundCount, this.sse);
+    }
+}
@@ -0,0 +1,242 @@
+package kmeans;
+
+import java.util.List;
+import java.util.Random;
+import java.util.function.DoublePredicate;
+
+/**
+ * Runs k-means several times from different random starts on one shared
+ * point matrix and keeps the run with the lowest SSE.
+ *
+ * The restarts are independent tasks on one WorkerPool, so they run in
+ * parallel without copying the points. A finished restart replaces the best
+ * one only if its SSE is lower, the other assignments are dropped right away,
+ * so at most one assignment per thread plus the best one are alive.
+ *
+ * LLOYD restarts are abandoned early when their SSE trajectory can't beat the
+ * best finished restart: the SSE of Lloyd rounds only goes down and the
+ * decrease shrinks roughly geometrically, so a run whose SSE minus the
+ * extrapolated remaining decrease still lies more than abandonMargin above
+ * the best SSE is stopped. With more than one thread, which restarts are
+ * abandoned depends on the order they finish in.
+ */
+public class KmeansRestarts {
+
+    // rounds a restart runs before its trajectory is judged
+    private static final int ABANDON_MIN_ROUNDS = 3;
+
+    private final PointMatrix points;
+    private final int k;
+    private final int restarts;
+
+    private int firstSeed = -1;
+    private int threads = 1;
+    private KmeansClustering.InitializationStrategy strategy = KmeansClustering.InitializationStrategy.RANDOM_PARTITION;
+    private KmeansClustering.Algorithm algorithm = KmeansClustering.Algorithm.LLOYD;
+    private DistanceMetric metric = DistanceMetric.EUCLIDEAN;
+    private boolean useHashing = false;
+    private ConvergencePolicy convergencePolicy = new ConvergencePolicy();
+    private double abandonMargin = 0.01;
+
+    private KmeansClustering best;
+    private int bestRestart;
+    private volatile double bestSse;
+    private double[] restartSse;
+    private int abandoned;
+    private int unconverged;
+    private long totalRounds;
+
+    public KmeansRestarts(PointMatrix points, int k, int restarts) throws KmeansException {
+        if(restarts < 1)
+            throw new KmeansException("restart count must be greater then 0");
+
+        if(k < 1 || k > points.getRows())
+            throw new KmeansException("invalid cluster count " + k + " for " + points.getRows() + " rows");
+
+        this.points = points;
+        this.k = k;
+        this.restarts = restarts;
+    }
+
+    /**
+     * Restart i uses the seed firstSeed + i, or a random one for -1.
+     */
+    public void setSeed(int firstSeed) {
+        this.firstSeed = firstSeed;
+    }
+
+    /**
+     * Restarts run in parallel; if there are fewer restarts than threads, each gets several.
+     */
+    public void setThreads(int threads) throws KmeansException {
+        if(threads < 1)
+            throw new KmeansException("thread count must be greater then 0");
+
+        this.threads = threads;
+    }
+
+    public void setInitializationStrategy(KmeansClustering.InitializationStrategy strategy) {
+        this.strategy = strategy;
+    }
+
+    public void setAlgorithm(KmeansClustering.Algorithm algorithm) {
+        this.algorithm = algorithm;
+    }
+
+    public void setMetric(DistanceMetric metric) {
+        this.metric = metric;
+    }
+
+    /**
+     * Off by default, every restart would build its own LSH index.
+     */
+    public void setUseHashing(boolean useHashing) {
+        this.useHashing = useHashing;
+    }
+
+    public void setConvergencePolicy(ConvergencePolicy convergencePolicy) {
+        this.convergencePolicy = convergencePolicy.copy();
+    }
+
+    /**
+     * How far, relative to the best SSE, the projected SSE of a restart must
+     * stay above it to abandon the restart; a negative margin never abandons.
+     */
+    public void setAbandonMargin(double abandonMargin) {
+        this.abandonMargin = abandonMargin;
+    }
+
+    public void run() throws KmeansException {
+        Random seedRandom = new Random();
+        int[] seeds = new int[this.restarts];
+        for(int restart = 0; restart < this.restarts; restart++)
+            seeds[restart] = this.firstSeed == -1 ? seedRandom.nextInt(Integer.MAX_VALUE) : this.firstSeed + restart;
+
+        this.best = null;
+        this.bestRestart = -1;
+        this.bestSse = Double.POSITIVE_INFINITY;
+        this.restartSse = new double[this.restarts];
+        this.abandoned = 0;
+        this.unconverged = 0;
+        this.totalRounds = 0;
+
+        int threadsPerRestart = Math.max(1, this.threads / this.restarts);
+
+        try (WorkerPool pool = new WorkerPool(Math.min(this.threads, this.restarts))) {
+            List<Double> sses = pool.run(this.restarts, 1, (restart, from, to) -> runRestart(restart, seeds[restart], threadsPerRestart));
+
+            for(int restart = 0; restart < this.restarts; restart++)
+                this.restartSse[restart] = sses.get(restart);
+        }
+
+        if(this.best == null)
+            throw new KmeansException("all " + this.restarts + " restarts were abandoned");
+    }
+
+    /**
+     * @return the final SSE, NaN if the restart was abandoned
+     */
+    private double runRestart(int restart, int seed, int threads) throws KmeansException {
+        KmeansClustering clustering = new KmeansClustering(this.points, this.k, seed, this.strategy, this.algorithm);
+        clustering.setThreads(threads);
+        clustering.setUseHashing(this.useHashing);
+        clustering.setMetric(this.metric);
+        clustering.setConvergencePolicy(this.convergencePolicy);
+        if(this.abandonMargin >= 0)
+            clustering.setAbandonCheck(new Trajectory());
+
+        clustering.run();
+
+        if(clustering.isAbandoned()) {
+            synchronized(this) {
+                this.totalRounds += clustering.getRoundCount();
+                this.abandoned++;
+            }
+            return Double.NaN;
+        }
+
+        double sse = clustering.getEvaluation().getSse();
+        synchronized(this) {
+            this.totalRounds += clustering.getRoundCount();
+            if(clustering.getStopReason() == ConvergencePolicy.StopReason.MAX_ROUNDS)
+                this.unconverged++;
+
+            // ties go to the lower restart, so the pick doesn't depend on the finishing order
+            if(sse < this.bestSse || (sse == this.bestSse && restart < this.bestRestart)) {
+                this.best = clustering;
+                this.bestRestart = restart;
+                this.bestSse = sse;
+            }
+        }
+
+        return sse;
+    }
+
+    /**
+     * The SSE of the rounds of one restart; abandons once even the
+     * geometrically extrapolated final SSE stays above the best one.
+     */
+    private class Trajectory implements DoublePredicate {
+        private int rounds;
+        private double lastSse = Double.NaN;
+        private double lastDecrease = Double.NaN;
+
+        @Override
+        public boolean test(double sse) {
+            double decrease = this.lastSse - sse;
+            double previousDecrease = this.lastDecrease;
+            this.lastSse = sse;
+            this.lastDecrease = decrease;
+
+            if(++this.rounds < ABANDON_MIN_ROUNDS || !(decrease >= 0) || !(previousDecrease > 0))
+                return false;
+
+            double ratio = decrease / previousDecrease;
+            if(ratio >= 1)
+                return false;
+
+            double projected = sse - decrease * ratio / (1 - ratio);
+            return projected > KmeansRestarts.this.bestSse * (1 + KmeansRestarts.this.abandonMargin);
+        }
+    }
+
+    /**
+     * The restart with the lowest SSE.
+     */
+    public KmeansClustering getBest() {
+        return this.best;
+    }
+
+    public int getBestRestart() {
+        return this.bestRestart;
+    }
+
+    public double getBestSse() {
+        return this.bestSse;
+    }
+
+    /**
+     * The final SSE of every restart, NaN for abandoned ones.
+     */
+    public double[] getRestartSse() {
+        return this.restartSse.clone();
+    }
+
+    public int getAbandonedCount() {
+        return this.abandoned;
+    }
+
+    /**
+     * Restarts that ran out of rounds; they still compete with their best round.
+     */
+    public int getUnconvergedCount() {
+        return this.unconverged;
+    }
+
+    /**
+     * Rounds run by all restarts together, abandoned ones included.
+     */
+    public long getTotalRounds() {
+        return this.totalRounds;
+    }
+}
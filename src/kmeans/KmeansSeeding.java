@@ -0,0 +1,265 @@
+package kmeans;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * k-means++ and k-means|| seeding.
+ *
+ * Both keep the squared distance of every point to its closest chosen center
+ * and only compare the points against newly chosen centers. The distance
+ * updates run in chunks on a WorkerPool and the chunk totals are summed in
+ * chunk order, so a seed gives the same centers for any number of threads.
+ */
+public final class KmeansSeeding {
+
+    public static final int PARALLEL_ROUNDS = 5;
+    public static final int PARALLEL_OVERSAMPLING = 2;
+    private static final int RECLUSTER_ROUNDS = 20;
+
+    private KmeansSeeding() {
+    }
+
+    /**
+     * k-means++: every further center is drawn with probability proportional
+     * to the squared distance to the closest center chosen so far.
+     *
+     * @return k centers, row-major
+     */
+    public static double[] kmeansPlusPlus(PointMatrix points, int k, DistanceMetric metric, Random random, WorkerPool pool) throws KmeansException {
+        int dimensions = points.getDimensions();
+        double[] centers = new double[k * dimensions];
+        double[] minDistances = new double[points.getRows()];
+        Arrays.fill(minDistances, Double.POSITIVE_INFINITY);
+
+        points.copyRow(random.nextInt(points.getRows()), centers, 0);
+        double[] chunkTotals = updateMinDistances(points, minDistances, null, centers, 0, 1, metric, pool);
+
+        for(int center = 1; center < k; center++) {
+            int row = sampleRow(minDistances, chunkTotals, random);
+            points.copyRow(row, centers, center * dimensions);
+            chunkTotals = updateMinDistances(points, minDistances, null, centers, center, center + 1, metric, pool);
+        }
+
+        return centers;
+    }
+
+    /**
+     * k-means|| (Bahmani et al.): PARALLEL_ROUNDS rounds each sample every point
+     * independently with probability PARALLEL_OVERSAMPLING * k * d^2 / total.
+     * The candidates are weighted by the number of points closest to them and
+     * reduced to k centers by a weighted k-means++ followed by weighted Lloyd rounds.
+     *
+     * @return k centers, row-major
+     */
+    public static double[] kmeansParallel(PointMatrix points, int k, DistanceMetric metric, Random random, WorkerPool pool) throws KmeansException {
+        int dimensions = points.getDimensions();
+        int rows = points.getRows();
+        double oversampling = PARALLEL_OVERSAMPLING * k;
+
+        double[] minDistances = new double[rows];
+        int[] closestCandidates = new int[rows];
+        Arrays.fill(minDistances, Double.POSITIVE_INFINITY);
+
+        double[] candidates = new double[dimensions];
+        points.copyRow(random.nextInt(rows), candidates, 0);
+        int candidateCount = 1;
+        double[] chunkTotals = updateMinDistances(points, minDistances, closestCandidates, candidates, 0, 1, metric, pool);
+
+        for(int round = 0; round < PARALLEL_ROUNDS; round++) {
+            double total = sum(chunkTotals);
+            if(total == 0)
+                break;
+
+            long roundSeed = random.nextLong();
+            List<int[]> sampled = pool.run(rows, (chunk, fromRow, toRow) -> {
+                Random chunkRandom = new Random(roundSeed + chunk);
+                int[] chunkSample = new int[toRow - fromRow];
+                int count = 0;
+
+                for(int row = fromRow; row < toRow; row++) {
+                    if(chunkRandom.nextDouble() * total < oversampling * minDistances[row])
+                        chunkSample[count++] = row;
+                }
+
+                return Arrays.copyOf(chunkSample, count);
+            });
+
+            int newCandidates = sampled.stream().mapToInt(chunkSample -> chunkSample.length).sum();
+            if(newCandidates == 0)
+                continue;
+
+            candidates = Arrays.copyOf(candidates, (candidateCount + newCandidates) * dimensions);
+            int firstNew = candidateCount;
+            for(int[] chunkSample : sampled) {
+                for(int row : chunkSample)
+                    points.copyRow(row, candidates, dimensions * candidateCount++);
+            }
+
+            chunkTotals = updateMinDistances(points, minDistances, closestCandidates, candidates, firstNew, candidateCount, metric, pool);
+        }
+
+        // too few candidates on tiny or degenerate data: fill up with k-means++ steps
+        while(candidateCount < k) {
+            int row = sampleRow(minDistances, chunkTotals, random);
+            candidates = Arrays.copyOf(candidates, (candidateCount + 1) * dimensions);
+            points.copyRow(row, candidates, dimensions * candidateCount++);
+            chunkTotals = updateMinDistances(points, minDistances, closestCandidates, candidates, candidateCount - 1, candidateCount, metric, pool);
+        }
+
+        double[] weights = new double[candidateCount];
+        for(int row = 0; row < rows; row++)
+            weights[closestCandidates[row]]++;
+
+        return reduceCandidates(candidates, weights, candidateCount, k, dimensions, metric, random);
+    }
+
+    /**
+     * Lowers minDistances[row] to the squared distance to the centers
+     * [fromCenter, toCenter) where they are closer and remembers the closest
+     * center in closestCenters if it isn't null.
+     *
+     * @return the sum of minDistances per chunk
+     */
+    private static double[] updateMinDistances(PointMatrix points, double[] minDistances, int[] closestCenters, double[] centers, int fromCenter, int toCenter, DistanceMetric metric, WorkerPool pool) throws KmeansException {
+        int dimensions = points.getDimensions();
+
+        List<Double> totals = pool.run(points.getRows(), (chunk, fromRow, toRow) -> {
+            double total = 0;
+
+            for(int row = fromRow; row < toRow; row++) {
+                for(int center = fromCenter; center < toCenter; center++) {
+                    double distance = points.getSquaredDistance(row, centers, center * dimensions, metric);
+                    if(distance < minDistances[row]) {
+                        minDistances[row] = distance;
+                        if(closestCenters != null)
+                            closestCenters[row] = center;
+                    }
+                }
+                total += minDistances[row];
+            }
+
+            return total;
+        });
+
+        return totals.stream().mapToDouble(Double::doubleValue).toArray();
+    }
+
+    /**
+     * Draws a row with probability proportional to its minDistance, first the
+     * chunk by its total and then the row inside the chunk.
+     */
+    private static int sampleRow(double[] minDistances, double[] chunkTotals, Random random) {
+        double total = sum(chunkTotals);
+        if(total == 0)
+            return random.nextInt(minDistances.length);
+
+        double target = random.nextDouble() * total;
+        int chunk = 0;
+        while(chunk < chunkTotals.length - 1 && target >= chunkTotals[chunk]) {
+            target -= chunkTotals[chunk];
+            chunk++;
+        }
+
+        int fromRow = chunk * WorkerPool.CHUNK_SIZE;
+        int toRow = Math.min(minDistances.length, fromRow + WorkerPool.CHUNK_SIZE);
+        int lastPositive = -1;
+        for(int row = fromRow; row < toRow; row++) {
+            if(minDistances[row] > 0) {
+                lastPositive = row;
+                target -= minDistances[row];
+                if(target < 0)
+                    return row;
+            }
+        }
+
+        // rounding left a tiny rest
+        return lastPositive != -1 ? lastPositive : random.nextInt(minDistances.length);
+    }
+
+    /**
+     * Weighted k-means++ on the candidates, refined with weighted Lloyd rounds.
+     */
+    private static double[] reduceCandidates(double[] candidates, double[] weights, int candidateCount, int k, int dimensions, DistanceMetric metric, Random random) {
+        double[] centers = new double[k * dimensions];
+        double[] minDistances = new double[candidateCount];
+        Arrays.fill(minDistances, Double.POSITIVE_INFINITY);
+
+        int first = sampleWeighted(weights, null, candidateCount, random);
+        System.arraycopy(candidates, first * dimensions, centers, 0, dimensions);
+
+        for(int center = 0; center < k; center++) {
+            if(center > 0) {
+                int next = sampleWeighted(weights, minDistances, candidateCount, random);
+                System.arraycopy(candidates, next * dimensions, centers, center * dimensions, dimensions);
+            }
+
+            for(int candidate = 0; candidate < candidateCount; candidate++)
+                minDistances[candidate] = Math.min(minDistances[candidate], metric.squaredDistance(candidates, candidate * dimensions, centers, center * dimensions, dimensions));
+        }
+
+        int[] assignment = new int[candidateCount];
+        Arrays.fill(assignment, -1);
+        for(int round = 0; round < RECLUSTER_ROUNDS; round++) {
+            boolean changed = false;
+            double[] sums = new double[k * dimensions];
+            double[] totals = new double[k];
+
+            for(int candidate = 0; candidate < candidateCount; candidate++) {
+                int closest = 0;
+                double closestDistance = Double.POSITIVE_INFINITY;
+                for(int center = 0; center < k; center++) {
+                    double distance = metric.comparableDistance(candidates, candidate * dimensions, centers, center * dimensions, dimensions);
+                    if(distance < closestDistance) {
+                        closestDistance = distance;
+                        closest = center;
+                    }
+                }
+
+                changed |= assignment[candidate] != closest;
+                assignment[candidate] = closest;
+                totals[closest] += weights[candidate];
+                for(int dimension = 0; dimension < dimensions; dimension++)
+                    sums[closest * dimensions + dimension] += weights[candidate] * candidates[candidate * dimensions + dimension];
+            }
+
+            if(!changed)
+                break;
+
+            for(int center = 0; center < k; center++) {
+                if(totals[center] > 0) {
+                    for(int dimension = 0; dimension < dimensions; dimension++)
+                        centers[center * dimensions + dimension] = sums[center * dimensions + dimension] / totals[center];
+                }
+            }
+        }
+
+        return centers;
+    }
+
+    private static int sampleWeighted(double[] weights, double[] minDistances, int count, Random random) {
+        double total = 0;
+        for(int i = 0; i < count; i++)
+            total += weights[i] * (minDistances == null ? 1 : minDistances[i]);
+
+        if(total == 0)
+            return random.nextInt(count);
+
+        double target = random.nextDouble() * total;
+        for(int i = 0; i < count; i++) {
+            target -= weights[i] * (minDistances == null ? 1 : minDistances[i]);
+            if(target < 0)
+                return i;
+        }
+
+        return count - 1;
+    }
+
+    private static double sum(double[] values) {
+        double sum = 0;
+        for(double value : values)
+            sum += value;
+        return sum;
+    }
+}
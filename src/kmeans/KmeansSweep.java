@@ -0,0 +1,478 @@
+package kmeans;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Clusters the same points with every k of a range and several seeds per k,
+ * and picks the best k.
+ *
+ * All runs share the point matrix, each only adds its own assignment, and
+ * only the best clustering of every k is kept once a run finishes. The
+ * runs are independent tasks on one WorkerPool and run single threaded, so
+ * the results don't depend on the number of threads. Seeding is shared: the
+ * first k centers of a k-means++ seeding for the largest k are a k-means++
+ * seeding for k, so every seed is drawn once for maxK and its prefixes start
+ * the runs of the smaller k.
+ *
+ * Per k the seed with the lowest SSE is kept and reported with its
+ * silhouette, its NMI if labels are known, and the gap statistic (Tibshirani
+ * et al.): the mean log SSE per point of clusterings of uniform reference
+ * data in the bounding box of the points, minus that of the points. The
+ * reference sets are drawn with gapSampleSize points each, so they stay small
+ * on large data.
+ */
+public class KmeansSweep {
+
+    public enum Criterion {
+        // the largest silhouette
+        SILHOUETTE,
+        // the smallest k with gap(k) >= gap(k + 1) - error(k + 1)
+        GAP,
+        // the k whose SSE lies farthest below the line from the first to the last SSE
+        ELBOW
+    }
+
+    private final PointMatrix points;
+    private final int minK;
+    private final int maxK;
+    private final int dimensions;
+
+    private int seeds = 3;
+    private int firstSeed = -1;
+    private int threads = 1;
+    private KmeansClustering.Algorithm algorithm = KmeansClustering.Algorithm.LLOYD;
+    private DistanceMetric metric = DistanceMetric.EUCLIDEAN;
+    private boolean useHashing = false;
+    private ConvergencePolicy convergencePolicy = new ConvergencePolicy();
+    private int[] labels;
+    private int silhouetteSample = 2000;
+    private int gapReferences = 5;
+    private int gapSampleSize = 10000;
+    private Criterion criterion = Criterion.SILHOUETTE;
+
+    private List<Result> results;
+    private Result best;
+
+    public KmeansSweep(PointMatrix points, int minK, int maxK) throws KmeansException {
+        if(minK < 1 || maxK < minK)
+            throw new KmeansException("invalid k range " + minK + " to " + maxK);
+
+        if(maxK > points.getRows())
+            throw new KmeansException("the data set has fewer rows (" + points.getRows() + ") than clusters (" + maxK + ")");
+
+        this.points = points;
+        this.minK = minK;
+        this.maxK = maxK;
+        this.dimensions = points.getDimensions();
+    }
+
+    /**
+     * Runs every k with count seeds, firstSeed, firstSeed + 1, ... or random ones for -1.
+     */
+    public void setSeeds(int count, int firstSeed) throws KmeansException {
+        if(count < 1)
+            throw new KmeansException("seed count must be greater then 0");
+
+        this.seeds = count;
+        this.firstSeed = firstSeed;
+    }
+
+    public void setThreads(int threads) throws KmeansException {
+        if(threads < 1)
+            throw new KmeansException("thread count must be greater then 0");
+
+        this.threads = threads;
+    }
+
+    public void setAlgorithm(KmeansClustering.Algorithm algorithm) {
+        this.algorithm = algorithm;
+    }
+
+    public void setMetric(DistanceMetric metric) {
+        this.metric = metric;
+    }
+
+    /**
+     * Off by default, every run would build its own LSH index.
+     */
+    public void setUseHashing(boolean useHashing) {
+        this.useHashing = useHashing;
+    }
+
+    public void setConvergencePolicy(ConvergencePolicy convergencePolicy) {
+        this.convergencePolicy = convergencePolicy.copy();
+    }
+
+    /**
+     * The true cluster of every row, to report the NMI per k.
+     */
+    public void setLabels(int[] labels) throws KmeansException {
+        if(labels != null && labels.length != this.points.getRows())
+            throw new KmeansException("expected " + this.points.getRows() + " labels but got " + labels.length);
+
+        this.labels = labels;
+    }
+
+    /**
+     * The points sampled for the silhouette of each k, 0 skips it.
+     */
+    public void setSilhouetteSample(int silhouetteSample) {
+        this.silhouetteSample = silhouetteSample;
+    }
+
+    /**
+     * The number of uniform reference sets of sampleSize points for the gap statistic, 0 skips it.
+     */
+    public void setGapParameters(int references, int sampleSize) throws KmeansException {
+        if(references > 0 && sampleSize < this.maxK)
+            throw new KmeansException("the gap reference sets need at least " + this.maxK + " points");
+
+        this.gapReferences = references;
+        this.gapSampleSize = sampleSize;
+    }
+
+    public void setCriterion(Criterion criterion) {
+        this.criterion = criterion;
+    }
+
+    public void run() throws KmeansException {
+        Random seedRandom = this.firstSeed == -1 ? new Random() : new Random(this.firstSeed);
+        int[] runSeeds = new int[this.seeds];
+        for(int seed = 0; seed < this.seeds; seed++)
+            runSeeds[seed] = this.firstSeed == -1 ? seedRandom.nextInt(Integer.MAX_VALUE) : this.firstSeed + seed;
+
+        int[] referenceSeeds = new int[this.gapReferences];
+        for(int reference = 0; reference < this.gapReferences; reference++)
+            referenceSeeds[reference] = seedRandom.nextInt(Integer.MAX_VALUE);
+
+        int ks = this.maxK - this.minK + 1;
+
+        try (WorkerPool pool = new WorkerPool(this.threads)) {
+            double[] bounds = this.gapReferences > 0 ? computeBounds(pool) : null;
+
+            // one k-means++ seeding for maxK per seed and per reference set
+            List<Seeding> seedings = pool.run(this.seeds + this.gapReferences, 1, (task, from, to) -> {
+                if(task < this.seeds)
+                    return new Seeding(this.points, runSeeds[task]);
+
+                int reference = task - this.seeds;
+                return new Seeding(createReference(bounds, new Random(referenceSeeds[reference])), referenceSeeds[reference]);
+            });
+
+            Run[] bestRuns = new Run[ks];
+            List<Run> runs = pool.run(seedings.size() * ks, 1, (task, from, to) -> {
+                Seeding seeding = seedings.get(task / ks);
+                Run run = cluster(seeding, this.minK + task % ks, task / ks < this.seeds);
+                if(run.clustering != null)
+                    keepBest(bestRuns, task % ks, run, task / ks);
+                return run;
+            });
+
+            this.results = new ArrayList<>(ks);
+            for(int index = 0; index < ks; index++) {
+                int unconvergedRuns = 0;
+                for(int seed = 0; seed < this.seeds; seed++) {
+                    if(!runs.get(seed * ks + index).converged)
+                        unconvergedRuns++;
+                }
+                Run bestRun = bestRuns[index];
+
+                double[] referenceLogs = new double[this.gapReferences];
+                for(int reference = 0; reference < this.gapReferences; reference++)
+                    referenceLogs[reference] = Math.log(runs.get((this.seeds + reference) * ks + index).sse / this.gapSampleSize);
+
+                this.results.add(new Result(this.minK + index, bestRun, unconvergedRuns, referenceLogs, this.points.getRows()));
+            }
+        }
+
+        this.best = selectBest();
+    }
+
+    /**
+     * Keeps the run with the lowest SSE of a k and drops the clustering of the
+     * other one as soon as a run finishes, so only one clustering per k and
+     * those of the running tasks are held. Ties go to the first seed, as if
+     * the seeds had run one after the other.
+     */
+    private static void keepBest(Run[] bestRuns, int index, Run run, int seedIndex) {
+        run.seedIndex = seedIndex;
+
+        synchronized(bestRuns) {
+            Run best = bestRuns[index];
+            if(best == null || run.sse < best.sse || (run.sse == best.sse && run.seedIndex < best.seedIndex)) {
+                if(best != null)
+                    best.clustering = null;
+                bestRuns[index] = run;
+            } else {
+                run.clustering = null;
+            }
+        }
+    }
+
+    /**
+     * The minimum and maximum of every dimension, the box the reference sets are drawn from.
+     */
+    private double[] computeBounds(WorkerPool pool) throws KmeansException {
+        List<double[]> partials = pool.run(this.points.getRows(), (chunk, fromRow, toRow) -> {
+            double[] bounds = new double[2 * this.dimensions];
+            Arrays.fill(bounds, 0, this.dimensions, Double.POSITIVE_INFINITY);
+            Arrays.fill(bounds, this.dimensions, 2 * this.dimensions, Double.NEGATIVE_INFINITY);
+
+            for(int row = fromRow; row < toRow; row++) {
+                for(int dimension = 0; dimension < this.dimensions; dimension++) {
+                    double value = this.points.get(row, dimension);
+                    bounds[dimension] = Math.min(bounds[dimension], value);
+                    bounds[this.dimensions + dimension] = Math.max(bounds[this.dimensions + dimension], value);
+                }
+            }
+
+            return bounds;
+        });
+
+        double[] bounds = partials.get(0);
+        for(double[] partial : partials) {
+            for(int dimension = 0; dimension < this.dimensions; dimension++) {
+                bounds[dimension] = Math.min(bounds[dimension], partial[dimension]);
+                bounds[this.dimensions + dimension] = Math.max(bounds[this.dimensions + dimension], partial[this.dimensions + dimension]);
+            }
+        }
+
+        return bounds;
+    }
+
+    private PointMatrix createReference(double[] bounds, Random random) throws KmeansException {
+        ArrayPointMatrix reference = new ArrayPointMatrix(this.gapSampleSize, this.dimensions);
+        double[] values = reference.getValues();
+
+        for(int row = 0; row < this.gapSampleSize; row++) {
+            for(int dimension = 0; dimension < this.dimensions; dimension++) {
+                double low = bounds[dimension];
+                values[row * this.dimensions + dimension] = low + random.nextDouble() * (bounds[this.dimensions + dimension] - low);
+            }
+        }
+
+        return reference;
+    }
+
+    /**
+     * One run; a run that runs out of rounds competes with its best round.
+     * Reference sets are always clustered with LLOYD and only need the SSE.
+     */
+    private Run cluster(Seeding seeding, int k, boolean data) throws KmeansException {
+        KmeansClustering clustering = new KmeansClustering(seeding.points, k, seeding.seed, KmeansClustering.InitializationStrategy.KMEANS_PLUS_PLUS,
+                data ? this.algorithm : KmeansClustering.Algorithm.LLOYD);
+        clustering.setUseHashing(this.useHashing && data);
+        clustering.setMetric(this.metric);
+        clustering.setConvergencePolicy(this.convergencePolicy);
+        clustering.setInitialCenters(Arrays.copyOf(seeding.centers, k * this.dimensions));
+        clustering.run();
+
+        Run run = new Run();
+        run.sse = clustering.getEvaluation().getSse();
+        run.converged = clustering.getStopReason() != ConvergencePolicy.StopReason.MAX_ROUNDS;
+        if(data) {
+            run.silhouette = this.silhouetteSample > 1 && k > 1 ? clustering.getSilhouette(this.silhouetteSample) : Double.NaN;
+            run.nmi = this.labels != null ? clustering.getMetrics(this.labels).getNmi() : Double.NaN;
+        }
+        run.seed = seeding.seed;
+        // only the SSE of a reference run is needed, its assignment can go
+        run.clustering = data ? clustering : null;
+
+        return run;
+    }
+
+    private Result selectBest() throws KmeansException {
+        Result selected = null;
+
+        switch(this.criterion) {
+            case SILHOUETTE:
+                if(this.silhouetteSample < 2)
+                    throw new KmeansException("selecting k by silhouette needs a silhouette sample");
+
+                for(Result result : this.results) {
+                    if(!Double.isNaN(result.silhouette) && (selected == null || result.silhouette > selected.silhouette))
+                        selected = result;
+                }
+                break;
+            case GAP:
+                if(this.gapReferences < 1)
+                    throw new KmeansException("selecting k by the gap statistic needs reference sets");
+
+                for(int index = 0; index + 1 < this.results.size() && selected == null; index++) {
+                    Result current = this.results.get(index);
+                    Result next = this.results.get(index + 1);
+                    if(current.gap >= next.gap - next.gapError)
+                        selected = current;
+                }
+
+                // the gap keeps growing over the whole range: the largest one
+                if(selected == null) {
+                    for(Result result : this.results) {
+                        if(!Double.isNaN(result.gap) && (selected == null || result.gap > selected.gap))
+                            selected = result;
+                    }
+                }
+                break;
+            default:
+                selected = selectElbow();
+        }
+
+        if(selected == null)
+            throw new KmeansException("no k could be selected by " + this.criterion);
+
+        return selected;
+    }
+
+    private Result selectElbow() {
+        Result first = this.results.get(0);
+        Result last = this.results.get(this.results.size() - 1);
+        if(this.results.size() < 3)
+            return first;
+
+        double sseRange = first.sse - last.sse;
+        Result selected = first;
+        double largestDistance = Double.NEGATIVE_INFINITY;
+
+        for(Result result : this.results) {
+            // both axes scaled to [0, 1]; the chord runs from (0, 1) to (1, 0)
+            double x = (double) (result.k - first.k) / (last.k - first.k);
+            double y = sseRange == 0 ? 0 : (result.sse - last.sse) / sseRange;
+            double distance = 1 - x - y;
+
+            if(distance > largestDistance) {
+                largestDistance = distance;
+                selected = result;
+            }
+        }
+
+        return selected;
+    }
+
+    /**
+     * One entry per k, in increasing order.
+     */
+    public List<Result> getResults() {
+        return this.results;
+    }
+
+    public Result getBest() {
+        return this.best;
+    }
+
+    private class Seeding {
+        final PointMatrix points;
+        final int seed;
+        final double[] centers;
+
+        Seeding(PointMatrix points, int seed) throws KmeansException {
+            this.points = points;
+            this.seed = seed;
+
+            try (WorkerPool pool = new WorkerPool(1)) {
+                this.centers = KmeansSeeding.kmeansPlusPlus(points, KmeansSweep.this.maxK, KmeansSweep.this.metric, new Random(seed), pool);
+            }
+        }
+    }
+
+    private static class Run {
+        KmeansClustering clustering;
+        int seed;
+        int seedIndex;
+        double sse = Double.NaN;
+        double silhouette = Double.NaN;
+        double nmi = Double.NaN;
+        boolean converged;
+    }
+
+    /**
+     * The best seed of one k.
+     */
+    public static class Result {
+        private final int k;
+        private final KmeansClustering clustering;
+        private final int seed;
+        private final int unconvergedRuns;
+        private final double sse;
+        private final double silhouette;
+        private final double nmi;
+        private final double gap;
+        private final double gapError;
+
+        Result(int k, Run best, int unconvergedRuns, double[] referenceLogs, long rows) {
+            this.k = k;
+            this.clustering = best.clustering;
+            this.seed = best.seed;
+            this.unconvergedRuns = unconvergedRuns;
+            this.sse = best.sse;
+            this.silhouette = best.silhouette;
+            this.nmi = best.nmi;
+
+            if(referenceLogs.length == 0) {
+                this.gap = Double.NaN;
+                this.gapError = Double.NaN;
+            } else {
+                double mean = 0;
+                for(double value : referenceLogs)
+                    mean += value / referenceLogs.length;
+
+                double variance = 0;
+                for(double value : referenceLogs)
+                    variance += (value - mean) * (value - mean) / referenceLogs.length;
+
+                this.gap = mean - Math.log(this.sse / rows);
+                this.gapError = Math.sqrt(variance) * Math.sqrt(1 + 1.0 / referenceLogs.length);
+            }
+        }
+
+        public int getK() {
+            return this.k;
+        }
+
+        /**
+         * The run with the lowest SSE.
+         */
+        public KmeansClustering getClustering() {
+            return this.clustering;
+        }
+
+        public int getSeed() {
+            return this.seed;
+        }
+
+        /**
+         * Seeds of this k that ran out of rounds, their best round still competed.
+         */
+        public int getUnconvergedRuns() {
+            return this.unconvergedRuns;
+        }
+
+        public double getSse() {
+            return this.sse;
+        }
+
+        public double getSilhouette() {
+            return this.silhouette;
+        }
+
+        public double getNmi() {
+            return this.nmi;
+        }
+
+        public double getGap() {
+            return this.gap;
+        }
+
+        public double getGapError() {
+            return this.gapError;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("k=%d: SSE %.6g, silhouette %.4f, gap %.4f +- %.4f, NMI %.4f (seed %d, %d unconverged runs)",
+                    this.k, this.sse, this.silhouette, this.gap, this.gapError, this.nmi, this.seed, this.unconvergedRuns);
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package kmeans;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * A worker of a DistributedKmeans run. It holds the rows [fromRow, toRow) of
+ * a point matrix as its shard, shard of shards, and answers the coordinator until it is told
+ * to stop; the points themselves never leave the worker, except for the
+ * sample used to seed the centers.
+ */
+public class KmeansWorker {
+
+    private final Transport transport;
+    private final PointMatrix points;
+    private final int fromRow;
+    private final int rows;
+    private final int shard;
+    private final int shards;
+    private final int dimensions;
+    private final int[] assignment;
+    private WorkerPool pool;
+    private int roundCount;
+
+    public KmeansWorker(Transport transport, PointMatrix points, int fromRow, int toRow, int shard, int shards) throws KmeansException {
+        if(shard < 0 || shard >= shards)
+            throw new KmeansException("shard must be between 0 and " + (shards - 1));
+
+        if(fromRow < 0 || toRow > points.getRows() || fromRow >= toRow)
+            throw new KmeansException("invalid shard rows " + fromRow + " to " + toRow + " of " + points.getRows());
+
+        this.transport = transport;
+        this.points = points;
+        this.fromRow = fromRow;
+        this.rows = toRow - fromRow;
+        this.shard = shard;
+        this.shards = shards;
+        this.dimensions = points.getDimensions();
+        this.assignment = new int[this.rows];
+        Arrays.fill(this.assignment, -1);
+        this.pool = new WorkerPool(1);
+    }
+
+    /**
+     * The rows [shard * rows / shards, (shard + 1) * rows / shards) of the
+     * points, e.g. when every worker holds the whole data set in memory.
+     * Workers that only load their own rows (CsvLoader.setShard,
+     * BinaryDataset.setShard) use all rows of what they loaded instead.
+     */
+    public static KmeansWorker forShard(Transport transport, PointMatrix points, int shard, int shards) throws KmeansException {
+        long rows = points.getRows();
+        return new KmeansWorker(transport, points, (int) (rows * shard / shards), (int) (rows * (shard + 1) / shards), shard, shards);
+    }
+
+    public void setThreads(int threads) throws KmeansException {
+        this.pool.close();
+        this.pool = new WorkerPool(threads);
+    }
+
+    /**
+     * Answers the coordinator until it sends STOP.
+     */
+    public void run() throws KmeansException {
+        try {
+            ByteBuffer info = ByteBuffer.allocate(1 + 3 * Integer.BYTES + Long.BYTES);
+            info.put(DistributedKmeans.INFO).putInt(this.shard).putInt(this.shards).putLong(this.rows).putInt(this.dimensions);
+            this.transport.send(0, info.array());
+
+            while(true) {
+                ByteBuffer message = ByteBuffer.wrap(this.transport.receive(0));
+                byte type = message.hasRemaining() ? message.get() : 0;
+
+                if(type == DistributedKmeans.STOP)
+                    return;
+                else if(type == DistributedKmeans.SAMPLE)
+                    this.transport.send(0, sample(message.getInt(), message.getLong()));
+                else if(type == DistributedKmeans.ROUND)
+                    this.transport.send(0, answerRound(message));
+                else
+                    throw new KmeansException("unexpected message from the coordinator, type " + type);
+            }
+        } catch (IOException e) {
+            throw new KmeansException("communication with the coordinator failed: " + e.getMessage());
+        } finally {
+            this.pool.close();
+        }
+    }
+
+    /**
+     * count distinct rows drawn uniformly (Floyd's algorithm).
+     */
+    private byte[] sample(int count, long seed) {
+        Random random = new Random(seed);
+        count = Math.min(count, this.rows);
+
+        Set<Integer> sampled = new LinkedHashSet<>();
+        for(int candidate = this.rows - count; candidate < this.rows; candidate++) {
+            int row = random.nextInt(candidate + 1);
+            sampled.add(sampled.contains(row) ? candidate : row);
+        }
+
+        double[] values = new double[count * this.dimensions];
+        int index = 0;
+        for(int row : sampled)
+            this.points.copyRow(this.fromRow + row, values, index++ * this.dimensions);
+
+        ByteBuffer message = ByteBuffer.allocate(1 + Integer.BYTES + values.length * Double.BYTES);
+        message.put(DistributedKmeans.SAMPLE_ROWS).putInt(count);
+        message.asDoubleBuffer().put(values);
+        return message.array();
+    }
+
+    /**
+     * The partial of the round, or an ERROR message if the round can't be
+     * run, so the coordinator doesn't wait for an answer that never comes.
+     */
+    private byte[] answerRound(ByteBuffer message) throws KmeansException, IOException {
+        try {
+            return assign(message);
+        } catch (KmeansException e) {
+            byte[] text = e.getMessage().getBytes(StandardCharsets.UTF_8);
+            ByteBuffer error = ByteBuffer.allocate(1 + text.length);
+            error.put(DistributedKmeans.ERROR).put(text);
+            this.transport.send(0, error.array());
+            throw e;
+        }
+    }
+
+    /**
+     * Assigns the shard to the broadcast centers like a LLOYD round and
+     * answers with the reassigned rows, the SSE against these centers and
+     * the per cluster counts and sums.
+     */
+    private byte[] assign(ByteBuffer message) throws KmeansException {
+        DistanceMetric metric = DistanceMetric.values()[message.getInt()];
+        int k = message.getInt();
+        if(message.getInt() != this.dimensions)
+            throw new KmeansException("the centers don't have " + this.dimensions + " dimensions");
+
+        double[] centers = new double[k * this.dimensions];
+        message.asDoubleBuffer().get(centers);
+
+        List<ShardPartial> partials = this.pool.run(this.rows, (chunk, from, to) -> {
+            ShardPartial partial = new ShardPartial(k, this.dimensions);
+
+            for(int index = from; index < to; index++) {
+                int row = this.fromRow + index;
+                int closest = 0;
+                double closestDistance = Double.POSITIVE_INFINITY;
+
+                for(int cluster = 0; cluster < k; cluster++) {
+                    double distance = this.points.getComparableDistance(row, centers, cluster * this.dimensions, metric);
+                    if(distance < closestDistance) {
+                        closestDistance = distance;
+                        closest = cluster;
+                    }
+                }
+
+                if(this.assignment[index] != closest)
+                    partial.reassigned++;
+
+                double distance = metric.toDistance(closestDistance);
+                partial.sse += distance * distance;
+
+                this.assignment[index] = closest;
+                this.points.addRowTo(row, partial.sums, closest * this.dimensions);
+                partial.counts[closest]++;
+            }
+
+            return partial;
+        });
+
+        double[] sums = new double[k * this.dimensions];
+        long[] counts = new long[k];
+        long reassigned = 0;
+        double sse = 0;
+        for(ShardPartial partial : partials) {
+            for(int i = 0; i < sums.length; i++)
+                sums[i] += partial.sums[i];
+
+            for(int cluster = 0; cluster < k; cluster++)
+                counts[cluster] += partial.counts[cluster];
+
+            reassigned += partial.reassigned;
+            sse += partial.sse;
+        }
+        this.roundCount++;
+
+        ByteBuffer partial = ByteBuffer.allocate(1 + Long.BYTES + Double.BYTES + k * Long.BYTES + sums.length * Double.BYTES);
+        partial.put(DistributedKmeans.PARTIAL).putLong(reassigned).putDouble(sse);
+        for(long count : counts)
+            partial.putLong(count);
+        partial.asDoubleBuffer().put(sums);
+        return partial.array();
+    }
+
+    /**
+     * The cluster of every row of the shard after the last round.
+     */
+    public int[] getAssignments() {
+        return this.assignment.clone();
+    }
+
+    public int getRoundCount() {
+        return this.roundCount;
+    }
+
+    private static class ShardPartial {
+        final double[] sums;
+        final long[] counts;
+        long reassigned;
+        double sse;
+
+        ShardPartial(int k, int dimensions) {
+            this.sums = new double[k * dimensions];
+            this.counts = new long[k];
+        }
+    }
+}
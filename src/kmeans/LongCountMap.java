@@ -0,0 +1,115 @@
+package kmeans;
+
+/**
+ * An open addressing map from long keys to positive counts, without boxing.
+ * Slots with a count of 0 are empty; iterate over the slots with getCapacity,
+ * getKey and getCount.
+ */
+final class LongCountMap {
+
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] keys;
+    private long[] counts;
+    private int size;
+
+    LongCountMap(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while(capacity < expectedSize * 2)
+            capacity <<= 1;
+
+        this.keys = new long[capacity];
+        this.counts = new long[capacity];
+    }
+
+    void add(long key, long count) {
+        int slot = findSlot(key);
+        if(this.counts[slot] == 0) {
+            this.keys[slot] = key;
+            this.size++;
+        }
+        this.counts[slot] += count;
+
+        if(this.size * 2 > this.keys.length)
+            grow();
+    }
+
+    /**
+     * Sets the count of key to count if that is larger.
+     */
+    void max(long key, long count) {
+        int slot = findSlot(key);
+        if(this.counts[slot] == 0) {
+            this.keys[slot] = key;
+            this.size++;
+        }
+        this.counts[slot] = Math.max(this.counts[slot], count);
+
+        if(this.size * 2 > this.keys.length)
+            grow();
+    }
+
+    /**
+     * @return the count of key, 0 if it isn't in the map
+     */
+    long get(long key) {
+        return this.counts[findSlot(key)];
+    }
+
+    void addAll(LongCountMap other) {
+        for(int slot = 0; slot < other.keys.length; slot++) {
+            if(other.counts[slot] != 0)
+                add(other.keys[slot], other.counts[slot]);
+        }
+    }
+
+    int size() {
+        return this.size;
+    }
+
+    int getCapacity() {
+        return this.keys.length;
+    }
+
+    long getKey(int slot) {
+        return this.keys[slot];
+    }
+
+    long getCount(int slot) {
+        return this.counts[slot];
+    }
+
+    private int findSlot(long key) {
+        int mask = this.keys.length - 1;
+        int slot = hash(key) & mask;
+        while(this.counts[slot] != 0 && this.keys[slot] != key)
+            slot = (slot + 1) & mask;
+
+        return slot;
+    }
+
+    private void grow() {
+        long[] oldKeys = this.keys;
+        long[] oldCounts = this.counts;
+        this.keys = new long[oldKeys.length * 2];
+        this.counts = new long[oldKeys.length * 2];
+
+        for(int slot = 0; slot < oldKeys.length; slot++) {
+            if(oldCounts[slot] != 0) {
+                int newSlot = findSlot(oldKeys[slot]);
+                this.keys[newSlot] = oldKeys[slot];
+                this.counts[newSlot] = oldCounts[slot];
+            }
+        }
+    }
+
+    // the finalizer of MurmurHash3, spreads consecutive labels over the table
+    private static int hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+}
@@ -0,0 +1,314 @@
+package kmeans;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Multi-table locality sensitive hashing of the data points and the centers.
+ *
+ * Each table concatenates hashesPerTable p-stable hashes
+ * floor((a . x + b) / bucketWidth), with a ~ N(0,1) from Hasher and
+ * b ~ U[0, bucketWidth), into one bucket key. Points are hashed once when the
+ * index is built. The bucket keys of the centers are cached, a center is only
+ * hashed again after it was invalidated because it moved. The centers that
+ * share a bucket with a point in at least one table are its candidates.
+ */
+public class LshIndex {
+
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    private final int tables;
+    private final int hashesPerTable;
+    private final double bucketWidth;
+    private final int k;
+    private final Hasher hasher;
+    private final double[] offsets;
+    private final long[] pointKeys;
+
+    // per table an open addressing map from bucket key to its first center,
+    // the further centers of the bucket are chained through nextCenter
+    private final int capacity;
+    private final long[] slotKeys;
+    private final int[] slotHeads;
+    private final int[] nextCenter;
+    private final int[] usedSlots;
+    private final boolean[] rebuildTables;
+    private final long[] centerKeys;
+    private final double[] centerHashes;
+
+    private final boolean[] dirtyCenters;
+    private int dirtyCount;
+    private boolean indexed = false;
+    private long centerHashCount = 0;
+
+    public LshIndex(PointMatrix points, int k, int tables, int hashesPerTable, double bucketWidth, long seed) throws KmeansException {
+        if(tables < 1 || hashesPerTable < 1)
+            throw new KmeansException("LSH needs at least one table and one hash per table");
+
+        if(bucketWidth <= 0)
+            throw new KmeansException("LSH bucket width must be greater then 0");
+
+        this.tables = tables;
+        this.hashesPerTable = hashesPerTable;
+        this.bucketWidth = bucketWidth;
+        this.k = k;
+        this.hasher = new Hasher(points, tables * hashesPerTable, seed);
+
+        Random random = seed == -1 ? new Random() : new Random(seed + 1);
+        this.offsets = new double[tables * hashesPerTable];
+        for(int i = 0; i < this.offsets.length; i++)
+            this.offsets[i] = random.nextDouble() * bucketWidth;
+
+        this.capacity = Integer.highestOneBit(Math.max(2, k) * 2 - 1) << 1;
+        this.slotKeys = new long[tables * this.capacity];
+        this.slotHeads = new int[tables * this.capacity];
+        this.nextCenter = new int[tables * k];
+        this.usedSlots = new int[tables];
+        this.rebuildTables = new boolean[tables];
+        this.centerKeys = new long[tables * k];
+        this.centerHashes = new double[tables * hashesPerTable];
+        this.dirtyCenters = new boolean[k];
+        invalidateAll();
+
+        long keyCount = (long) points.getRows() * tables;
+        if(keyCount > Integer.MAX_VALUE - 8)
+            throw new KmeansException("too many bucket keys for a single LSH index: " + points.getRows() + " rows x " + tables + " tables");
+
+        this.pointKeys = new long[(int) keyCount];
+        double[] hashes = new double[tables * hashesPerTable];
+        for(int row = 0; row < points.getRows(); row++) {
+            this.hasher.getHashesOfRow(row, hashes);
+            for(int table = 0; table < tables; table++)
+                this.pointKeys[row * tables + table] = getBucketKey(hashes, table);
+        }
+    }
+
+    public int getTables() {
+        return this.tables;
+    }
+
+    public int getHashesPerTable() {
+        return this.hashesPerTable;
+    }
+
+    public double getBucketWidth() {
+        return this.bucketWidth;
+    }
+
+    private long getBucketKey(double[] hashes, int table) {
+        long key = 0xcbf29ce484222325L;
+        for(int i = table * this.hashesPerTable; i < (table + 1) * this.hashesPerTable; i++) {
+            long bucket = (long) Math.floor((hashes[i] + this.offsets[i]) / this.bucketWidth);
+            key = (key ^ bucket) * 0x100000001b3L;
+        }
+        return key == EMPTY ? EMPTY + 1 : key;
+    }
+
+    private int getSlot(long key) {
+        long mixed = key * 0x9e3779b97f4a7c15L;
+        return (int) (mixed >>> 32) & (this.capacity - 1);
+    }
+
+    /**
+     * Marks a center as moved, its buckets are recomputed by the next refreshCenters().
+     */
+    public void invalidateCenter(int center) {
+        if(!this.dirtyCenters[center]) {
+            this.dirtyCenters[center] = true;
+            this.dirtyCount++;
+        }
+    }
+
+    public void invalidateAll() {
+        Arrays.fill(this.dirtyCenters, true);
+        this.dirtyCount = this.k;
+    }
+
+    /**
+     * Hashes the invalidated centers of the k centers stored row-major in
+     * centers again and moves them to their new buckets. Not thread safe,
+     * must not run concurrently with getCandidates().
+     */
+    public void refreshCenters(double[] centers, int dimensions) {
+        if(this.dirtyCount == 0)
+            return;
+
+        // emptied buckets keep their slot; a table that could pass 3/4 load
+        // with the moved centers is rebuilt instead, so probing always ends
+        markTablesToRebuild(this.dirtyCount);
+
+        for(int center = 0; center < this.k; center++) {
+            if(this.dirtyCenters[center])
+                rehashCenter(centers, dimensions, center);
+        }
+
+        rebuildMarkedTables();
+    }
+
+    /**
+     * Like refreshCenters(), but only for the given center, so updating a
+     * single moved center costs one hash instead of a pass over all k.
+     */
+    public void refreshCenter(double[] centers, int dimensions, int center) {
+        if(!this.indexed) {
+            refreshCenters(centers, dimensions);
+            return;
+        }
+        if(!this.dirtyCenters[center])
+            return;
+
+        markTablesToRebuild(1);
+        rehashCenter(centers, dimensions, center);
+        rebuildMarkedTables();
+    }
+
+    private void markTablesToRebuild(int movedCenters) {
+        for(int table = 0; table < this.tables; table++)
+            this.rebuildTables[table] = !this.indexed || this.usedSlots[table] + movedCenters > this.capacity * 3 / 4;
+    }
+
+    private void rehashCenter(double[] centers, int dimensions, int center) {
+        this.hasher.getHashesOfPoint(centers, center * dimensions, this.centerHashes);
+        this.centerHashCount++;
+
+        for(int table = 0; table < this.tables; table++) {
+            long key = getBucketKey(this.centerHashes, table);
+            long oldKey = this.centerKeys[table * this.k + center];
+
+            if(!this.rebuildTables[table] && key != oldKey) {
+                unlinkCenter(table, center, oldKey);
+                this.centerKeys[table * this.k + center] = key;
+                linkCenter(table, center, key);
+            } else {
+                this.centerKeys[table * this.k + center] = key;
+            }
+        }
+
+        this.dirtyCenters[center] = false;
+        this.dirtyCount--;
+    }
+
+    private void rebuildMarkedTables() {
+        for(int table = 0; table < this.tables; table++) {
+            if(this.rebuildTables[table])
+                rebuildTable(table);
+        }
+
+        this.indexed = true;
+    }
+
+    /**
+     * The number of times a center was hashed since the index was built.
+     */
+    public long getCenterHashCount() {
+        return this.centerHashCount;
+    }
+
+    private void rebuildTable(int table) {
+        int base = table * this.capacity;
+        Arrays.fill(this.slotKeys, base, base + this.capacity, EMPTY);
+        Arrays.fill(this.slotHeads, base, base + this.capacity, -1);
+        this.usedSlots[table] = 0;
+
+        for(int center = this.k - 1; center >= 0; center--)
+            linkCenter(table, center, this.centerKeys[table * this.k + center]);
+    }
+
+    private void linkCenter(int table, int center, long key) {
+        int base = table * this.capacity;
+        int slot = findSlot(table, key);
+        if(slot < 0)
+            throw new IllegalStateException("LSH table " + table + " is full");
+
+        if(this.slotKeys[base + slot] == EMPTY) {
+            this.slotKeys[base + slot] = key;
+            this.usedSlots[table]++;
+        }
+
+        this.nextCenter[table * this.k + center] = this.slotHeads[base + slot];
+        this.slotHeads[base + slot] = center;
+    }
+
+    private void unlinkCenter(int table, int center, long key) {
+        int base = table * this.capacity;
+        int slot = findSlot(table, key);
+        if(slot < 0)
+            return;
+
+        if(this.slotHeads[base + slot] == center) {
+            this.slotHeads[base + slot] = this.nextCenter[table * this.k + center];
+            return;
+        }
+
+        for(int previous = this.slotHeads[base + slot]; previous != -1; previous = this.nextCenter[table * this.k + previous]) {
+            if(this.nextCenter[table * this.k + previous] == center) {
+                this.nextCenter[table * this.k + previous] = this.nextCenter[table * this.k + center];
+                return;
+            }
+        }
+    }
+
+    /**
+     * The slot holding key in the table, or the empty slot where it belongs;
+     * -1 if the table is full and doesn't hold key.
+     */
+    private int findSlot(int table, long key) {
+        int base = table * this.capacity;
+        int slot = getSlot(key);
+
+        for(int probe = 0; probe < this.capacity; probe++) {
+            if(this.slotKeys[base + slot] == EMPTY || this.slotKeys[base + slot] == key)
+                return slot;
+
+            slot = (slot + 1) & (this.capacity - 1);
+        }
+
+        return -1;
+    }
+
+    /**
+     * Collects the candidate centers of a row into query.candidates.
+     *
+     * @return the number of candidates, 0 if the row shares no bucket with any center
+     */
+    public int getCandidates(int row, Query query) {
+        int count = 0;
+        if(++query.stamp == 0) {
+            Arrays.fill(query.marks, 0);
+            query.stamp = 1;
+        }
+
+        for(int table = 0; table < this.tables; table++) {
+            int slot = findSlot(table, this.pointKeys[row * this.tables + table]);
+            if(slot < 0)
+                continue;
+
+            for(int center = this.slotHeads[table * this.capacity + slot]; center != -1; center = this.nextCenter[table * this.k + center]) {
+                if(query.marks[center] != query.stamp) {
+                    query.marks[center] = query.stamp;
+                    query.candidates[count++] = center;
+                }
+            }
+        }
+
+        return count;
+    }
+
+    public Query newQuery() {
+        return new Query(this.k);
+    }
+
+    /**
+     * Scratch space for candidate lookups, one per thread.
+     */
+    public static class Query {
+        final int[] candidates;
+        final int[] marks;
+        int stamp;
+
+        Query(int k) {
+            this.candidates = new int[k];
+            this.marks = new int[k];
+        }
+    }
+}
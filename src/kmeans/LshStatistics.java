@@ -0,0 +1,70 @@
+package kmeans;
+
+/**
+ * How well LSH candidate search matches an exact search on a sample of points.
+ */
+public class LshStatistics {
+
+    private final int sampledPoints;
+    private final int pointsWithCandidates;
+    private final int exactMatches;
+    private final double averageCandidates;
+    private final int k;
+    private final long exactNanos;
+    private final long lshNanos;
+
+    public LshStatistics(int sampledPoints, int pointsWithCandidates, int exactMatches, double averageCandidates, int k, long exactNanos, long lshNanos) {
+        this.sampledPoints = sampledPoints;
+        this.pointsWithCandidates = pointsWithCandidates;
+        this.exactMatches = exactMatches;
+        this.averageCandidates = averageCandidates;
+        this.k = k;
+        this.exactNanos = exactNanos;
+        this.lshNanos = lshNanos;
+    }
+
+    public int getSampledPoints() {
+        return this.sampledPoints;
+    }
+
+    /**
+     * Share of the sampled points that found their exact closest center.
+     */
+    public double getRecall() {
+        return this.sampledPoints == 0 ? 1 : (double) this.exactMatches / this.sampledPoints;
+    }
+
+    /**
+     * Share of the sampled points that shared a bucket with at least one center.
+     */
+    public double getBucketHitRate() {
+        return this.sampledPoints == 0 ? 0 : (double) this.pointsWithCandidates / this.sampledPoints;
+    }
+
+    /**
+     * Average number of distances computed per point, k when falling back to all centers.
+     */
+    public double getAverageCandidates() {
+        return this.averageCandidates;
+    }
+
+    /**
+     * k divided by the average number of distances computed per point.
+     */
+    public double getDistanceSpeedup() {
+        return this.averageCandidates == 0 ? 0 : this.k / this.averageCandidates;
+    }
+
+    /**
+     * Measured time of the exact search divided by the time of the LSH search.
+     */
+    public double getTimeSpeedup() {
+        return this.lshNanos == 0 ? 0 : (double) this.exactNanos / this.lshNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("LSH on %d points: recall=%.4f, bucket hits=%.4f, distances per point=%.2f of %d (%.2fx), time speedup=%.2fx",
+                this.sampledPoints, getRecall(), getBucketHitRate(), this.averageCandidates, this.k, getDistanceSpeedup(), getTimeSpeedup());
+    }
+}
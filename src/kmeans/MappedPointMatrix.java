@@ -0,0 +1,88 @@
+package kmeans;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * A read only PointMatrix on little-endian doubles or floats of a memory
+ * mapped file, see BinaryDataset.
+ *
+ * A single mapping is limited to 2 GB, so the file is mapped in windows of a
+ * power of two rows; the window of a row is found with a shift.
+ */
+public class MappedPointMatrix extends PointMatrix {
+
+    private static final long MAX_WINDOW_BYTES = 1 << 30;
+
+    private final ByteBuffer[] windows;
+    private final int windowShift;
+    private final int windowMask;
+    private final boolean floats;
+    private final int valueBytes;
+    private final int rowBytes;
+
+    /**
+     * Maps rows x dimensions values starting at offset of the channel.
+     */
+    MappedPointMatrix(FileChannel channel, long offset, int rows, int dimensions, boolean floats) throws KmeansException, IOException {
+        super(rows, dimensions);
+
+        this.floats = floats;
+        this.valueBytes = floats ? Float.BYTES : Double.BYTES;
+        if((long) dimensions * this.valueBytes > MAX_WINDOW_BYTES)
+            throw new KmeansException("a single row is too large to be mapped: " + dimensions + " dimensions");
+        this.rowBytes = dimensions * this.valueBytes;
+
+        int shift = 0;
+        while(shift < 30 && ((long) this.rowBytes << (shift + 1)) <= MAX_WINDOW_BYTES)
+            shift++;
+        this.windowShift = shift;
+        this.windowMask = (1 << shift) - 1;
+
+        int windowRows = 1 << shift;
+        this.windows = new ByteBuffer[(int) (((long) rows + windowRows - 1) / windowRows)];
+        for(int window = 0; window < this.windows.length; window++) {
+            long firstRow = (long) window * windowRows;
+            long size = Math.min(windowRows, rows - firstRow) * this.rowBytes;
+            this.windows[window] = channel.map(FileChannel.MapMode.READ_ONLY, offset + firstRow * this.rowBytes, size).order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    public boolean isFloat() {
+        return this.floats;
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return true;
+    }
+
+    @Override
+    public double get(int row, int dimension) {
+        ByteBuffer window = this.windows[row >>> this.windowShift];
+        int position = (row & this.windowMask) * this.rowBytes + dimension * this.valueBytes;
+        return this.floats ? window.getFloat(position) : window.getDouble(position);
+    }
+
+    @Override
+    public void set(int row, int dimension, double value) {
+        throw new UnsupportedOperationException("a mapped point matrix is read only");
+    }
+
+    @Override
+    public void copyRow(int row, double[] target, int targetOffset) {
+        ByteBuffer window = this.windows[row >>> this.windowShift];
+        int position = (row & this.windowMask) * this.rowBytes;
+        int dimensions = getDimensions();
+
+        if(this.floats) {
+            for(int dimension = 0; dimension < dimensions; dimension++, position += Float.BYTES)
+                target[targetOffset + dimension] = window.getFloat(position);
+        } else {
+            for(int dimension = 0; dimension < dimensions; dimension++, position += Double.BYTES)
+                target[targetOffset + dimension] = window.getDouble(position);
+        }
+    }
+}
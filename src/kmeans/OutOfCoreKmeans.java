@@ -0,0 +1,586 @@
+package kmeans;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Lloyd's k-means over a data set that doesn't fit into memory.
+ *
+ * Every round streams the data from a BlockSource in blocks sized by the
+ * memory budget. Only the centers, the blocks in flight, the assignments of
+ * the current block and the per chunk partial sums are kept in memory; the
+ * cluster id of every row is stored as a little-endian int in the assignment
+ * file, which is read back in the next round to notice changes. A background
+ * thread reads up to prefetchBlocks blocks ahead while the current block is
+ * assigned.
+ *
+ * The run stops like a KmeansClustering run, see ConvergencePolicy, and keeps
+ * the centers of its last round. Listeners get the statistics of every round.
+ *
+ * Blocks are a multiple of WorkerPool.CHUNK_SIZE rows, so the sums are added
+ * in the same order as by an in-memory LLOYD run and the same initial centers
+ * give the same result. Without initial centers, k-means++ is run on a
+ * uniform sample of the rows drawn in one extra pass.
+ */
+public class OutOfCoreKmeans {
+
+    public static final long DEFAULT_MEMORY_BUDGET = 256L << 20;
+    private static final int SAMPLE_ROWS_PER_CLUSTER = 256;
+
+    private final BlockSource source;
+    private final int k;
+    private final int dimensions;
+    private final Random random;
+
+    private long memoryBudget = DEFAULT_MEMORY_BUDGET;
+    private int prefetchBlocks = 1;
+    private ConvergencePolicy convergencePolicy = new ConvergencePolicy();
+    private DistanceMetric metric = DistanceMetric.EUCLIDEAN;
+    private String assignmentFile;
+    private WorkerPool pool;
+    private final List<ClusteringListener> listeners = new ArrayList<>();
+
+    private double[] centers;
+    private long[] clusterSizes;
+    private long rows = -1;
+    private int blockRows;
+    private int roundCount;
+    private ConvergencePolicy.StopReason stopReason;
+    private long rowsRead;
+    private long ioWaitNanos;
+
+    // allocated once per run and reused by every pass, see computeBlockRows
+    private Block[] blocks;
+    private RoundBuffers roundBuffers;
+
+    public OutOfCoreKmeans(BlockSource source, int k, int seed) throws KmeansException {
+        if(k < 1)
+            throw new KmeansException("k must be greater then 0");
+
+        this.source = source;
+        this.k = k;
+        this.dimensions = source.getDimensions();
+        this.random = seed == -1 ? new Random() : new Random(seed);
+        this.pool = new WorkerPool(1);
+    }
+
+    /**
+     * The bytes the blocks in flight may take, the current one and the
+     * prefetched ones, together with the buffers of a round: the assignments
+     * of a block and the partial sums of its chunks.
+     */
+    public void setMemoryBudget(long memoryBudget) throws KmeansException {
+        if(memoryBudget < 1)
+            throw new KmeansException("memory budget must be greater then 0");
+
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * The number of blocks read ahead, 0 reads every block when it is needed.
+     */
+    public void setPrefetchBlocks(int prefetchBlocks) throws KmeansException {
+        if(prefetchBlocks < 0)
+            throw new KmeansException("prefetch block count must not be negative");
+
+        this.prefetchBlocks = prefetchBlocks;
+    }
+
+    public void setThreads(int threads) throws KmeansException {
+        this.pool.close();
+        this.pool = new WorkerPool(threads);
+    }
+
+    /**
+     * Same as setMaxRounds on the convergence policy.
+     */
+    public void setMaxRounds(int maxRounds) throws KmeansException {
+        this.convergencePolicy.setMaxRounds(maxRounds);
+    }
+
+    /**
+     * Decides when run stops, the policy is copied.
+     */
+    public void setConvergencePolicy(ConvergencePolicy convergencePolicy) {
+        this.convergencePolicy = convergencePolicy.copy();
+    }
+
+    public void setMetric(DistanceMetric metric) {
+        this.metric = metric;
+    }
+
+    /**
+     * Keeps the assignments in the given file; by default a temporary file is
+     * used and deleted after the run.
+     */
+    public void setAssignmentFile(String assignmentFile) {
+        this.assignmentFile = assignmentFile;
+    }
+
+    /**
+     * Starts from the given k centers, row-major, instead of sampling.
+     */
+    public void setInitialCenters(double[] centers) throws KmeansException {
+        if(centers.length != this.k * this.dimensions)
+            throw new KmeansException("expected " + this.k * this.dimensions + " center values but got " + centers.length);
+
+        this.centers = centers.clone();
+    }
+
+    public void addListener(ClusteringListener listener) {
+        this.listeners.add(listener);
+    }
+
+    public void removeListener(ClusteringListener listener) {
+        this.listeners.remove(listener);
+    }
+
+    public void run() throws KmeansException {
+        this.blockRows = computeBlockRows();
+        this.stopReason = null;
+        this.blocks = new Block[this.prefetchBlocks + 1];
+        for(int block = 0; block < this.blocks.length; block++)
+            this.blocks[block] = new Block(new double[this.blockRows * this.dimensions]);
+        this.roundBuffers = new RoundBuffers(this.blockRows);
+
+        File file = this.assignmentFile != null ? new File(this.assignmentFile) : null;
+        try {
+            if(file == null)
+                file = File.createTempFile("kmeans-assignments", ".bin");
+
+            try (RandomAccessFile assignments = new RandomAccessFile(file, "rw")) {
+                assignments.setLength(0);
+
+                if(this.centers == null)
+                    this.centers = sampleCenters();
+
+                double sse = Double.NaN;
+                do {
+                    long start = System.nanoTime();
+                    long allocatedBytes = this.pool.getAllocatedBytes();
+                    double[] previousCenters = this.centers.clone();
+                    double previousSse = sse;
+
+                    RoundPartial round = runRound(assignments.getChannel());
+                    this.roundCount++;
+                    sse = round.sse;
+
+                    double maxCenterShift = getMaxCenterShift(previousCenters);
+                    if(isObserved()) {
+                        long allocated = this.pool.getAllocatedBytes();
+                        notifyListeners(new RoundStatistics(this.roundCount, System.nanoTime() - start, round.reassigned, sse, maxCenterShift,
+                                this.rows * this.k, 0, 0, allocated < 0 || allocatedBytes < 0 ? -1 : allocated - allocatedBytes));
+                    }
+
+                    this.stopReason = this.convergencePolicy.check(this.roundCount, round.reassigned > 0, true,
+                            round.reassigned, this.rows, maxCenterShift, sse, previousSse);
+                } while(this.stopReason == null);
+            }
+        } catch (IOException e) {
+            throw new KmeansException("out-of-core clustering failed: " + e.getMessage());
+        } finally {
+            this.pool.close();
+            this.blocks = null;
+            this.roundBuffers = null;
+            if(this.assignmentFile == null && file != null)
+                file.delete();
+        }
+    }
+
+    private double getMaxCenterShift(double[] previousCenters) {
+        double maxCenterShift = 0;
+        for(int cluster = 0; cluster < this.k; cluster++) {
+            double shift = this.metric.distance(previousCenters, cluster * this.dimensions, this.centers, cluster * this.dimensions, this.dimensions);
+            maxCenterShift = Math.max(maxCenterShift, shift);
+        }
+
+        return maxCenterShift;
+    }
+
+    private boolean isObserved() {
+        for(ClusteringListener listener : this.listeners) {
+            if(listener.isEnabled())
+                return true;
+        }
+
+        return false;
+    }
+
+    private void notifyListeners(RoundStatistics statistics) {
+        for(ClusteringListener listener : this.listeners) {
+            if(listener.isEnabled())
+                listener.roundFinished(this, statistics);
+        }
+    }
+
+    /**
+     * The rows that fit into the budget with prefetchBlocks + 1 blocks in
+     * memory, rounded down to whole chunks. Every row also takes three ints
+     * (its assignment, the previous one and the read buffer) and every chunk
+     * a partial; the centers, their copy from before the round, the sums of
+     * the round and the partial of an incomplete last chunk are fixed.
+     */
+    private int computeBlockRows() throws KmeansException {
+        long rowBytes = (long) this.dimensions * Double.BYTES;
+        long partialBytes = (long) this.k * (rowBytes + Long.BYTES);
+        long fixedBytes = 2 * partialBytes + 2 * this.k * rowBytes;
+        long chunkBytes = WorkerPool.CHUNK_SIZE * ((this.prefetchBlocks + 1) * rowBytes + 3 * Integer.BYTES) + partialBytes;
+
+        long budgetRows = (this.memoryBudget - fixedBytes) * WorkerPool.CHUNK_SIZE / chunkBytes;
+        if(budgetRows < 1)
+            throw new KmeansException("a memory budget of " + this.memoryBudget + " bytes is too small for " + this.k + " clusters of " + this.dimensions + " dimensions");
+
+        long maxRows = (Integer.MAX_VALUE - 8) / this.dimensions;
+        long blockRows = Math.min(budgetRows, maxRows);
+
+        if(blockRows > WorkerPool.CHUNK_SIZE)
+            blockRows -= blockRows % WorkerPool.CHUNK_SIZE;
+
+        return (int) blockRows;
+    }
+
+    /**
+     * Draws a uniform sample of the rows in one pass (reservoir sampling) and
+     * seeds the centers with k-means++ on it.
+     */
+    private double[] sampleCenters() throws KmeansException, IOException {
+        long budgetRows = this.memoryBudget / ((long) this.dimensions * Double.BYTES);
+        int sampleRows = (int) Math.max(this.k, Math.min((long) this.k * SAMPLE_ROWS_PER_CLUSTER, budgetRows));
+        double[] sample = new double[sampleRows * this.dimensions];
+
+        readAll((values, rows, firstRow) -> {
+            for(int row = 0; row < rows; row++) {
+                long index = firstRow + row;
+                long slot = index < sampleRows ? index : (long) (this.random.nextDouble() * (index + 1));
+
+                if(slot < sampleRows)
+                    System.arraycopy(values, row * this.dimensions, sample, (int) slot * this.dimensions, this.dimensions);
+            }
+        });
+
+        if(this.rows < this.k)
+            throw new KmeansException("the data set has fewer rows (" + this.rows + ") than clusters (" + this.k + ")");
+
+        int filled = (int) Math.min(this.rows, sampleRows);
+        PointMatrix samplePoints = new ArrayPointMatrix(filled, this.dimensions, sample);
+        return KmeansSeeding.kmeansPlusPlus(samplePoints, this.k, this.metric, this.random, this.pool);
+    }
+
+    /**
+     * Assigns every block and moves the centers to the means of their rows.
+     *
+     * @return the sums, counts, reassigned rows and SSE of the round; every
+     * row counts as reassigned in the first round
+     */
+    private RoundPartial runRound(FileChannel assignments) throws KmeansException, IOException {
+        RoundPartial round = new RoundPartial(this.k, this.dimensions);
+        double[] sums = round.sums;
+        long[] counts = round.counts;
+        boolean firstRound = this.roundCount == 0;
+        int[] blockAssignments = this.roundBuffers.assignments;
+        int[] previousAssignments = this.roundBuffers.previousAssignments;
+        ByteBuffer buffer = this.roundBuffers.buffer;
+
+        readAll((values, rows, firstRow) -> {
+            if(this.roundCount > 0)
+                readAssignments(assignments, buffer, firstRow, rows, previousAssignments);
+
+            PointMatrix block = new ArrayPointMatrix(rows, this.dimensions, values);
+            List<RoundPartial> partials = this.pool.run(rows, (chunk, fromRow, toRow) -> {
+                RoundPartial partial = new RoundPartial(this.k, this.dimensions);
+
+                for(int row = fromRow; row < toRow; row++) {
+                    int closest = findClosestCenter(block, row, partial);
+                    if(firstRound || closest != previousAssignments[row])
+                        partial.reassigned++;
+
+                    blockAssignments[row] = closest;
+                    block.addRowTo(row, partial.sums, closest * this.dimensions);
+                    partial.counts[closest]++;
+                    double distance = this.metric.toDistance(partial.closestDistance);
+                    partial.sse += distance * distance;
+                }
+
+                return partial;
+            });
+
+            for(RoundPartial partial : partials) {
+                for(int i = 0; i < sums.length; i++)
+                    sums[i] += partial.sums[i];
+
+                for(int cluster = 0; cluster < this.k; cluster++)
+                    counts[cluster] += partial.counts[cluster];
+
+                round.reassigned += partial.reassigned;
+                round.sse += partial.sse;
+            }
+
+            writeAssignments(assignments, buffer, firstRow, rows, blockAssignments);
+        });
+
+        if(this.rows < this.k)
+            throw new KmeansException("the data set has fewer rows (" + this.rows + ") than clusters (" + this.k + ")");
+
+        // an empty cluster keeps its center, like KmeansCluster.updateClusterCenter
+        for(int cluster = 0; cluster < this.k; cluster++) {
+            if(counts[cluster] == 0)
+                continue;
+
+            for(int dimension = 0; dimension < this.dimensions; dimension++)
+                this.centers[cluster * this.dimensions + dimension] = sums[cluster * this.dimensions + dimension] / counts[cluster];
+        }
+
+        this.clusterSizes = counts;
+        return round;
+    }
+
+    /**
+     * Also leaves the comparable distance to the closest center in partial.closestDistance.
+     */
+    private int findClosestCenter(PointMatrix block, int row, RoundPartial partial) {
+        int closest = 0;
+        double closestDistance = Double.POSITIVE_INFINITY;
+
+        for(int cluster = 0; cluster < this.k; cluster++) {
+            double distance = block.getComparableDistance(row, this.centers, cluster * this.dimensions, this.metric);
+            if(distance < closestDistance) {
+                closestDistance = distance;
+                closest = cluster;
+            }
+        }
+
+        partial.closestDistance = closestDistance;
+        return closest;
+    }
+
+    private void readAssignments(FileChannel channel, ByteBuffer buffer, long firstRow, int rows, int[] target) throws IOException {
+        buffer.clear().limit(rows * Integer.BYTES);
+        long position = firstRow * Integer.BYTES;
+        while(buffer.hasRemaining()) {
+            if(channel.read(buffer, position + buffer.position()) < 0)
+                throw new IOException("the assignment file is shorter than the data set");
+        }
+        buffer.flip();
+        buffer.asIntBuffer().get(target, 0, rows);
+    }
+
+    private void writeAssignments(FileChannel channel, ByteBuffer buffer, long firstRow, int rows, int[] source) throws IOException {
+        buffer.clear();
+        IntBuffer ints = buffer.asIntBuffer();
+        ints.put(source, 0, rows);
+        buffer.limit(rows * Integer.BYTES);
+
+        long position = firstRow * Integer.BYTES;
+        while(buffer.hasRemaining())
+            channel.write(buffer, position + buffer.position());
+    }
+
+    /**
+     * Streams the whole source through the consumer, block by block and in order.
+     */
+    private void readAll(BlockConsumer consumer) throws KmeansException, IOException {
+        this.source.rewind();
+        long firstRow = 0;
+
+        if(this.prefetchBlocks == 0) {
+            double[] values = this.blocks[0].values;
+            while(true) {
+                long start = System.nanoTime();
+                int rows = this.source.read(values, this.blockRows);
+                this.ioWaitNanos += System.nanoTime() - start;
+
+                if(rows == 0)
+                    break;
+
+                consumer.accept(values, rows, firstRow);
+                firstRow += rows;
+            }
+        } else {
+            try (Prefetcher prefetcher = new Prefetcher()) {
+                Block block;
+                while((block = prefetcher.next()).rows > 0) {
+                    consumer.accept(block.values, block.rows, firstRow);
+                    firstRow += block.rows;
+                    prefetcher.recycle(block);
+                }
+            }
+        }
+
+        this.rows = firstRow;
+        this.rowsRead += firstRow;
+    }
+
+    /**
+     * The centers after the last round, one row per cluster.
+     */
+    public PointMatrix getCenters() throws KmeansException {
+        return new ArrayPointMatrix(this.k, this.dimensions, this.centers.clone());
+    }
+
+    public long[] getClusterSizes() {
+        return this.clusterSizes.clone();
+    }
+
+    public long getRows() {
+        return this.rows;
+    }
+
+    public int getRoundCount() {
+        return this.roundCount;
+    }
+
+    /**
+     * Why the last run stopped, null before a run.
+     */
+    public ConvergencePolicy.StopReason getStopReason() {
+        return this.stopReason;
+    }
+
+    public int getBlockRows() {
+        return this.blockRows;
+    }
+
+    /**
+     * The rows read over all passes, including the sampling pass.
+     */
+    public long getRowsRead() {
+        return this.rowsRead;
+    }
+
+    /**
+     * The time the clustering waited for blocks to be read.
+     */
+    public long getIoWaitNanos() {
+        return this.ioWaitNanos;
+    }
+
+    private interface BlockConsumer {
+        void accept(double[] values, int rows, long firstRow) throws KmeansException, IOException;
+    }
+
+    private static class RoundPartial {
+        final double[] sums;
+        final long[] counts;
+        long reassigned;
+        double sse;
+        double closestDistance;
+
+        RoundPartial(int k, int dimensions) {
+            this.sums = new double[k * dimensions];
+            this.counts = new long[k];
+        }
+    }
+
+    /**
+     * The assignments of the current block, those of the round before and the
+     * buffer they are read and written through.
+     */
+    private static class RoundBuffers {
+        final int[] assignments;
+        final int[] previousAssignments;
+        final ByteBuffer buffer;
+
+        RoundBuffers(int blockRows) {
+            this.assignments = new int[blockRows];
+            this.previousAssignments = new int[blockRows];
+            this.buffer = ByteBuffer.allocateDirect(blockRows * Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    private static class Block {
+        final double[] values;
+        int rows;
+
+        Block(double[] values) {
+            this.values = values;
+        }
+    }
+
+    /**
+     * Reads blocks on a background thread into the prefetchBlocks + 1 recycled
+     * blocks of the run. A block with 0 rows marks the end, a failure is rethrown by next.
+     */
+    private class Prefetcher implements AutoCloseable {
+        private final BlockingQueue<Block> free;
+        private final BlockingQueue<Block> ready;
+        private final Thread thread;
+        private volatile Exception failure;
+
+        Prefetcher() {
+            Block[] blocks = OutOfCoreKmeans.this.blocks;
+            this.free = new ArrayBlockingQueue<>(blocks.length);
+            this.ready = new ArrayBlockingQueue<>(blocks.length);
+            for(Block block : blocks)
+                this.free.add(block);
+
+            this.thread = new Thread(this::readBlocks, "kmeans-prefetch");
+            this.thread.setDaemon(true);
+            this.thread.start();
+        }
+
+        private void readBlocks() {
+            try {
+                while(true) {
+                    Block block = this.free.take();
+                    block.rows = OutOfCoreKmeans.this.source.read(block.values, OutOfCoreKmeans.this.blockRows);
+                    this.ready.put(block);
+
+                    if(block.rows == 0)
+                        return;
+                }
+            } catch (InterruptedException e) {
+                // closed before the end of the data
+            } catch (KmeansException | IOException | RuntimeException e) {
+                this.failure = e;
+                this.ready.offer(new Block(null));
+            }
+        }
+
+        Block next() throws KmeansException {
+            long start = System.nanoTime();
+            Block block;
+            try {
+                block = this.ready.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new KmeansException("interrupted while waiting for the next block");
+            } finally {
+                OutOfCoreKmeans.this.ioWaitNanos += System.nanoTime() - start;
+            }
+
+            if(this.failure != null) {
+                if(this.failure instanceof KmeansException)
+                    throw (KmeansException) this.failure;
+
+                throw new KmeansException("reading the input failed: " + this.failure.getMessage());
+            }
+
+            return block;
+        }
+
+        void recycle(Block block) {
+            this.free.add(block);
+        }
+
+        @Override
+        public void close() throws KmeansException {
+            this.thread.interrupt();
+            try {
+                this.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new KmeansException("interrupted while stopping the prefetch thread");
+            }
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package kmeans;
+
+/**
+ * Row-major storage of a whole data set.
+ *
+ * Row i consists of the values (i, 0) .. (i, dimensions - 1), so the
+ * coordinates of a point lie next to each other and no per-point objects are
+ * needed. DataPoint instances are only thin views on one row.
+ *
+ * Subclasses only have to provide get, set and copyRow. The row operations
+ * below copy the row into a per thread scratch array and use the array
+ * kernels; ArrayPointMatrix overrides them to work on its array in place.
+ * Read only matrices keep the last copied row, so comparing a point with all
+ * centers copies it once.
+ */
+public abstract class PointMatrix {
+
+    private final int rows;
+    private final int dimensions;
+    private final ThreadLocal<Scratch> scratch;
+
+    protected PointMatrix(int rows, int dimensions) throws KmeansException {
+        if(dimensions <= 0)
+            throw new KmeansException("dimensionality must be greater then 0");
+
+        if(rows < 0)
+            throw new KmeansException("row count must not be negative");
+
+        this.rows = rows;
+        this.dimensions = dimensions;
+        this.scratch = ThreadLocal.withInitial(() -> new Scratch(dimensions));
+    }
+
+    public static PointMatrix of(DataPoint[] dataPoints) throws KmeansException {
+        if(dataPoints == null || dataPoints.length < 1)
+            throw new KmeansException("cannot build a point matrix without data points");
+
+        int dimensions = dataPoints[0].getDimensions();
+        PointMatrix matrix = new ArrayPointMatrix(dataPoints.length, dimensions);
+
+        for(int row = 0; row < dataPoints.length; row++) {
+            if(dataPoints[row].getDimensions() != dimensions)
+                throw new KmeansException("all data points must have the same dimensions");
+
+            for(int dimension = 0; dimension < dimensions; dimension++)
+                matrix.set(row, dimension, dataPoints[row].getSafe(dimension));
+        }
+
+        return matrix;
+    }
+
+    public int getRows() {
+        return this.rows;
+    }
+
+    public int getDimensions() {
+        return this.dimensions;
+    }
+
+    public abstract double get(int row, int dimension);
+
+    public abstract void set(int row, int dimension, double value);
+
+    public abstract void copyRow(int row, double[] target, int targetOffset);
+
+    /**
+     * Whether set is unsupported, the rows then never change. The checked
+     * writes (setRow, DataPoint.set) fail with a KmeansException instead.
+     */
+    public boolean isReadOnly() {
+        return false;
+    }
+
+    /**
+     * Returns a view on the given row; writes through the view change the matrix.
+     */
+    public DataPoint getPoint(int row) {
+        return new DataPoint(this, row);
+    }
+
+    public void setRow(int row, double[] coordinates) throws KmeansException {
+        if(isReadOnly())
+            throw new KmeansException("the point matrix is read only, its rows can't be set");
+
+        for(int dimension = 0; dimension < this.dimensions; dimension++)
+            set(row, dimension, coordinates[dimension]);
+    }
+
+    /**
+     * Adds the coordinates of the row to target[targetOffset ..].
+     */
+    public void addRowTo(int row, double[] target, int targetOffset) {
+        double[] values = rowValues(row);
+        for(int dimension = 0; dimension < this.dimensions; dimension++)
+            target[targetOffset + dimension] += values[dimension];
+    }
+
+    public void subtractRowFrom(int row, double[] target, int targetOffset) {
+        double[] values = rowValues(row);
+        for(int dimension = 0; dimension < this.dimensions; dimension++)
+            target[targetOffset + dimension] -= values[dimension];
+    }
+
+    public double getDistance(int row, PointMatrix other, int otherRow) {
+        double[] otherValues = new double[other.dimensions];
+        other.copyRow(otherRow, otherValues, 0);
+        return getDistance(row, otherValues, 0, DistanceMetric.EUCLIDEAN);
+    }
+
+    public double getDistance(int row, DataPoint other) {
+        return getDistance(row, other.getMatrix(), other.getRow());
+    }
+
+    /**
+     * A value that orders like the distance between the row and other[otherOffset ..],
+     * see DistanceMetric.comparableDistance.
+     */
+    public double getComparableDistance(int row, double[] other, int otherOffset, DistanceMetric metric) {
+        return metric.comparableDistance(rowValues(row), 0, other, otherOffset, this.dimensions);
+    }
+
+    public double getDistance(int row, double[] other, int otherOffset, DistanceMetric metric) {
+        return metric.distance(rowValues(row), 0, other, otherOffset, this.dimensions);
+    }
+
+    public double getSquaredDistance(int row, double[] other, int otherOffset, DistanceMetric metric) {
+        return metric.squaredDistance(rowValues(row), 0, other, otherOffset, this.dimensions);
+    }
+
+    public double dot(int row, double[] other, int otherOffset) {
+        return DistanceKernel.dot(rowValues(row), 0, other, otherOffset, this.dimensions);
+    }
+
+    /**
+     * The row copied into the scratch array of the calling thread.
+     */
+    private double[] rowValues(int row) {
+        Scratch rowScratch = this.scratch.get();
+
+        if(rowScratch.row != row || !isReadOnly()) {
+            copyRow(row, rowScratch.values, 0);
+            rowScratch.row = row;
+        }
+
+        return rowScratch.values;
+    }
+
+    private static class Scratch {
+        final double[] values;
+        int row = -1;
+
+        Scratch(int dimensions) {
+            this.values = new double[dimensions];
+        }
+    }
+}
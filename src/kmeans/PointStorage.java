@@ -0,0 +1,49 @@
+package kmeans;
+
+/**
+ * How the values of the data points are kept in memory. Centers are always
+ * accumulated and stored in double.
+ */
+public enum PointStorage {
+    DOUBLE {
+        @Override
+        public PointMatrix convert(PointMatrix source) throws KmeansException {
+            if(source instanceof ArrayPointMatrix)
+                return source;
+
+            return copy(source, new ArrayPointMatrix(source.getRows(), source.getDimensions()));
+        }
+    },
+    FLOAT {
+        @Override
+        public PointMatrix convert(PointMatrix source) throws KmeansException {
+            if(source instanceof FloatPointMatrix)
+                return source;
+
+            return copy(source, new FloatPointMatrix(source.getRows(), source.getDimensions()));
+        }
+    },
+    INT8 {
+        @Override
+        public PointMatrix convert(PointMatrix source) throws KmeansException {
+            if(source instanceof Int8PointMatrix)
+                return source;
+
+            return Int8PointMatrix.quantize(source);
+        }
+    };
+
+    /**
+     * The points in this storage, source itself if it already is.
+     */
+    public abstract PointMatrix convert(PointMatrix source) throws KmeansException;
+
+    private static PointMatrix copy(PointMatrix source, PointMatrix target) throws KmeansException {
+        double[] row = new double[source.getDimensions()];
+        for(int r = 0; r < source.getRows(); r++) {
+            source.copyRow(r, row, 0);
+            target.setRow(r, row);
+        }
+        return target;
+    }
+}
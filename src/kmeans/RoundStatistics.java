@@ -0,0 +1,94 @@
+package kmeans;
+
+/**
+ * What one round of a KmeansClustering run did.
+ */
+public final class RoundStatistics {
+
+    private final int round;
+    private final long wallNanos;
+    private final long reassignedPoints;
+    private final double sse;
+    private final double maxCenterShift;
+    private final long distanceComputations;
+    private final long skippedDistanceComputations;
+    private final long bucketHits;
+    private final long allocatedBytes;
+
+    RoundStatistics(int round, long wallNanos, long reassignedPoints, double sse, double maxCenterShift,
+            long distanceComputations, long skippedDistanceComputations, long bucketHits, long allocatedBytes) {
+        this.round = round;
+        this.wallNanos = wallNanos;
+        this.reassignedPoints = reassignedPoints;
+        this.sse = sse;
+        this.maxCenterShift = maxCenterShift;
+        this.distanceComputations = distanceComputations;
+        this.skippedDistanceComputations = skippedDistanceComputations;
+        this.bucketHits = bucketHits;
+        this.allocatedBytes = allocatedBytes;
+    }
+
+    /**
+     * Counted from 1.
+     */
+    public int getRound() {
+        return this.round;
+    }
+
+    public long getWallNanos() {
+        return this.wallNanos;
+    }
+
+    /**
+     * Points whose cluster changed, every point in the first round. MINI_BATCH
+     * only assigns all points in its last round, before that it reports 0.
+     */
+    public long getReassignedPoints() {
+        return this.reassignedPoints;
+    }
+
+    /**
+     * The SSE of the assignment of the round against the centers it was made
+     * with, NaN for rounds that don't compute it (MACQUEEN, HAMERLY, MINI_BATCH
+     * before its last round).
+     */
+    public double getSse() {
+        return this.sse;
+    }
+
+    /**
+     * The largest distance a center moved in the round.
+     */
+    public double getMaxCenterShift() {
+        return this.maxCenterShift;
+    }
+
+    public long getDistanceComputations() {
+        return this.distanceComputations;
+    }
+
+    public long getSkippedDistanceComputations() {
+        return this.skippedDistanceComputations;
+    }
+
+    /**
+     * Points that found their closest center through a shared LSH bucket.
+     */
+    public long getBucketHits() {
+        return this.bucketHits;
+    }
+
+    /**
+     * Bytes allocated on the calling thread and the worker threads, -1 if the JVM doesn't count them.
+     */
+    public long getAllocatedBytes() {
+        return this.allocatedBytes;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("round %d: %.1f ms, %d reassigned, SSE %.6g, max center shift %.4g, %d distances (%d skipped), %d bucket hits, %d bytes allocated",
+                this.round, this.wallNanos / 1e6, this.reassignedPoints, this.sse, this.maxCenterShift,
+                this.distanceComputations, this.skippedDistanceComputations, this.bucketHits, this.allocatedBytes);
+    }
+}
@@ -0,0 +1,137 @@
+package kmeans;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * A Transport over TCP sockets, every message is sent as its length followed
+ * by its bytes. The coordinator listens and accepts one connection per worker,
+ * the workers connect to it, so local processes can talk over loopback.
+ */
+public class SocketTransport implements Transport {
+
+    public static final int MAX_MESSAGE_SIZE = Integer.MAX_VALUE - 8;
+    private static final int CONNECT_ATTEMPTS = 50;
+    private static final long CONNECT_RETRY_MILLIS = 200;
+
+    private final Socket[] sockets;
+    private final DataInputStream[] inputs;
+    private final DataOutputStream[] outputs;
+    private long bytesSent;
+    private long bytesReceived;
+
+    private SocketTransport(Socket[] sockets) throws IOException {
+        this.sockets = sockets;
+        this.inputs = new DataInputStream[sockets.length];
+        this.outputs = new DataOutputStream[sockets.length];
+
+        for(int peer = 0; peer < sockets.length; peer++) {
+            sockets[peer].setTcpNoDelay(true);
+            this.inputs[peer] = new DataInputStream(new BufferedInputStream(sockets[peer].getInputStream()));
+            this.outputs[peer] = new DataOutputStream(new BufferedOutputStream(sockets[peer].getOutputStream()));
+        }
+    }
+
+    /**
+     * Waits until peers workers have connected to the port, in the order they connect.
+     */
+    public static SocketTransport listen(int port, int peers) throws IOException {
+        Socket[] sockets = new Socket[peers];
+
+        try (ServerSocket server = new ServerSocket(port)) {
+            for(int peer = 0; peer < peers; peer++)
+                sockets[peer] = server.accept();
+        } catch (IOException e) {
+            closeAll(sockets);
+            throw e;
+        }
+
+        return new SocketTransport(sockets);
+    }
+
+    /**
+     * Connects to a coordinator, retrying for a while if it isn't listening yet.
+     */
+    public static SocketTransport connect(String host, int port) throws IOException {
+        for(int attempt = 1; ; attempt++) {
+            try {
+                return new SocketTransport(new Socket[] { new Socket(host, port) });
+            } catch (ConnectException e) {
+                if(attempt == CONNECT_ATTEMPTS)
+                    throw e;
+            }
+
+            try {
+                Thread.sleep(CONNECT_RETRY_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while connecting to " + host + ":" + port);
+            }
+        }
+    }
+
+    @Override
+    public int getPeerCount() {
+        return this.sockets.length;
+    }
+
+    @Override
+    public void send(int peer, byte[] message) throws IOException {
+        DataOutputStream output = this.outputs[peer];
+        output.writeInt(message.length);
+        output.write(message);
+        output.flush();
+
+        this.bytesSent += Integer.BYTES + message.length;
+    }
+
+    @Override
+    public byte[] receive(int peer) throws IOException {
+        DataInputStream input = this.inputs[peer];
+        int length = input.readInt();
+        if(length < 0 || length > MAX_MESSAGE_SIZE)
+            throw new IOException("invalid message length " + length + " from peer " + peer);
+
+        byte[] message = new byte[length];
+        input.readFully(message);
+
+        this.bytesReceived += Integer.BYTES + length;
+        return message;
+    }
+
+    public long getBytesSent() {
+        return this.bytesSent;
+    }
+
+    public long getBytesReceived() {
+        return this.bytesReceived;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closeAll(this.sockets);
+    }
+
+    private static void closeAll(Socket[] sockets) throws IOException {
+        IOException failure = null;
+        for(Socket socket : sockets) {
+            if(socket == null)
+                continue;
+
+            try {
+                socket.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+
+        if(failure != null)
+            throw failure;
+    }
+}
@@ -0,0 +1,24 @@
+package kmeans;
+
+import java.io.IOException;
+
+/**
+ * Exchanges messages between the coordinator and the workers of a
+ * DistributedKmeans run. The coordinator has one peer per worker, a worker
+ * has the coordinator as its only peer (0). Messages to and from one peer
+ * arrive in the order they were sent.
+ */
+public interface Transport extends AutoCloseable {
+
+    int getPeerCount();
+
+    void send(int peer, byte[] message) throws IOException;
+
+    /**
+     * Blocks until the next message of the peer arrives.
+     */
+    byte[] receive(int peer) throws IOException;
+
+    @Override
+    void close() throws IOException;
+}
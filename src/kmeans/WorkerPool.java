@@ -0,0 +1,143 @@
+package kmeans;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs work split into fixed size chunks of rows on a number of threads.
+ *
+ * The chunk boundaries only depend on the row count, never on the number of
+ * threads, and results are always returned in chunk order. Reducing them in
+ * that order gives bit-identical sums no matter how many threads are used.
+ */
+public class WorkerPool implements AutoCloseable {
+
+    public static final int CHUNK_SIZE = 4096;
+
+    public interface ChunkTask<T> {
+        T run(int chunk, int fromRow, int toRow) throws KmeansException;
+    }
+
+    private final int threads;
+    private ExecutorService executor;
+    private final List<Thread> workerThreads = new ArrayList<>();
+
+    public WorkerPool(int threads) throws KmeansException {
+        if(threads < 1)
+            throw new KmeansException("thread count must be greater then 0");
+
+        this.threads = threads;
+    }
+
+    public int getThreads() {
+        return this.threads;
+    }
+
+    public static int getChunkCount(int rows) {
+        return (rows + CHUNK_SIZE - 1) / CHUNK_SIZE;
+    }
+
+    public <T> List<T> run(int rows, ChunkTask<T> task) throws KmeansException {
+        return run(rows, CHUNK_SIZE, task);
+    }
+
+    /**
+     * Like run(rows, task) with chunks of chunkSize rows, e.g. 1 to run one task per item.
+     */
+    public <T> List<T> run(int rows, int chunkSize, ChunkTask<T> task) throws KmeansException {
+        int chunks = (rows + chunkSize - 1) / chunkSize;
+        List<T> results = new ArrayList<>(chunks);
+
+        if(this.threads == 1 || chunks < 2) {
+            for(int chunk = 0; chunk < chunks; chunk++)
+                results.add(task.run(chunk, chunk * chunkSize, Math.min(rows, (chunk + 1) * chunkSize)));
+
+            return results;
+        }
+
+        List<Callable<T>> callables = new ArrayList<>(chunks);
+        for(int chunk = 0; chunk < chunks; chunk++) {
+            final int finalChunk = chunk;
+            callables.add(() -> task.run(finalChunk, finalChunk * chunkSize, Math.min(rows, (finalChunk + 1) * chunkSize)));
+        }
+
+        try {
+            for(Future<T> future : getExecutor().invokeAll(callables))
+                results.add(future.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new KmeansException("interrupted while waiting for worker threads");
+        } catch (ExecutionException e) {
+            if(e.getCause() instanceof KmeansException)
+                throw (KmeansException) e.getCause();
+
+            throw new KmeansException("worker thread failed: " + e.getCause());
+        }
+
+        return results;
+    }
+
+    private synchronized ExecutorService getExecutor() {
+        if(this.executor == null) {
+            this.executor = Executors.newFixedThreadPool(this.threads, runnable -> {
+                Thread thread = new Thread(runnable, "kmeans-worker");
+                thread.setDaemon(true);
+                synchronized(this.workerThreads) {
+                    this.workerThreads.add(thread);
+                }
+                return thread;
+            });
+        }
+
+        return this.executor;
+    }
+
+    /**
+     * Bytes allocated so far by the calling thread and the live threads of the
+     * pool, -1 if the JVM doesn't count allocations per thread.
+     */
+    long getAllocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if(!(bean instanceof com.sun.management.ThreadMXBean))
+            return -1;
+
+        com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) bean;
+        if(!allocationBean.isThreadAllocatedMemorySupported() || !allocationBean.isThreadAllocatedMemoryEnabled())
+            return -1;
+
+        long[] ids;
+        synchronized(this.workerThreads) {
+            this.workerThreads.removeIf(thread -> !thread.isAlive());
+            ids = new long[this.workerThreads.size() + 1];
+            for(int i = 0; i < this.workerThreads.size(); i++)
+                ids[i] = this.workerThreads.get(i).getId();
+        }
+        ids[ids.length - 1] = Thread.currentThread().getId();
+
+        long bytes = 0;
+        for(long threadBytes : allocationBean.getThreadAllocatedBytes(ids)) {
+            if(threadBytes > 0)
+                bytes += threadBytes;
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Stops the threads; the pool starts new ones if it is used again.
+     */
+    @Override
+    public synchronized void close() {
+        if(this.executor != null) {
+            this.executor.shutdown();
+            this.executor = null;
+        }
+    }
+}